@@ -0,0 +1,195 @@
+package xephyrus.sam.core;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>
+ *   A controller for governing the processing cycle of {@link StateMachine}s which backs off
+ *   gradually when there's nothing to process, rather than sleeping a fixed time.  When the
+ *   machine first goes idle it busy-spins for a number of steps, then yields the processor for a
+ *   number of steps, then parks, doubling the park time each step up to a maximum.  As soon as
+ *   there's something to process again it starts over from spinning.
+ * </p><p>
+ *   Spinning keeps latency down on a busy machine at the cost of a processor, while long parks
+ *   cost next to nothing on a quiet one; {@link #lowLatency(StateMachine)} and
+ *   {@link #lowCpu(StateMachine)} provide settings for each.  Parking is done with
+ *   {@link LockSupport}, so pairing this with {@link StateMachine#setWakeOnQueue(boolean)} lets
+ *   a long park end as soon as work arrives.
+ * </p><p>
+ *   The back-off is shared by all the dispatcher threads of a machine.
+ * </p>
+ *
+ * @param <S>
+ *   The states of the {@link StateMachine} for which this controller will work.
+ * @param <P>
+ *   The {@link Payload} of the {@link StateMachine} for which this controller will work.
+ */
+public class AdaptiveMachineCycleController<S extends Enum, P extends Payload>
+  extends DefaultMachineCycleController<S,P>
+  implements IdleStrategy
+{
+  /**
+   * Creates a controller tuned for a busy machine, where prompt processing matters more than
+   * processor time.  It spins for a good while, and never parks for more than a millisecond.
+   *
+   * @param machine
+   *   The StateMachine for which the controller works.
+   * @return
+   *   The new controller.
+   */
+  static public <S extends Enum, P extends Payload> AdaptiveMachineCycleController<S,P> lowLatency (
+      StateMachine<S,P> machine)
+  {
+    return new AdaptiveMachineCycleController<S,P>(machine,10000,100,
+        TimeUnit.MICROSECONDS.toNanos(50L),TimeUnit.MILLISECONDS.toNanos(1L));
+  }
+
+  /**
+   * Creates a controller tuned for a quiet machine, where processor time matters more than
+   * prompt processing.  It barely spins, and parks for up to a second at a time.
+   *
+   * @param machine
+   *   The StateMachine for which the controller works.
+   * @return
+   *   The new controller.
+   */
+  static public <S extends Enum, P extends Payload> AdaptiveMachineCycleController<S,P> lowCpu (
+      StateMachine<S,P> machine)
+  {
+    return new AdaptiveMachineCycleController<S,P>(machine,10,10,
+        TimeUnit.MILLISECONDS.toNanos(1L),TimeUnit.SECONDS.toNanos(1L));
+  }
+
+  /**
+   * Constructs a new one of these for the given {@link StateMachine}, with settings somewhere
+   * between {@link #lowLatency(StateMachine)} and {@link #lowCpu(StateMachine)}: 100 spins, 10
+   * yields, then parks from 100 microseconds up to 100 milliseconds.
+   *
+   * @param machine
+   *   The StateMachine for which this controller works.
+   */
+  public AdaptiveMachineCycleController (StateMachine<S,P> machine)
+  {
+    this(machine,100,10,TimeUnit.MICROSECONDS.toNanos(100L),TimeUnit.MILLISECONDS.toNanos(100L));
+  }
+
+  /**
+   * Constructs a new one of these for the given {@link StateMachine}.
+   *
+   * @param machine
+   *   The StateMachine for which this controller works.
+   * @param spins
+   *   The number of idle steps to busy-spin before yielding the processor.
+   * @param yields
+   *   The number of idle steps to yield the processor before parking.
+   * @param minParkTime
+   *   The time to park on the first parking step, in nanoseconds.
+   * @param maxParkTime
+   *   The longest time to park on any step, in nanoseconds.
+   */
+  public AdaptiveMachineCycleController (StateMachine<S,P> machine, int spins, int yields,
+      long minParkTime, long maxParkTime)
+  {
+    super(machine);
+    if ((spins < 0) || (yields < 0) || (minParkTime < 1L) || (maxParkTime < minParkTime))
+    {
+      throw new IllegalArgumentException("Invalid idle settings: spins " + spins + ", yields " +
+          yields + ", park " + minParkTime + "-" + maxParkTime + "ns");
+    }
+    _spins = spins;
+    _yields = yields;
+    _minParkTime = minParkTime;
+    _maxParkTime = maxParkTime;
+  }
+
+  @Override
+  public boolean shouldProcess ()
+  {
+    boolean ready = super.shouldProcess();
+    if (ready)
+    {
+      reset();
+    }
+    return ready;
+  }
+
+  /**
+   * Provides the time the next idle step will park, if it parks at all.
+   *
+   * @return
+   *   The park time, in milliseconds.  Zero if the next idle step spins or yields.
+   */
+  @Override
+  public long getYieldTime ()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(getParkTime(_idleSteps.get()));
+  }
+
+  @Override
+  public void idle ()
+      throws InterruptedException
+  {
+    int step = _idleSteps.getAndIncrement();
+    if (step < 0)
+    {
+      // Idle long enough to wrap around; stay at the longest park.
+      _idleSteps.set(Integer.MAX_VALUE);
+    }
+
+    if ((step >= 0) && (step < _spins))
+    {
+      Thread.onSpinWait();
+    }
+    else if ((step >= 0) && (step < _spins + _yields))
+    {
+      Thread.yield();
+    }
+    else
+    {
+      LockSupport.parkNanos(this,getParkTime(step));
+      if (Thread.interrupted())
+      {
+        throw new InterruptedException();
+      }
+    }
+  }
+
+  @Override
+  public void reset ()
+  {
+    if (_idleSteps.get() != 0)
+    {
+      _idleSteps.set(0);
+    }
+  }
+
+  /**
+   * Works out how long the given idle step parks.
+   *
+   * @param step
+   *   The number of idle steps since the last reset.
+   * @return
+   *   The park time, in nanoseconds, or zero if the step doesn't park.
+   */
+  private long getParkTime (int step)
+  {
+    if ((step >= 0) && (step < _spins + _yields))
+    {
+      return 0L;
+    }
+    int doublings = (step < 0 ? Integer.MAX_VALUE : step - _spins - _yields);
+    if (doublings >= Long.numberOfLeadingZeros(_minParkTime) - 1)
+    {
+      return _maxParkTime;
+    }
+    return Math.min(_maxParkTime,_minParkTime << doublings);
+  }
+
+  private final int _spins;
+  private final int _yields;
+  private final long _minParkTime;
+  private final long _maxParkTime;
+  private final AtomicInteger _idleSteps = new AtomicInteger();
+}
@@ -0,0 +1,68 @@
+package xephyrus.sam.core;
+
+/**
+ * A record of a payload which a {@link StateMachine} is no longer processing, as published by a
+ * {@link CompletionPublisher}.  It carries the same information a {@link CompletionListener} is
+ * given.
+ *
+ * @param <S>
+ *   The states of the {@link StateMachine} which processed the payload.
+ * @param <P>
+ *   The {@link Payload} of the {@link StateMachine} which processed the payload.
+ */
+public class Completion<S extends Enum, P extends Payload>
+{
+  /**
+   * Creates a new one of these.
+   *
+   * @param payload
+   *   The payload which is no longer being processed.
+   * @param lastState
+   *   The last state the StateMachine had for this payload.
+   * @param error
+   *   The error which ended processing, if any.
+   */
+  public Completion (P payload, S lastState, Throwable error)
+  {
+    _payload = payload;
+    _lastState = lastState;
+    _error = error;
+  }
+
+  /**
+   * Provides the payload which is no longer being processed.
+   *
+   * @return
+   *   The payload.
+   */
+  public P getPayload ()
+  {
+    return _payload;
+  }
+
+  /**
+   * Provides the last state the StateMachine had for this payload.
+   *
+   * @return
+   *   The last state.
+   */
+  public S getLastState ()
+  {
+    return _lastState;
+  }
+
+  /**
+   * Provides the error which ended processing of the payload.
+   *
+   * @return
+   *   The error, or null if the payload completed normally.
+   */
+  public Throwable getError ()
+  {
+    return _error;
+  }
+
+  private final P _payload;
+  private final S _lastState;
+  private final Throwable _error;
+}
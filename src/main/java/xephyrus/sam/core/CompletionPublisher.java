@@ -0,0 +1,159 @@
+package xephyrus.sam.core;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiPredicate;
+
+/**
+ * <p>
+ *   Publishes a {@link StateMachine}'s completions as a {@link Flow.Publisher} stream, so
+ *   consumers take them at their own pace instead of being called on the worker thread the way
+ *   {@link CompletionListener}s are.  Each subscriber gets its own bounded buffer, and completions
+ *   are delivered on an executor as the subscriber requests them.
+ * </p><p>
+ *   When a subscriber falls so far behind that its buffer fills, the worker publishing the
+ *   completion waits up to the max block time for room; if there's still no room, the completion
+ *   is dropped for that subscriber and counted.  The default max block time is zero, so a slow
+ *   subscriber never holds up state execution.  A longer time pushes back on the machine instead,
+ *   which suits pipelines where nothing may be lost.
+ * </p><p>
+ *   The simplest way to use it is through {@link StateMachine#getCompletionPublisher()}:
+ *   <pre>
+ *     machine.getCompletionPublisher().subscribe(mySubscriber);
+ *   </pre>
+ *   A publisher made directly must also be added with
+ *   {@link StateMachine#addCompletionListener(CompletionListener)}.
+ * </p>
+ *
+ * @param <S>
+ *   The states of the {@link StateMachine} whose completions are published.
+ * @param <P>
+ *   The {@link Payload} of the {@link StateMachine} whose completions are published.
+ */
+public class CompletionPublisher<S extends Enum, P extends Payload>
+  implements CompletionListener<S,P>, Flow.Publisher<Completion<S,P>>, AutoCloseable
+{
+  /**
+   * Creates a new one of these which delivers on the common fork-join pool, buffering up to
+   * {@link Flow#defaultBufferSize()} completions per subscriber.
+   */
+  public CompletionPublisher ()
+  {
+    this(ForkJoinPool.commonPool(),Flow.defaultBufferSize());
+  }
+
+  /**
+   * Creates a new one of these.
+   *
+   * @param executor
+   *   The executor completions are delivered to subscribers on.
+   * @param bufferSize
+   *   The most completions buffered for each subscriber.  This is rounded up to a power of two.
+   */
+  public CompletionPublisher (Executor executor, int bufferSize)
+  {
+    _publisher = new SubmissionPublisher<Completion<S,P>>(executor,bufferSize);
+  }
+
+  @Override
+  public void subscribe (Flow.Subscriber<? super Completion<S,P>> subscriber)
+  {
+    _publisher.subscribe(subscriber);
+  }
+
+  /**
+   * Publishes a completion to every subscriber.  This is called by the {@link StateMachine}.
+   */
+  @Override
+  public void notifyComplete (P payload, S lastState, Throwable error)
+  {
+    if ((_publisher.isClosed()) || (!_publisher.hasSubscribers()))
+    {
+      return;
+    }
+    try
+    {
+      _publisher.offer(new Completion<S,P>(payload,lastState,error),_maxBlockTime,
+          TimeUnit.MILLISECONDS,_onDrop);
+    }
+    catch (IllegalStateException closed)
+    {
+      // Closed since the check above; later completions are ignored.
+    }
+  }
+
+  /**
+   * Provides the longest time a worker waits for room in a subscriber's buffer.
+   *
+   * @return
+   *   The max block time, in milliseconds.
+   */
+  public long getMaxBlockTime ()
+  {
+    return _maxBlockTime;
+  }
+
+  /**
+   * Sets the longest time a worker waits for room in a subscriber's buffer before dropping the
+   * completion for that subscriber.  The default is zero.
+   *
+   * @param maxBlockTime
+   *   The max block time, in milliseconds.
+   */
+  public void setMaxBlockTime (long maxBlockTime)
+  {
+    _maxBlockTime = Math.max(maxBlockTime,0L);
+  }
+
+  /**
+   * Provides the number of completions dropped because a subscriber's buffer was full.  A
+   * completion dropped for several subscribers is counted once for each.
+   *
+   * @return
+   *   The count.
+   */
+  public long getDroppedCount ()
+  {
+    return _droppedCount.get();
+  }
+
+  /**
+   * Provides the number of current subscribers.
+   *
+   * @return
+   *   The count.
+   */
+  public int getSubscriberCount ()
+  {
+    return _publisher.getNumberOfSubscribers();
+  }
+
+  /**
+   * Stops publishing.  Subscribers are told the stream is complete once they've taken what's
+   * already buffered, and later completions are ignored.
+   */
+  @Override
+  public void close ()
+  {
+    _publisher.close();
+  }
+
+  private final SubmissionPublisher<Completion<S,P>> _publisher;
+  private final AtomicLong _droppedCount = new AtomicLong();
+  private final BiPredicate<Flow.Subscriber<? super Completion<S,P>>,Completion<S,P>> _onDrop =
+      new BiPredicate<Flow.Subscriber<? super Completion<S,P>>,Completion<S,P>>()
+      {
+        @Override
+        public boolean test (Flow.Subscriber<? super Completion<S,P>> subscriber,
+            Completion<S,P> completion)
+        {
+          _droppedCount.incrementAndGet();
+          return false;
+        }
+      };
+  private volatile long _maxBlockTime;
+}
@@ -0,0 +1,195 @@
+package xephyrus.sam.core;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ *   Holds payloads which ran out of retries (see {@link RetryPolicy}), along with the state they
+ *   failed in and the last error, so they can be looked into or re-submitted later.
+ * </p><p>
+ *   The store is bounded.  Once it's full, the oldest dead letter is dropped to make room for
+ *   each new one, and the number dropped is counted.  This class is thread safe.
+ * </p>
+ *
+ * @param <S>
+ *   The states of the {@link StateMachine} this store belongs to.
+ * @param <P>
+ *   The {@link Payload} of the {@link StateMachine} this store belongs to.
+ */
+public class DeadLetterStore<S extends Enum, P extends Payload>
+{
+  /**
+   * Creates a new one of these which holds up to 1,000 dead letters.
+   */
+  public DeadLetterStore ()
+  {
+    this(1000);
+  }
+
+  /**
+   * Creates a new one of these which holds up to the given number of dead letters.
+   *
+   * @param capacity
+   *   The most dead letters to hold.
+   */
+  public DeadLetterStore (int capacity)
+  {
+    if (capacity < 1)
+    {
+      throw new IllegalArgumentException("Capacity must be at least 1, not " + capacity);
+    }
+    _capacity = capacity;
+    _letters = new ArrayDeque<DeadLetter<S,P>>(Math.min(capacity,1024));
+  }
+
+  /**
+   * Adds a dead letter, dropping the oldest one if the store is full.
+   *
+   * @param info
+   *   The state and payload which ran out of retries.
+   * @param error
+   *   The error from the last attempt.
+   */
+  public synchronized void add (ProcessInfo<S,P> info, Throwable error)
+  {
+    if (_letters.size() >= _capacity)
+    {
+      _letters.poll();
+      _droppedCount++;
+    }
+    _letters.add(new DeadLetter<S,P>(info,error));
+  }
+
+  /**
+   * Provides the number of dead letters held.
+   *
+   * @return
+   *   The count.
+   */
+  public synchronized int getCount ()
+  {
+    return _letters.size();
+  }
+
+  /**
+   * Provides the number of dead letters dropped because the store was full.
+   *
+   * @return
+   *   The count.
+   */
+  public synchronized long getDroppedCount ()
+  {
+    return _droppedCount;
+  }
+
+  /**
+   * Provides the dead letters held, oldest first, leaving them in the store.
+   *
+   * @return
+   *   A copy of the dead letters.
+   */
+  public synchronized List<DeadLetter<S,P>> getDeadLetters ()
+  {
+    return new ArrayList<DeadLetter<S,P>>(_letters);
+  }
+
+  /**
+   * Removes and provides all the dead letters held, oldest first.
+   *
+   * @return
+   *   The dead letters.
+   */
+  public synchronized List<DeadLetter<S,P>> drain ()
+  {
+    List<DeadLetter<S,P>> letters = new ArrayList<DeadLetter<S,P>>(_letters);
+    _letters.clear();
+    return letters;
+  }
+
+  /**
+   * A payload which ran out of retries.
+   *
+   * @param <S>
+   *   The states of the {@link StateMachine}.
+   * @param <P>
+   *   The {@link Payload} of the {@link StateMachine}.
+   */
+  static public class DeadLetter<S extends Enum, P extends Payload>
+  {
+    DeadLetter (ProcessInfo<S,P> info, Throwable error)
+    {
+      _payload = info.getPayload();
+      _state = info.getState();
+      _attempts = info.getAttempt();
+      _error = error;
+      _time = System.currentTimeMillis();
+    }
+
+    /**
+     * Provides the payload.
+     *
+     * @return
+     *   The payload.
+     */
+    public P getPayload ()
+    {
+      return _payload;
+    }
+
+    /**
+     * Provides the state the payload failed in.
+     *
+     * @return
+     *   The state.
+     */
+    public S getState ()
+    {
+      return _state;
+    }
+
+    /**
+     * Provides how many times the state was tried.
+     *
+     * @return
+     *   The number of attempts.
+     */
+    public int getAttempts ()
+    {
+      return _attempts;
+    }
+
+    /**
+     * Provides the error from the last attempt.
+     *
+     * @return
+     *   The error.
+     */
+    public Throwable getError ()
+    {
+      return _error;
+    }
+
+    /**
+     * Reports when the payload ran out of retries.
+     *
+     * @return
+     *   The millisecond timestamp.
+     */
+    public long getTime ()
+    {
+      return _time;
+    }
+
+    private final P _payload;
+    private final S _state;
+    private final int _attempts;
+    private final Throwable _error;
+    private final long _time;
+  }
+
+  private final int _capacity;
+  private final ArrayDeque<DeadLetter<S,P>> _letters;
+  private long _droppedCount;
+}
@@ -55,6 +55,17 @@ public class DefaultMachineCycleController<S extends Enum, P extends Payload>
     _yieldTime = yieldTime;
   }
 
+  /**
+   * Provides the {@link StateMachine} for which this controller works.
+   *
+   * @return
+   *   The StateMachine.
+   */
+  protected StateMachine<S,P> getMachine ()
+  {
+    return _machine;
+  }
+
   private StateMachine<S,P> _machine;
   private Long _yieldTime;
 }
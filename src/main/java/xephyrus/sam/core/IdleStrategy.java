@@ -0,0 +1,31 @@
+package xephyrus.sam.core;
+
+/**
+ * <p>
+ *   Defines a {@link MachineCycleController} which decides for itself how a {@link StateMachine}
+ *   passes the time when it yields.  A MachineCycleController registered with a StateMachine may
+ *   implement this interface as well.
+ * </p><p>
+ *   When it does, the StateMachine calls {@link #idle()} each time it yields instead of sleeping
+ *   for {@link MachineCycleController#getYieldTime()}.  If the idle step parks the thread, it
+ *   should do so with {@link java.util.concurrent.locks.LockSupport} so that a machine waking on
+ *   queue (see {@link StateMachine#setWakeOnQueue(boolean)}) is woken as soon as work arrives.
+ * </p>
+ */
+public interface IdleStrategy
+{
+  /**
+   * Passes one idle step.  This is called each time the {@link StateMachine} yields, and
+   * successive calls may wait longer and longer until {@link #reset()} is called.
+   *
+   * @throws InterruptedException
+   *   If the machine thread is interrupted while idle.
+   */
+  void idle ()
+      throws InterruptedException;
+
+  /**
+   * Notes that there's work again, so the next idle step starts over from the shortest wait.
+   */
+  void reset ();
+}
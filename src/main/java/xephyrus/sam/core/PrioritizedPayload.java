@@ -0,0 +1,24 @@
+package xephyrus.sam.core;
+
+/**
+ * <p>
+ *   A payload which carries its own priority.  Payloads may implement this, instead of just
+ *   {@link Payload}, when some payloads are more urgent than others.
+ * </p><p>
+ *   Priority is handled in the {@link xephyrus.sam.core.queue.ProcessingQueue}.  Support for
+ *   this depends upon the implementation of the ProcessingQueue.  See
+ *   {@link xephyrus.sam.core.queue.PriorityProcessingQueue}.
+ * </p>
+ */
+public interface PrioritizedPayload
+  extends Payload
+{
+  /**
+   * Provides the priority of this payload.  Higher numbers are more urgent.  This is added to the
+   * priority of whatever state the payload is in.
+   *
+   * @return
+   *   The priority.
+   */
+  int getPriority ();
+}
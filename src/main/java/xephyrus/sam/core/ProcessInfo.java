@@ -20,10 +20,90 @@ public class ProcessInfo<S extends Enum, P extends Payload>
    *   The state.
    */
   public ProcessInfo (P payload, S state)
+  {
+    this(payload,state,0);
+  }
+
+  /**
+   * Creates a new one of these with the given payload, state and state priority.
+   *
+   * @param payload
+   *   The payload.
+   * @param state
+   *   The state.
+   * @param priority
+   *   The priority of the state.  Higher numbers are more urgent.
+   */
+  public ProcessInfo (P payload, S state, int priority)
+  {
+    this(payload,state,priority,1);
+  }
+
+  /**
+   * Creates a new one of these with the given payload, state, state priority and attempt number.
+   * This is used when a failed state is retried (see {@link RetryPolicy}).
+   *
+   * @param payload
+   *   The payload.
+   * @param state
+   *   The state.
+   * @param priority
+   *   The priority of the state.  Higher numbers are more urgent.
+   * @param attempt
+   *   Which attempt at the state this is, starting from 1.
+   */
+  public ProcessInfo (P payload, S state, int priority, int attempt)
+  {
+    this(payload,state,priority,attempt,System.currentTimeMillis());
+  }
+
+  /**
+   * Creates a new one of these with everything given, including when the payload was last
+   * processed.  This lets a batch of these share one timestamp.
+   *
+   * @param payload
+   *   The payload.
+   * @param state
+   *   The state.
+   * @param priority
+   *   The priority of the state.  Higher numbers are more urgent.
+   * @param attempt
+   *   Which attempt at the state this is, starting from 1.
+   * @param lastCycle
+   *   The millisecond timestamp of when this payload was last processed.
+   */
+  public ProcessInfo (P payload, S state, int priority, int attempt, long lastCycle)
+  {
+    this(payload,state,priority,attempt,lastCycle,false);
+  }
+
+  /**
+   * Creates a new one of these with everything given, including whether the payload holds a
+   * place in its {@link StateMachine}.  This is used by the machine for the payloads it accepts,
+   * and by {@link xephyrus.sam.core.queue.ProcessingQueue}s which rebuild their items.
+   *
+   * @param payload
+   *   The payload.
+   * @param state
+   *   The state.
+   * @param priority
+   *   The priority of the state.  Higher numbers are more urgent.
+   * @param attempt
+   *   Which attempt at the state this is, starting from 1.
+   * @param lastCycle
+   *   The millisecond timestamp of when this payload was last processed.
+   * @param admitted
+   *   Whether the payload counts against the machine's capacity.
+   */
+  public ProcessInfo (P payload, S state, int priority, int attempt, long lastCycle,
+      boolean admitted)
   {
     _payload = payload;
     _state = state;
-    _lastCycle = System.currentTimeMillis();
+    _priority = priority;
+    _attempt = attempt;
+    _lastCycle = lastCycle;
+    _admitted = admitted;
   }
 
   /**
@@ -50,17 +130,60 @@ public class ProcessInfo<S extends Enum, P extends Payload>
 
   /**
    * Reports when this set of info was created, which indicates when this payload was last
-   * processed.
+   * processed.  For an item the {@link StateMachine} is holding back, this is in the future; see
+   * {@link xephyrus.sam.core.queue.ProcessingQueueUtils#isProcessInfoWaiting(ProcessInfo)}.
    *
    * @return
    *   The millisecond timestamp of when this payload was last processed.
    */
-  public Long getLastCycle ()
+  public long getLastCycle ()
   {
     return _lastCycle;
   }
 
+  /**
+   * Provides the priority of the state in this set of info, as registered with the
+   * {@link StateMachine}.  This doesn't include any priority from the payload itself.
+   *
+   * @return
+   *   The state priority.  Higher numbers are more urgent.
+   */
+  public int getPriority ()
+  {
+    return _priority;
+  }
+
+  /**
+   * Reports which attempt at the state this is.  This is 1 unless the state failed and is being
+   * retried (see {@link RetryPolicy}).
+   *
+   * @return
+   *   The attempt number, starting from 1.
+   */
+  public int getAttempt ()
+  {
+    return _attempt;
+  }
+
+  /**
+   * Reports whether the payload counts against its {@link StateMachine}'s capacity (see
+   * {@link StateMachine#setCapacity(int)}).  This is true for payloads accepted through
+   * {@link StateMachine#process(Payload)} and its kin, and carries over from state to state, so
+   * the machine frees the payload's place when it completes.  Items added straight to the
+   * processing queue never took a place, so completing them frees nothing.
+   *
+   * @return
+   *   If the payload holds a place in the machine, true; otherwise false.
+   */
+  public boolean isAdmitted ()
+  {
+    return _admitted;
+  }
+
   private P _payload;
   private S _state;
-  private Long _lastCycle;
+  private long _lastCycle;
+  private int _priority;
+  private int _attempt;
+  private boolean _admitted;
 }
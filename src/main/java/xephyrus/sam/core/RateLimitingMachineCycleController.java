@@ -0,0 +1,149 @@
+package xephyrus.sam.core;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>
+ *   A controller for governing the processing cycle of {@link StateMachine}s which limits how
+ *   often individual states may be processed.  For example, a state which calls a throttled
+ *   downstream service can be limited to that service's rate, without the state method having to
+ *   sleep and hold onto a worker thread.
+ * </p><p>
+ *   Each limited state gets its own {@link TokenBucket}.  Items popped off the queue in a limited
+ *   state are only handed to a state worker when there's a token for them; otherwise they're
+ *   held back in the queue, each until its own turn at the bucket's tokens comes round (see
+ *   {@link TokenBucket#reserve()}), and the machine moves on to the next item, so items in other
+ *   states aren't held up behind them.  Once nothing in the queue is ready, the machine yields
+ *   until the next token is due for any of the states it held back.  A limited state which would
+ *   be executed inline, or continued locally by the thread pool, takes a token just the same, and
+ *   a token taken for an item the thread pool then turns away is given back.
+ * </p><p>
+ *   Otherwise this behaves just like the {@link DefaultMachineCycleController}.
+ * </p>
+ *
+ * @param <S>
+ *   The states of the {@link StateMachine} for which this controller will work.
+ * @param <P>
+ *   The {@link Payload} of the {@link StateMachine} for which this controller will work.
+ */
+public class RateLimitingMachineCycleController<S extends Enum, P extends Payload>
+  extends DefaultMachineCycleController<S,P>
+  implements StateDispatchController
+{
+  /**
+   * Constructs a new one of these for the given {@link StateMachine}.
+   *
+   * @param machine
+   *   The StateMachine for which this controller works.
+   */
+  public RateLimitingMachineCycleController (StateMachine<S,P> machine)
+  {
+    super(machine);
+  }
+
+  /**
+   * Limits how often the given state may be processed, allowing bursts of up to one second's
+   * worth of permits.
+   *
+   * @param state
+   *   The state to limit.
+   * @param permitsPerSecond
+   *   The most times per second the state may be processed.
+   */
+  public void setRateLimit (S state, double permitsPerSecond)
+  {
+    setRateLimit(state,permitsPerSecond,Math.max(1,(int) permitsPerSecond));
+  }
+
+  /**
+   * Limits how often the given state may be processed.
+   *
+   * @param state
+   *   The state to limit.
+   * @param permitsPerSecond
+   *   The most times per second the state may be processed.
+   * @param burst
+   *   The most times the state may be processed at once after a quiet spell.
+   */
+  public void setRateLimit (S state, double permitsPerSecond, int burst)
+  {
+    _limits.put(state,new TokenBucket(permitsPerSecond,burst));
+  }
+
+  /**
+   * Removes any limit on how often the given state may be processed.
+   *
+   * @param state
+   *   The state to stop limiting.
+   */
+  public void removeRateLimit (S state)
+  {
+    TokenBucket limit = _limits.remove(state);
+    if (limit != null)
+    {
+      _deferring.remove(limit);
+    }
+  }
+
+  @Override
+  public boolean shouldDispatch (ProcessInfo<?,?> item)
+  {
+    TokenBucket limit = _limits.get(item.getState());
+    return ((limit == null) || (limit.tryAcquire()));
+  }
+
+  @Override
+  public void cancelDispatch (ProcessInfo<?,?> item)
+  {
+    TokenBucket limit = _limits.get(item.getState());
+    if (limit != null)
+    {
+      limit.release();
+    }
+  }
+
+  @Override
+  public long getDeferTime (ProcessInfo<?,?> item)
+  {
+    TokenBucket limit = _limits.get(item.getState());
+    if (limit == null)
+    {
+      return 0L;
+    }
+    long deferTime = Math.max(1L,limit.reserve());
+    _deferring.put(limit,System.currentTimeMillis() + deferTime);
+    return deferTime;
+  }
+
+  /**
+   * Provides the amount of time for which the {@link StateMachine} should sleep each time it
+   * yields: the usual yield time, cut short to when the next token is due for any state which
+   * still has items held back.
+   *
+   * @return
+   *   The number of milliseconds for the StateMachine to sleep.
+   */
+  @Override
+  public long getYieldTime ()
+  {
+    long yieldTime = super.getYieldTime();
+    long now = System.currentTimeMillis();
+    for (Map.Entry<TokenBucket,Long> deferring: _deferring.entrySet())
+    {
+      if (deferring.getValue() < now)
+      {
+        // Everything held back for this state has been offered again since.
+        _deferring.remove(deferring.getKey(),deferring.getValue());
+      }
+      else
+      {
+        yieldTime = Math.min(yieldTime,Math.max(1L,deferring.getKey().getWaitTime()));
+      }
+    }
+    return yieldTime;
+  }
+
+  private final Map<Enum,TokenBucket> _limits = new ConcurrentHashMap<Enum,TokenBucket>();
+  private final Map<TokenBucket,Long> _deferring = new ConcurrentHashMap<TokenBucket,Long>();
+}
@@ -0,0 +1,203 @@
+package xephyrus.sam.core;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * <p>
+ *   Describes how a state is retried when its worker method fails.  A failure is retried if it's
+ *   one of the retryable error types and the state hasn't yet been tried the maximum number of
+ *   times for the payload.
+ * </p><p>
+ *   Retries aren't run by sleeping in the state worker.  Instead the payload is put back onto the
+ *   queue, in the same state, held back as a waiting item until the backoff delay has passed, and
+ *   the worker thread is free to work on other payloads in the meantime.  The delay starts at the
+ *   backoff and is multiplied for each further retry, up to the maximum backoff, and each delay
+ *   is spread randomly by the jitter so a burst of failures doesn't all retry at the same moment.
+ * </p><p>
+ *   When the retries run out, processing of the payload ends with the last error, as it would
+ *   without a retry policy, and the payload is also put into the machine's
+ *   {@link DeadLetterStore}, if it has one.
+ * </p>
+ */
+public class RetryPolicy
+{
+  /**
+   * Creates a new one of these which retries any {@link Exception}, doubling the delay for each
+   * retry up to a minute, with 20% jitter.
+   *
+   * @param maxAttempts
+   *   The most times the state is tried for a payload, including the first.
+   * @param backoff
+   *   The delay before the first retry, in milliseconds.
+   */
+  @SuppressWarnings({"unchecked"})
+  public RetryPolicy (int maxAttempts, long backoff)
+  {
+    if (maxAttempts < 1)
+    {
+      throw new IllegalArgumentException("Max attempts must be at least 1, not " + maxAttempts);
+    }
+    _maxAttempts = maxAttempts;
+    _backoff = Math.max(backoff,0L);
+    _retryOn = new Class[] {Exception.class};
+  }
+
+  /**
+   * Provides the most times the state is tried for a payload, including the first.
+   *
+   * @return
+   *   The maximum attempts.
+   */
+  public int getMaxAttempts ()
+  {
+    return _maxAttempts;
+  }
+
+  /**
+   * Provides the delay before the first retry.
+   *
+   * @return
+   *   The backoff, in milliseconds.
+   */
+  public long getBackoff ()
+  {
+    return _backoff;
+  }
+
+  /**
+   * Provides the longest delay before any retry.
+   *
+   * @return
+   *   The maximum backoff, in milliseconds.
+   */
+  public long getMaxBackoff ()
+  {
+    return _maxBackoff;
+  }
+
+  /**
+   * Sets the longest delay before any retry.  The default is a minute.
+   *
+   * @param maxBackoff
+   *   The maximum backoff, in milliseconds.
+   */
+  public void setMaxBackoff (long maxBackoff)
+  {
+    _maxBackoff = Math.max(maxBackoff,0L);
+  }
+
+  /**
+   * Provides how much the delay grows with each retry.
+   *
+   * @return
+   *   The backoff multiplier.
+   */
+  public double getMultiplier ()
+  {
+    return _multiplier;
+  }
+
+  /**
+   * Sets how much the delay grows with each retry.  The default is 2, doubling the delay each
+   * time; 1 keeps the delay fixed.
+   *
+   * @param multiplier
+   *   The backoff multiplier.
+   */
+  public void setMultiplier (double multiplier)
+  {
+    _multiplier = Math.max(multiplier,1.0);
+  }
+
+  /**
+   * Provides how much each delay is randomly spread.
+   *
+   * @return
+   *   The jitter, as a fraction of the delay.
+   */
+  public double getJitter ()
+  {
+    return _jitter;
+  }
+
+  /**
+   * Sets how much each delay is randomly spread.  A jitter of 0.2 makes each delay anywhere from
+   * 20% shorter to 20% longer than it would otherwise be.  The default is 0.2.
+   *
+   * @param jitter
+   *   The jitter, as a fraction of the delay, from 0 to 1.
+   */
+  public void setJitter (double jitter)
+  {
+    _jitter = Math.min(Math.max(jitter,0.0),1.0);
+  }
+
+  /**
+   * Provides the kinds of errors which are worth retrying.
+   *
+   * @return
+   *   The retryable error types.
+   */
+  public Class<? extends Throwable>[] getRetryOn ()
+  {
+    return _retryOn.clone();
+  }
+
+  /**
+   * Sets the kinds of errors which are worth retrying.  Any error which is an instance of one of
+   * these is retried.  The default is any {@link Exception}.
+   *
+   * @param retryOn
+   *   The retryable error types.
+   */
+  @SafeVarargs
+  public final void setRetryOn (Class<? extends Throwable>... retryOn)
+  {
+    _retryOn = retryOn.clone();
+  }
+
+  /**
+   * Reports whether the given error is one of the retryable kinds.
+   *
+   * @param error
+   *   The error the state failed with.
+   * @return
+   *   If the error is worth retrying, true; otherwise false.
+   */
+  public boolean isRetryable (Throwable error)
+  {
+    for (Class<? extends Throwable> type: _retryOn)
+    {
+      if (type.isInstance(error))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Works out the delay before retrying after the given attempt, including jitter.
+   *
+   * @param attempt
+   *   The attempt which just failed, starting from 1.
+   * @return
+   *   The delay, in milliseconds.
+   */
+  public long getDelay (int attempt)
+  {
+    double delay = Math.min(_backoff * Math.pow(_multiplier,Math.max(attempt - 1,0)),_maxBackoff);
+    if (_jitter > 0.0)
+    {
+      delay *= 1.0 + (_jitter * ((ThreadLocalRandom.current().nextDouble() * 2.0) - 1.0));
+    }
+    return Math.round(delay);
+  }
+
+  private final int _maxAttempts;
+  private final long _backoff;
+  private long _maxBackoff = 60000L;
+  private double _multiplier = 2.0;
+  private double _jitter = 0.2;
+  private Class<? extends Throwable>[] _retryOn;
+}
@@ -0,0 +1,58 @@
+package xephyrus.sam.core;
+
+/**
+ * <p>
+ *   Defines a {@link MachineCycleController} which also decides, item by item, whether each item
+ *   popped off the queue should be handed to a state worker now or deferred.  A
+ *   MachineCycleController registered with a {@link StateMachine} may implement this interface
+ *   as well.
+ * </p><p>
+ *   A deferred item is pushed back onto the queue as a waiting item, held back for as long as
+ *   {@link #getDeferTime(ProcessInfo)} says, and the machine carries on with the next ready item.
+ *   So items held back by one state don't hold up items in other states behind them, and the
+ *   machine doesn't pick the deferred item up again until it might be dispatched.  Deferred items
+ *   don't count as handed off, so once everything left in the queue has been deferred, the
+ *   machine yields, for no longer than the controller's yield time.
+ * </p><p>
+ *   A next state which would otherwise skip the queue, by being executed inline or continued
+ *   locally by the thread pool, is checked here first too, and goes through the queue if it
+ *   isn't allowed.
+ * </p>
+ */
+public interface StateDispatchController
+{
+  /**
+   * Reports whether the {@link StateMachine} should hand the given item to a state worker now.
+   *
+   * @param item
+   *   The item popped off the queue.
+   * @return
+   *   If the item should be processed now, true; if it should be pushed back onto the queue,
+   *   false.
+   */
+  boolean shouldDispatch (ProcessInfo<?,?> item);
+
+  /**
+   * Provides how long an item which was just deferred should be held back before it's offered
+   * again.
+   *
+   * @param item
+   *   The item which was deferred.
+   * @return
+   *   The time to hold the item back, in milliseconds.  Zero puts it straight back into the
+   *   queue, ready.
+   */
+  long getDeferTime (ProcessInfo<?,?> item);
+
+  /**
+   * Tells the controller that an item it just allowed through {@link #shouldDispatch(ProcessInfo)}
+   * wasn't processed after all, because the thread pool had no room for it, so anything taken
+   * for it can be given back.  By default this does nothing.
+   *
+   * @param item
+   *   The item which went back onto the queue.
+   */
+  default void cancelDispatch (ProcessInfo<?,?> item)
+  {
+  }
+}
@@ -0,0 +1,26 @@
+package xephyrus.sam.core;
+
+/**
+ * <p>
+ *   A compiled state worker method.  When a method is registered for a state with the
+ *   {@link StateMachine}, it's compiled into one of these so the state worker can call it
+ *   directly rather than going through reflection for every state it executes.
+ * </p><p>
+ *   Any exception thrown by the worker method is thrown straight through, without being wrapped.
+ * </p>
+ */
+public interface StateHandler
+{
+  /**
+   * Executes the worker method for a state.
+   *
+   * @param payload
+   *   The payload being processed.
+   * @return
+   *   Whatever the worker method returned, which is normally the next state.
+   * @throws Throwable
+   *   Whatever the worker method threw.
+   */
+  Object handle (Object payload)
+      throws Throwable;
+}
@@ -0,0 +1,139 @@
+package xephyrus.sam.core;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaConversionException;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+
+/**
+ * Compiles state worker methods into {@link StateHandler}s.
+ */
+final class StateHandlers
+{
+  /**
+   * <p>
+   *   Compiles the given worker method, bound to the given machine object, into a handler.
+   * </p><p>
+   *   Where possible this spins up a lambda which calls the method directly, which the JIT can
+   *   inline like any other call.  If the method can't be linked that way (for example, when it
+   *   returns a primitive), this falls back to a bound method handle.
+   * </p>
+   *
+   * @param machine
+   *   The object the worker method is called on.
+   * @param method
+   *   The worker method.  The signature must be <pre>S method (P payload)</pre>.
+   * @return
+   *   The compiled handler.
+   * @throws InvalidStateDeclarationException
+   *   If the method doesn't have the right shape, or can't be called on the machine object.
+   */
+  static StateHandler compile (Object machine, Method method)
+  {
+    if (method.getParameterTypes().length != 1)
+    {
+      throw new InvalidStateDeclarationException("Method " + method.getName() + " must take " +
+          "exactly one parameter, the payload.");
+    }
+    if (!method.getDeclaringClass().isInstance(machine) &&
+        !Modifier.isStatic(method.getModifiers()))
+    {
+      throw new InvalidStateDeclarationException("Method " + method.getName() + " is declared " +
+          "in " + method.getDeclaringClass().getCanonicalName() + ", which the machine " +
+          machine.getClass().getCanonicalName() + " is not.");
+    }
+
+    try
+    {
+      return compileLambda(machine,method);
+    }
+    catch (ReflectiveOperationException | LambdaConversionException | RuntimeException cant)
+    {
+      try
+      {
+        return compileMethodHandle(machine,method);
+      }
+      catch (IllegalAccessException | RuntimeException stillCant)
+      {
+        throw new InvalidStateDeclarationException("Method " + method.getName() + " could not " +
+            "be compiled into a state handler.",stillCant);
+      }
+    }
+  }
+
+  /**
+   * Compiles the worker method into a lambda which calls it directly.  The lambda is defined with
+   * the lookup of the class declaring the method, so it resolves the machine and payload types
+   * through that class's loader, and it can call the method even if it isn't public.  A class
+   * from another loader (a webapp or plugin, say) is in another module, where that lookup isn't
+   * allowed to define the lambda, so it's refused here, leaving it to the method handle.
+   */
+  static private StateHandler compileLambda (Object machine, Method method)
+      throws ReflectiveOperationException, LambdaConversionException
+  {
+    if (method.getReturnType().isPrimitive())
+    {
+      throw new IllegalArgumentException("Primitive return types are left to method handles");
+    }
+
+    MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(method.getDeclaringClass(),
+        MethodHandles.lookup());
+    MethodHandle target = lookup.unreflect(method);
+    boolean bound = !Modifier.isStatic(method.getModifiers());
+    CallSite site = LambdaMetafactory.metafactory(lookup,"handle",
+        (bound ?
+            MethodType.methodType(StateHandler.class,method.getDeclaringClass()) :
+            MethodType.methodType(StateHandler.class)),
+        MethodType.methodType(Object.class,Object.class),
+        target,
+        MethodType.methodType(method.getReturnType(),method.getParameterTypes()[0]));
+    MethodHandle factory = site.getTarget();
+    try
+    {
+      return (bound ?
+          (StateHandler) factory.invoke(machine) :
+          (StateHandler) factory.invoke());
+    }
+    catch (RuntimeException | Error cant)
+    {
+      throw cant;
+    }
+    catch (Throwable cant)
+    {
+      // The factory only constructs the lambda, so it has nothing checked to throw.
+      throw new IllegalStateException("Lambda factory for " + method.getName() + " failed",cant);
+    }
+  }
+
+  /**
+   * Compiles the worker method into a bound method handle.
+   */
+  static private StateHandler compileMethodHandle (Object machine, Method method)
+      throws IllegalAccessException
+  {
+    method.setAccessible(true);
+    MethodHandle target = MethodHandles.lookup().unreflect(method);
+    if (!Modifier.isStatic(method.getModifiers()))
+    {
+      target = target.bindTo(machine);
+    }
+    final MethodHandle handle = target.asType(MethodType.methodType(Object.class,Object.class));
+    return new StateHandler()
+    {
+      @Override
+      public Object handle (Object payload)
+          throws Throwable
+      {
+        return (Object) handle.invokeExact(payload);
+      }
+    };
+  }
+
+  private StateHandlers ()
+  {
+  }
+}
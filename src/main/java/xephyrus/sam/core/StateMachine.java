@@ -23,23 +23,40 @@
  */
 package xephyrus.sam.core;
 
+import xephyrus.sam.core.annotations.RetryableState;
 import xephyrus.sam.core.annotations.StartingState;
 import xephyrus.sam.core.annotations.StateMachineState;
+import xephyrus.sam.core.executor.CapacityReportingExecutor;
+import xephyrus.sam.core.executor.ContinuationExecutor;
+import xephyrus.sam.core.executor.LaneFullException;
+import xephyrus.sam.core.queue.ConcurrentProcessingQueue;
+import xephyrus.sam.core.queue.IndexedProcessingQueue;
+import xephyrus.sam.core.queue.JournalProcessingQueue;
 import xephyrus.sam.core.queue.ProcessingQueue;
 import xephyrus.sam.core.queue.ProcessingQueueException;
+import xephyrus.sam.core.queue.ProcessingQueueUtils;
 
-import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The base for all state machines.  Every state machine must extend from this class.
@@ -100,6 +117,38 @@ public class StateMachine<S extends Enum, P extends Payload>
     YIELD
   }
 
+  /**
+   * A strongly-typed list of what {@link #process(Payload)} can do with a payload when the
+   * machine is already at capacity.  See {@link #setCapacity(int)}.
+   */
+  public enum OverflowPolicy
+  {
+    /**
+     * Wait until there's room.
+     */
+    BLOCK,
+
+    /**
+     * Execute the payload's start state on the calling thread.  The payload then carries on
+     * through the machine as usual, which may leave the machine briefly over capacity, but it
+     * slows the caller down the same way blocking would.
+     */
+    CALLER_RUNS,
+
+    /**
+     * Drop the oldest item in the queue to make room.  The dropped payload is reported to the
+     * completion listeners with an error.  If there's nothing in the queue to drop, the new
+     * payload is rejected.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Reject the payload.  It's reported to the state cycle and completion listeners with an
+     * error, as though it couldn't be queued.
+     */
+    REJECT
+  }
+
   /**
    * A strongly-typed list of the possible triggers from within the state worker executor.
    */
@@ -110,6 +159,28 @@ public class StateMachine<S extends Enum, P extends Payload>
     ERROR
   }
 
+  /**
+   * What became of an item the machine tried to hand to a state worker.
+   */
+  enum Handoff
+  {
+    /**
+     * The item was handed to a state worker.
+     */
+    HANDED,
+
+    /**
+     * The item was held back in the queue, either by the machine cycle controller or because
+     * the lane of the pool it has to go to was full.
+     */
+    DEFERRED,
+
+    /**
+     * The thread pool had no room for the item, and it went back onto the queue.
+     */
+    REFUSED
+  }
+
   /**
    * The executor for the state workers.  This thread handles execution of a single state worker
    * execution on a single payload.
@@ -130,40 +201,288 @@ public class StateMachine<S extends Enum, P extends Payload>
     }
 
     /**
-     * The state worker executor process.
+     * The state worker executor process.  This executes the state for the wrapped payload and, if
+     * inline chaining is enabled (see {@link #setMaxInlineHops(int)}), keeps executing the states
+     * that follow until a limit is hit, at which point the next state goes back onto the queue.
      */
-    @SuppressWarnings({"unchecked"})
     @Override
     public void run ()
     {
+      ProcessInfo<S,P> info = _info;
+      int hops = 0;
+      long started = System.nanoTime();
+      try
+      {
+        while (info != null)
+        {
+          info = execute(info,++hops,started);
+        }
+      }
+      finally
+      {
+        if (!(_threadPool instanceof CapacityReportingExecutor))
+        {
+          // A pool which queues its work has already freed this worker's slot, when it was
+          // taken off the pool's queue.  A pool which hands work straight to its threads hasn't
+          // yet, but anyone waiting on one of those is handing its item straight over instead
+          // (see awaitCapacity).  A pool which frees the slot only after this returns says so
+          // itself (see _capacityListener).
+          signalCapacity();
+        }
+      }
+    }
+
+    /**
+     * Executes a single state for a payload.
+     * <p>
+     *   If the state method returns a {@link CompletionStage} rather than the next state, the
+     *   rest of the step (the transition, the after state cycle, and completion) is put off until
+     *   the stage completes, and this worker is free straight away.
+     * </p><p>
+     *   The payload is completed outside the handling of state failures, so a completion
+     *   listener which throws isn't taken for the state failing, which would complete the payload
+     *   a second time.
+     * </p>
+     *
+     * @param info
+     *   The state and payload to execute.
+     * @param hops
+     *   How many states this worker has executed, including this one.
+     * @param started
+     *   When this worker started, in {@link System#nanoTime()} terms.
+     *
+     * @return
+     *   The next state and payload, if it should be executed inline by this worker; otherwise
+     *   null, meaning the payload has either completed, been pushed back onto the queue, or is
+     *   waiting on an asynchronous state method.
+     */
+    @SuppressWarnings({"unchecked"})
+    private ProcessInfo<S,P> execute (ProcessInfo<S,P> info, int hops, long started)
+    {
+      StateHandler handler = _handlers[info.getState().ordinal()];
+      if (handler == null)
+      {
+        complete(info,null);
+        return null;
+      }
+
+      S afterState;
+      ProcessInfo<S,P> inline;
       try
       {
-        Method method = _stateMap.get(_info.getState());
-        S afterState = null;
-        if (method != null)
+        triggerStateCycle(StateCycles.BEFORE, info.getState(), info.getPayload());
+        long timeout = _stateTimeouts[info.getState().ordinal()];
+        StateTimeout timer = (timeout > 0L ? new StateTimeout(info,timeout) : null);
+        Object result;
+        try
         {
-          triggerStateCycle(StateCycles.BEFORE, _info.getState(), _info.getPayload());
-          afterState = (S) method.invoke(_machine, _info.getPayload());
-          if (afterState != null)
+          result = handler.handle(info.getPayload());
+        }
+        catch (Throwable cant)
+        {
+          if ((timer != null) && (!timer.finish()))
           {
-            _processingQueue.push(new ProcessInfo<S,P>(_info.getPayload(),afterState));
+            return null;
           }
-          triggerStateCycle(StateCycles.AFTER,afterState, _info.getPayload());
+          throw cant;
+        }
+
+        if (result instanceof CompletionStage)
+        {
+          resumeLater(info,(CompletionStage<?>) result,timer);
+          return null;
         }
-        if ((method == null) || (afterState == null))
+        if ((timer != null) && (!timer.finish()))
         {
-          triggerNotifyComplete(_info.getPayload(), _info.getState(),null);
+          return null;
         }
+        afterState = (S) result;
+        inline = transition(info,afterState,hops,started);
       }
       catch (Throwable cant)
       {
-        triggerStateCycle(StateCycles.ERROR, _info.getState(), _info.getPayload(),
-            (cant instanceof InvocationTargetException ?
-                ((InvocationTargetException) cant).getTargetException() : cant));
-        triggerNotifyComplete(_info.getPayload(), _info.getState(),
-            (cant instanceof InvocationTargetException ?
-                ((InvocationTargetException) cant).getTargetException() : cant));
+        fail(info,cant);
+        return null;
+      }
+
+      if (afterState == null)
+      {
+        complete(info,null);
+      }
+      return inline;
+    }
+
+    /**
+     * Moves a payload on from the state it just finished.  The next state is either handed back
+     * to be executed inline, continued locally, or pushed onto the queue.  If there is no next
+     * state, it's up to the caller to complete the payload, once it's past handling failures of
+     * the state.
+     *
+     * @param info
+     *   The state and payload which just finished.
+     * @param afterState
+     *   The next state, or null if processing of the payload is done.
+     * @param hops
+     *   How many states this worker has executed, including the one which just finished.  Zero
+     *   means the next state mustn't be executed inline.
+     * @param started
+     *   When this worker started, in {@link System#nanoTime()} terms.
+     * @return
+     *   The next state and payload, if it should be executed inline by this worker; otherwise
+     *   null.
+     * @throws ProcessingQueueException
+     *   If the next state can't be pushed onto the queue.
+     */
+    private ProcessInfo<S,P> transition (ProcessInfo<S,P> info, S afterState, int hops,
+        long started)
+        throws ProcessingQueueException
+    {
+      ProcessInfo<S,P> inline = null;
+      if (afterState != null)
+      {
+        TransitionLog log = _transitionLog;
+        if (log != null)
+        {
+          log.record(TransitionLog.Kind.TRANSITION,info.getPayload().getId(),info.getState(),
+              afterState);
+        }
+        ProcessInfo<S,P> next = newProcessInfo(info.getPayload(),afterState,info.isAdmitted());
+        if ((hops > 0) && (isInlineable(next,hops,started)))
+        {
+          journal(next);
+          inline = next;
+        }
+        else if (!continueLocally(next))
+        {
+          _processingQueue.push(next);
+          signalDispatcher();
+        }
+      }
+      triggerStateCycle(StateCycles.AFTER,afterState, info.getPayload());
+      return inline;
+    }
+
+    /**
+     * Finishes a state step once an asynchronous state method's result is ready.  This runs on
+     * whichever thread completes the stage, so the next state always goes through the queue (or
+     * a local continuation) rather than being executed inline.
+     *
+     * @param info
+     *   The state and payload being executed.
+     * @param stage
+     *   The result of the state method.
+     * @param timer
+     *   The timeout for the state, if it has one.
+     */
+    private void resumeLater (final ProcessInfo<S,P> info, CompletionStage<?> stage,
+        final StateTimeout timer)
+    {
+      if ((timer != null) && (!timer.detach(stage)))
+      {
+        return;
+      }
+      stage.whenComplete(new BiConsumer<Object,Throwable>()
+      {
+        @Override
+        @SuppressWarnings({"unchecked"})
+        public void accept (Object result, Throwable error)
+        {
+          if ((timer != null) && (!timer.finish()))
+          {
+            return;
+          }
+          if (error != null)
+          {
+            fail(info,((error instanceof CompletionException) && (error.getCause() != null) ?
+                error.getCause() : error));
+            return;
+          }
+
+          S afterState = (S) result;
+          try
+          {
+            transition(info,afterState,0,0L);
+          }
+          catch (Throwable cant)
+          {
+            fail(info,cant);
+            return;
+          }
+          if (afterState == null)
+          {
+            complete(info,null);
+          }
+        }
+      });
+    }
+
+    /**
+     * Offers the next state to the thread pool, if it can take it directly from this worker.
+     * States which are still waiting always go back through the queue, as do states the machine
+     * cycle controller won't let through right now (see {@link StateDispatchController}).
+     *
+     * @return
+     *   If the thread pool took the next state, true; otherwise false.
+     * @throws ProcessingQueueException
+     *   If the next state can't be journalled.
+     */
+    private boolean continueLocally (ProcessInfo<S,P> next)
+        throws ProcessingQueueException
+    {
+      ExecutorService threadPool = _threadPool;
+      if ((!(threadPool instanceof ContinuationExecutor)) ||
+          (_stopRequested) ||
+          (ProcessingQueueUtils.isProcessInfoWaiting(next)))
+      {
+        return false;
+      }
+      journal(next);
+      if (!mayDispatch(next))
+      {
+        return false;
+      }
+      if (((ContinuationExecutor) threadPool).continueLocally(new StateWorker(next)))
+      {
+        return true;
       }
+      cancelDispatch(next);
+      return false;
+    }
+
+    /**
+     * Journals a next state which may not go back through the queue, if the queue keeps a
+     * journal, so the payload is recovered in that state rather than the one it was last queued
+     * in.  This has to happen before the next state starts, so its completion is journalled after
+     * it.
+     *
+     * @throws ProcessingQueueException
+     *   If the journal can't take the record.
+     */
+    @SuppressWarnings({"unchecked"})
+    private void journal (ProcessInfo<S,P> next)
+        throws ProcessingQueueException
+    {
+      ProcessingQueue<S,P> queue = _processingQueue;
+      if (queue instanceof JournalProcessingQueue)
+      {
+        ((JournalProcessingQueue<S,P>) queue).recordTransition(next);
+      }
+    }
+
+    /**
+     * Reports whether the next state should be executed inline by this worker rather than going
+     * back through the queue.  States which are still waiting never are, nor are states the
+     * machine cycle controller won't let through right now (see
+     * {@link StateDispatchController}).
+     */
+    private boolean isInlineable (ProcessInfo<S,P> next, int hops, long started)
+    {
+      return ((hops <= _maxInlineHops) &&
+          (!_stopRequested) &&
+          ((_inlineTimeSlice <= 0L) ||
+              (System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(_inlineTimeSlice))) &&
+          (!ProcessingQueueUtils.isProcessInfoWaiting(next)) &&
+          (mayDispatch(next)));
     }
 
     /**
@@ -180,6 +499,164 @@ public class StateMachine<S extends Enum, P extends Payload>
     private ProcessInfo<S,P> _info;
   }
 
+  /**
+   * Times a single state execution for a payload.  If the state method is still running when the
+   * timeout expires, this interrupts the worker thread and fails the state with a
+   * {@link StateTimeoutException}.  The worker calls {@link #finish()} once the method returns, to
+   * find out whether the result still counts.
+   * <p>
+   *   For an asynchronous state method, the worker {@link #detach(CompletionStage) detaches} once
+   *   the method has returned its stage, and the clock keeps running until the stage completes.
+   *   On expiry the stage is cancelled instead of the worker being interrupted, since the worker
+   *   has moved on.
+   * </p><p>
+   *   The watchdog's single thread only notices the expiry and interrupts the worker.  Cancelling
+   *   the stage and failing the state, which runs the listeners, are handed to the watchdog's
+   *   expiry threads, so one slow listener can't hold up every other timeout.  They aren't
+   *   handed to the machine's thread pool, since its threads may be the ones that are stuck.
+   * </p>
+   */
+  private class StateTimeout
+    implements Runnable
+  {
+    /**
+     * Starts timing the current thread's execution of the given item.
+     *
+     * @param info
+     *   The state and payload being executed.
+     * @param timeout
+     *   The timeout, in milliseconds.
+     */
+    StateTimeout (ProcessInfo<S,P> info, long timeout)
+    {
+      _info = info;
+      _timeout = timeout;
+      _worker = Thread.currentThread();
+      _expiry = StateWatchdog.schedule(this,timeout);
+    }
+
+    /**
+     * Expires the execution, if it hasn't already finished.  This is called on the watchdog's
+     * thread.
+     */
+    @Override
+    public void run ()
+    {
+      final CompletionStage<?> stage;
+      synchronized (this)
+      {
+        if (_finished)
+        {
+          return;
+        }
+        _finished = true;
+        if (_worker != null)
+        {
+          _worker.interrupt();
+        }
+        stage = _stage;
+      }
+
+      StateWatchdog.expire(new Runnable()
+      {
+        @Override
+        public void run ()
+        {
+          cancel(stage);
+          fail(_info,new StateTimeoutException("State " + _info.getState() + " timed out after " +
+              _timeout + "ms for payload " + _info.getPayload().getId()));
+        }
+      });
+    }
+
+    /**
+     * Lets the worker thread go once an asynchronous state method has returned its stage, so an
+     * expiry cancels the stage rather than interrupting the worker.  This is called on the worker
+     * thread.
+     *
+     * @param stage
+     *   The result of the state method.
+     * @return
+     *   If the execution is still being timed, true; if it already timed out, false, and the stage
+     *   has been cancelled.
+     */
+    boolean detach (CompletionStage<?> stage)
+    {
+      synchronized (this)
+      {
+        if (!_finished)
+        {
+          _worker = null;
+          _stage = stage;
+          return true;
+        }
+        Thread.interrupted();
+      }
+      // Timed out while the method was still returning the stage; nothing will wait for it now.
+      cancel(stage);
+      return false;
+    }
+
+    /**
+     * Cancels the stage of a timed out asynchronous state method, if it can be cancelled.
+     *
+     * @param stage
+     *   The result of the state method, if any.
+     */
+    private void cancel (CompletionStage<?> stage)
+    {
+      if (stage instanceof Future)
+      {
+        ((Future<?>) stage).cancel(true);
+      }
+      else if (stage != null)
+      {
+        try
+        {
+          stage.toCompletableFuture().cancel(true);
+        }
+        catch (UnsupportedOperationException cant)
+        {
+          // A stage that can't be turned into a future can't be cancelled either.
+        }
+      }
+    }
+
+    /**
+     * Finishes the execution, stopping the clock.  If the execution has already timed out while
+     * the worker was still attached, this clears the interrupt left on the worker thread so it
+     * doesn't leak into the next task.
+     *
+     * @return
+     *   If the execution finished in time, true; if it timed out and the result should be thrown
+     *   away, false.
+     */
+    boolean finish ()
+    {
+      _expiry.cancel(false);
+      synchronized (this)
+      {
+        if (_finished)
+        {
+          if (_worker != null)
+          {
+            Thread.interrupted();
+          }
+          return false;
+        }
+        _finished = true;
+        return true;
+      }
+    }
+
+    private final ProcessInfo<S,P> _info;
+    private final long _timeout;
+    private final ScheduledFuture<?> _expiry;
+    private Thread _worker;
+    private CompletionStage<?> _stage;
+    private boolean _finished;
+  }
+
   /**
    * Initializes things for this state machine with the class definitions for the state enum and
    * the payload class.
@@ -195,6 +672,10 @@ public class StateMachine<S extends Enum, P extends Payload>
     _payloadType = payloadType;
     _stopRequested = false;
     _machine = this;
+    _handlers = new StateHandler[stateType.getEnumConstants().length];
+    _statePriorities = new int[stateType.getEnumConstants().length];
+    _stateTimeouts = new long[stateType.getEnumConstants().length];
+    _retryPolicies = new RetryPolicy[stateType.getEnumConstants().length];
     registerAnnotatedStates();
   }
 
@@ -215,6 +696,10 @@ public class StateMachine<S extends Enum, P extends Payload>
     _payloadType = payloadType;
     _stopRequested = false;
     _machine = machine;
+    _handlers = new StateHandler[stateType.getEnumConstants().length];
+    _statePriorities = new int[stateType.getEnumConstants().length];
+    _stateTimeouts = new long[stateType.getEnumConstants().length];
+    _retryPolicies = new RetryPolicy[stateType.getEnumConstants().length];
     registerAnnotatedStates();
   }
 
@@ -231,6 +716,25 @@ public class StateMachine<S extends Enum, P extends Payload>
     _completionListeners.add(listener);
   }
 
+  /**
+   * Provides a publisher of this state machine's completions, for consumers which would rather
+   * pull completions at their own pace than be called on the worker threads.  The publisher is
+   * created and added as a completion listener the first time this is called, so, like adding
+   * any other listener, call this before starting the machine.  See {@link CompletionPublisher}.
+   *
+   * @return
+   *   The completion publisher.
+   */
+  public final synchronized CompletionPublisher<S,P> getCompletionPublisher ()
+  {
+    if (_completionPublisher == null)
+    {
+      _completionPublisher = new CompletionPublisher<S,P>();
+      addCompletionListener(_completionPublisher);
+    }
+    return _completionPublisher;
+  }
+
   /**
    * Registers a listener to be informed at various stages throughout the StateMachine processing
    * cycle.
@@ -255,243 +759,1717 @@ public class StateMachine<S extends Enum, P extends Payload>
   }
 
   /**
-   * Provides the machine cycle controller for this state machine.
+   * Provides the most items this state machine will pull off the queue in a single processing
+   * cycle.
+   *
+   * @return
+   *   The dispatch batch size.
+   */
+  public int getDispatchBatchSize ()
+  {
+    return _dispatchBatchSize;
+  }
+
+  /**
+   * Sets the most items this state machine will pull off the queue in a single processing cycle.
+   * By default this is 1, meaning each cycle pops one ready item and hands it to a state worker.
+   * With a bigger batch size, each cycle drains up to that many ready items using
+   * {@link ProcessingQueue#popReady(int)} and submits them all, so the cycle overhead (the
+   * controller checks and the cycle listener callbacks) is paid once per batch instead of once
+   * per item.
+   *
+   * If the thread pool rejects a worker part way through a batch, the rejected item and the rest
+   * of the batch are pushed back onto the queue.
+   *
+   * @param dispatchBatchSize
+   *   The dispatch batch size.  Must be at least 1.
+   */
+  public void setDispatchBatchSize (int dispatchBatchSize)
+  {
+    if (dispatchBatchSize < 1)
+    {
+      throw new IllegalArgumentException("Dispatch batch size must be at least 1, not " +
+          dispatchBatchSize);
+    }
+    _dispatchBatchSize = dispatchBatchSize;
+  }
+
+  /**
+   * Provides the most states a state worker will execute inline, one after the other, before
+   * handing the payload back to the queue.
+   *
+   * @return
+   *   The most states executed inline past the first.  Zero means inline chaining is off.
+   */
+  public int getMaxInlineHops ()
+  {
+    return _maxInlineHops;
+  }
+
+  /**
+   * <p>
+   *   Sets the most states a state worker will execute inline, one after the other, before
+   *   handing the payload back to the queue.  Normally, when a state method returns the next
+   *   state, the payload is pushed back onto the queue and has to wait for this machine to pop it
+   *   and for a free worker thread before the next state runs.  With inline chaining, the worker
+   *   just goes on to execute the next state itself, keeping the payload on the same thread.
+   * </p><p>
+   *   The worker stops chaining and pushes the next state onto the queue when it has executed
+   *   this many extra states, when its time slice (see {@link #setInlineTimeSlice(long)}) is used
+   *   up, when the next state is a {@link WaitingState} that's still waiting, or when a stop has
+   *   been requested.  The state and completion listeners are called just the same either way,
+   *   and a {@link xephyrus.sam.core.queue.JournalProcessingQueue} still journals each state
+   *   executed inline, so it's recovered in the right state after a restart.
+   * </p>
+   *
+   * @param maxInlineHops
+   *   The most states executed inline past the first.  Zero, the default, turns inline chaining
+   *   off.
+   */
+  public void setMaxInlineHops (int maxInlineHops)
+  {
+    _maxInlineHops = Math.max(maxInlineHops,0);
+  }
+
+  /**
+   * Provides the longest a state worker will keep chaining states inline.
+   *
+   * @return
+   *   The inline time slice, in milliseconds.  Zero means there's no time limit.
+   */
+  public long getInlineTimeSlice ()
+  {
+    return _inlineTimeSlice;
+  }
+
+  /**
+   * Sets the longest a state worker will keep chaining states inline, once inline chaining has
+   * been turned on with {@link #setMaxInlineHops(int)}.  A state that's already running is never
+   * cut short; the slice is checked between states.
+   *
+   * @param inlineTimeSlice
+   *   The inline time slice, in milliseconds.  Zero, the default, means there's no time limit.
+   */
+  public void setInlineTimeSlice (long inlineTimeSlice)
+  {
+    _inlineTimeSlice = Math.max(inlineTimeSlice,0L);
+  }
+
+  /**
+   * Provides the machine cycle controller for this state machine.
+   *
+   * @return
+   *   The machine cycle controller.
+   */
+  public MachineCycleController getMachineCycleController ()
+  {
+    _cycleController = (_cycleController == null ?
+        new DefaultMachineCycleController<S,P>(this) :
+        _cycleController);
+    return _cycleController;
+  }
+
+  /**
+   * Sets the machine cycle controller to be used in governing the processing cycle of this state
+   * machine.  The controller may also implement {@link StateDispatchController}, to defer items
+   * item by item, and {@link IdleStrategy}, to decide how the machine waits when it yields.
+   *
+   * @param cycleController
+   *   The machine cycle controller.
+   */
+  public void setMachineCycleController (MachineCycleController cycleController)
+  {
+    _cycleController = cycleController;
+  }
+
+  /**
+   * Provides direct access to the process queue.
+   *
+   * @return
+   *   The process queue, raw and dangerous.
+   */
+  public ProcessingQueue<S, P> getProcessingQueue ()
+  {
+    return _processingQueue;
+  }
+
+  /**
+   * Sets the process queue to be used by this state machine.  By default this is a
+   * {@link xephyrus.sam.core.queue.ConcurrentProcessingQueue}, a lock-free in-memory queue which
+   * is the recommended choice for multi-threaded use.  For simple and non-robust reference or
+   * academic type applications, you can use {@link
+   * xephyrus.sam.core.queue.MemoryProcessingQueue}.  Where the queue can grow very deep, a
+   * {@link xephyrus.sam.core.queue.RingBufferProcessingQueue} keeps the cost of each queued item
+   * down, and an {@link xephyrus.sam.core.queue.IndexedProcessingQueue} keeps looking up and
+   * cancelling payloads by id quick.  To pick up where the machine left off after a restart, use
+   * a {@link xephyrus.sam.core.queue.JournalProcessingQueue}.
+   * <p>
+   * If the queue is also a {@link CompletionListener}, as a journalling queue is, it's registered
+   * as one, so it hears when the machine is done with each payload.
+   * </p>
+   *
+   * @param processingQueue
+   *     The process queue to use for this state machine.
+   */
+  @SuppressWarnings({"unchecked"})
+  public final void setProcessingQueue (ProcessingQueue<S, P> processingQueue)
+  {
+    if (_processingQueue instanceof CompletionListener)
+    {
+      _completionListeners.remove(_processingQueue);
+    }
+    _processingQueue = processingQueue;
+    if (processingQueue instanceof CompletionListener)
+    {
+      addCompletionListener((CompletionListener<S,P>) processingQueue);
+    }
+  }
+
+  /**
+   * Reports whether this state machine wakes up as soon as something is added to the queue.
+   *
+   * @return
+   *   If the machine is woken on enqueue, true; otherwise false.
+   */
+  public boolean isWakeOnQueue ()
+  {
+    return _wakeOnQueue;
+  }
+
+  /**
+   * Determines whether this state machine wakes up as soon as something is added to the queue.
+   * Normally, when the {@link MachineCycleController} says to yield, the machine sleeps for the
+   * full yield time, so a payload submitted through {@link #process(Payload)}, or pushed back by
+   * a state worker with its next state, can sit in the queue for up to that long.
+   *
+   * In wake-on-queue mode, the machine parks instead of sleeping, and every item added to the
+   * queue through the machine unparks it.  The yield time is still honored as the longest the
+   * machine will park, so waiting states and anything added directly to the processing queue are
+   * still picked up.  Note that this will also cut short any yield a controller asks for while
+   * there is work in the queue, so it's best suited to controllers that only yield when idle
+   * (like the {@link DefaultMachineCycleController}).
+   *
+   * @param wakeOnQueue
+   *   If the machine should be woken on enqueue, true; otherwise false.
+   */
+  public void setWakeOnQueue (boolean wakeOnQueue)
+  {
+    _wakeOnQueue = wakeOnQueue;
+  }
+
+  /**
+   * Provides the start state for new payloads.  Any new payloads registered with this state
+   * machine will initially be in the state given by this method.
+   *
+   * @return
+   *     The start state for new payloads.
+   */
+  public final S getStartState ()
+  {
+    if (_startState == null)
+    {
+      _startState = _stateType.getEnumConstants()[0];
+    }
+    return _startState;
+  }
+
+  /**
+   * Determines the start state for new payloads.  If this isn't set, the first state in the state
+   * enum is considered as the start state.
+   *
+   * @param state
+   *     The state to use as the start state for new payloads.
+   */
+  public final void setStartState (S state)
+  {
+    _startState = state;
+  }
+
+  /**
+   * Provides the current thread pool for the state worker threads.
+   *
+   * @return
+   *   The state worker's thread pool.
+   */
+  public ExecutorService getThreadPool ()
+  {
+    return _threadPool;
+  }
+
+  /**
+   * Sets the thread pool for the state worker threads.  By default this is a fixed pool of 10
+   * threads.  For state methods that spend most of their time blocked on I/O, a
+   * {@link xephyrus.sam.core.executor.VirtualThreadExecutorService} lets many more payloads be in
+   * flight at once.  For CPU-bound machines, a
+   * {@link xephyrus.sam.core.executor.WorkStealingExecutorService} keeps each payload's
+   * transitions off the queue entirely.
+   *
+   * @param threadPool
+   *   The state worker's thread pool.
+   */
+  public void setThreadPool (ExecutorService threadPool)
+  {
+    ExecutorService previous = _threadPool;
+    if (previous instanceof CapacityReportingExecutor)
+    {
+      ((CapacityReportingExecutor) previous).removeCapacityListener(_capacityListener);
+    }
+    if (threadPool instanceof CapacityReportingExecutor)
+    {
+      ((CapacityReportingExecutor) threadPool).addCapacityListener(_capacityListener);
+    }
+    _threadPool = threadPool;
+  }
+
+  /**
+   * Register a new payload for processing.  This submits a payload to the state machine.  The
+   * state machine will the pass this payload to the registered methods for each state it
+   * encounters until an end-state condition or an exception condition occurs.
+   *
+   * Every payload must have a valid id.
+   *
+   * If a capacity has been set and the machine is already at capacity, the overflow policy
+   * decides what happens to this payload.  See {@link #setOverflowPolicy(OverflowPolicy)}.
+   *
+   * @param payload
+   *     The payload to be processed.
+   */
+  public final void process (P payload)
+  {
+    if (payload != null)
+    {
+      checkPayload(payload);
+      if (!admit())
+      {
+        switch (_overflowPolicy)
+        {
+          case BLOCK:
+            try
+            {
+              admit(Long.MAX_VALUE);
+            }
+            catch (InterruptedException e)
+            {
+              Thread.currentThread().interrupt();
+              reject(payload,new ProcessingQueueException("Interrupted while waiting for room " +
+                  "in the StateMachine"));
+              return;
+            }
+            break;
+
+          case CALLER_RUNS:
+            _inFlight.incrementAndGet();
+            new StateWorker(newProcessInfo(payload,getStartState(),true)).run();
+            return;
+
+          case DROP_OLDEST:
+            if (!dropOldest())
+            {
+              reject(payload,atCapacity());
+              return;
+            }
+            break;
+
+          case REJECT:
+            reject(payload,atCapacity());
+            return;
+        }
+      }
+      enqueue(payload);
+    }
+  }
+
+  /**
+   * Registers a batch of new payloads for processing.  This behaves as though
+   * {@link #process(Payload)} were called for each payload in turn, but is much cheaper for large
+   * batches: the payloads are admitted together, stamped with one timestamp, added to the queue
+   * with a single {@link ProcessingQueue#queueAll(java.util.Collection)}, and the dispatcher is
+   * woken once.
+   *
+   * Every payload must have a valid id; if any doesn't, none of the batch is processed.  Null
+   * payloads are skipped.
+   *
+   * If a capacity has been set, as many payloads as there's room for are added as a batch, and
+   * the overflow policy decides what happens to each of the rest, one at a time.  See
+   * {@link #setOverflowPolicy(OverflowPolicy)}.
+   *
+   * @param payloads
+   *     The payloads to be processed.
+   */
+  public final void process (Collection<? extends P> payloads)
+  {
+    List<P> accepted = new ArrayList<P>(payloads.size());
+    for (P payload: payloads)
+    {
+      if (payload != null)
+      {
+        checkPayload(payload);
+        accepted.add(payload);
+      }
+    }
+
+    int admitted = admitUpTo(accepted.size());
+    if (admitted > 0)
+    {
+      enqueue(accepted.subList(0,admitted));
+    }
+    for (int i = admitted; i < accepted.size(); i++)
+    {
+      process(accepted.get(i));
+    }
+  }
+
+  /**
+   * Register a new payload for processing, waiting up to the given time for room if the machine
+   * is at capacity.  Otherwise this is just like {@link #process(Payload)}, except that the
+   * overflow policy isn't used.
+   *
+   * @param payload
+   *     The payload to be processed.
+   * @param timeout
+   *     The longest to wait for room.
+   * @param unit
+   *     The unit of the timeout.
+   * @return
+   *     If the payload was accepted, true; if there still wasn't room after the timeout, false.
+   * @throws InterruptedException
+   *     If the calling thread is interrupted while waiting for room.
+   */
+  public final boolean process (P payload, long timeout, TimeUnit unit)
+      throws InterruptedException
+  {
+    if (payload != null)
+    {
+      checkPayload(payload);
+      if (!admit(unit.toNanos(timeout)))
+      {
+        return false;
+      }
+      enqueue(payload);
+    }
+    return true;
+  }
+
+  /**
+   * Register a new payload for processing, but only if there's room for it right now.
+   * Otherwise this is just like {@link #process(Payload)}, except that the overflow policy isn't
+   * used.
+   *
+   * @param payload
+   *     The payload to be processed.
+   * @return
+   *     If the payload was accepted, true; if the machine is at capacity, false.
+   */
+  public final boolean tryProcess (P payload)
+  {
+    if (payload != null)
+    {
+      checkPayload(payload);
+      if (!admit())
+      {
+        return false;
+      }
+      enqueue(payload);
+    }
+    return true;
+  }
+
+  /**
+   * Cancels a payload which is still waiting in the queue, including any items for it which are
+   * waiting out a {@link WaitingState} or a retry.  Each item taken out of the queue completes
+   * with a {@link ProcessingQueueException}, so its room in the machine is freed up and the
+   * completion listeners hear about it.  A payload which is being worked on right now isn't
+   * touched.
+   * <p>
+   *   An {@link xephyrus.sam.core.queue.IndexedProcessingQueue} finds the payload's items by id
+   *   straight away.  Any other queue is searched item by item, which takes time in proportion
+   *   to the depth of the queue, so machines which cancel often should use an indexed one.
+   * </p>
+   *
+   * @param payloadId
+   *     The id of the payload to cancel.
+   * @return
+   *     If anything was taken out of the queue, true; otherwise false.
+   * @throws IllegalStateException
+   *     If the queue fails while the payload's items are being taken out of it.
+   */
+  public final boolean cancel (Long payloadId)
+  {
+    ProcessingQueue<S,P> queue = _processingQueue;
+    List<ProcessInfo<S,P>> removed;
+    if (queue instanceof IndexedProcessingQueue)
+    {
+      removed = ((IndexedProcessingQueue<S,P>) queue).removePayload(payloadId);
+    }
+    else
+    {
+      try
+      {
+        removed = removePayload(queue,payloadId);
+      }
+      catch (ProcessingQueueException cant)
+      {
+        throw new IllegalStateException("Couldn't cancel payload " + payloadId,cant);
+      }
+    }
+    for (ProcessInfo<S,P> info: removed)
+    {
+      complete(info,new ProcessingQueueException("Payload " + payloadId + " was cancelled"));
+    }
+    return (!removed.isEmpty());
+  }
+
+  /**
+   * Provides the most payloads this state machine will hold at once.
+   *
+   * @return
+   *     The capacity.  Zero means there's no limit.
+   */
+  public int getCapacity ()
+  {
+    return _capacity;
+  }
+
+  /**
+   * <p>
+   *   Sets the most payloads this state machine will hold at once.  A payload counts against the
+   *   capacity from when it's accepted until its completion listeners are called, whether it's
+   *   sitting in the queue or being worked on.  By default there's no limit, and payloads are
+   *   always accepted.
+   * </p><p>
+   *   Once the machine is at capacity, {@link #tryProcess(Payload)} turns new payloads away,
+   *   {@link #process(Payload, long, TimeUnit)} waits for room, and {@link #process(Payload)}
+   *   does whatever the overflow policy says.
+   * </p><p>
+   *   Payloads added directly to the processing queue don't count against the capacity.
+   * </p>
+   *
+   * @param capacity
+   *     The capacity.  Zero means there's no limit.
+   */
+  public void setCapacity (int capacity)
+  {
+    _capacity = Math.max(capacity,0);
+  }
+
+  /**
+   * Reports how many payloads this state machine currently holds, between being accepted and
+   * completing.
+   *
+   * @return
+   *     The number of payloads in flight.
+   */
+  public int getInFlightCount ()
+  {
+    return _inFlight.get();
+  }
+
+  /**
+   * Provides what {@link #process(Payload)} does with a payload when the machine is at capacity.
+   *
+   * @return
+   *     The overflow policy.
+   */
+  public OverflowPolicy getOverflowPolicy ()
+  {
+    return _overflowPolicy;
+  }
+
+  /**
+   * Sets what {@link #process(Payload)} does with a payload when the machine is at capacity.  By
+   * default it blocks until there's room.
+   *
+   * @param overflowPolicy
+   *     The overflow policy.
+   */
+  public void setOverflowPolicy (OverflowPolicy overflowPolicy)
+  {
+    _overflowPolicy = overflowPolicy;
+  }
+
+  /**
+   * Registers a state with this state machine.  This defines what method gets executed when
+   * processing of a payload is in this specific state.
+   *
+   * If the registered method is null or if no method is defined for a state, that state is
+   * considered an end state.  Transition to such a state will signal the end of processing for
+   * that payload.
+   *
+   * The method given must be in this class (sub-class, of course), and the method signature must
+   * be:
+   * <br/><pre>S method (P payload)</pre><br/>
+   *
+   * The return value of this method is the state to transition to.  Returning null will also
+   * signal the end of processing for that payload.
+   *
+   * The method may instead be asynchronous, with the signature:
+   * <br/><pre>CompletionStage&lt;S&gt; method (P payload)</pre><br/>
+   * (a CompletableFuture works too).  The worker thread is freed as soon as the method returns
+   * the stage, and the transition, the after state cycle and any completion happen once the
+   * stage completes, on whichever thread completes it.  A stage which completes exceptionally
+   * is handled just like a thrown exception.
+   *
+   * This method may throw any exceptions.  Any exceptions thrown will signal the end of
+   * processing for that payload, unless the state is retried (see
+   * {@link #setRetryPolicy(Enum,RetryPolicy)}).  The exception will be passed to any completion
+   * listeners.
+   *
+   * The method is compiled into a {@link StateHandler} when it's registered, so each state
+   * execution calls it directly instead of going through reflection.
+   *
+   * @param state
+   *     The state to register.
+   * @param method
+   *     The method to execute for this state.  The return value of this method is the state to
+   *     transition to.
+   * @throws InvalidStateDeclarationException
+   *     If the method doesn't have the right signature or can't be called on this machine.
+   */
+  public final void registerState (S state, Method method)
+  {
+    _handlers[state.ordinal()] = (method != null ? StateHandlers.compile(_machine,method) : null);
+  }
+
+  /**
+   * Registers a state with this state machine, along with the longest time its method may run
+   * for a payload.  This is the same as calling {@link #registerState(Enum,Method)} and then
+   * {@link #setStateTimeout(Enum,long)}.
+   *
+   * @param state
+   *     The state to register.
+   * @param method
+   *     The method to execute for this state.  The return value of this method is the state to
+   *     transition to.
+   * @param timeout
+   *     The timeout, in milliseconds.  Zero means no timeout.
+   * @throws InvalidStateDeclarationException
+   *     If the method doesn't have the right signature or can't be called on this machine.
+   */
+  public final void registerState (S state, Method method, long timeout)
+  {
+    registerState(state,method);
+    setStateTimeout(state,timeout);
+  }
+
+  /**
+   * Registers a state with this state machine.  This gives a handy way to register methods by
+   * name.  Since the signature of the method is fixed (it must be <pre>S method (P payload)</pre>),
+   * and the method must be in this class, finding the method by name is easy peasy.
+   *
+   * This is the same as calling:
+   * <br/><pre>registerState(state,machine.getClass().getMethod(methodName,payloadType));</pre><br/>
+   *
+   * @param state
+   *     The state to register.
+   * @param methodName
+   *     The method to execute for this state.  The return value of this method is the state to
+   *     transition to.
+   * @throws NoSuchMethodException
+   *     If no method can be found with the given name and the correct signature, a big nasty
+   *     NoSuchMethodException is thrown.
+   */
+  public final void registerState (S state, String methodName)
+      throws NoSuchMethodException
+  {
+    registerState(state, _machine.getClass().getMethod(methodName, (Class) _payloadType));
+  }
+
+  /**
+   * Registers a state with this state machine by method name, along with the longest time its
+   * method may run for a payload.  This is the same as calling
+   * {@link #registerState(Enum,String)} and then {@link #setStateTimeout(Enum,long)}.
+   *
+   * @param state
+   *     The state to register.
+   * @param methodName
+   *     The method to execute for this state.
+   * @param timeout
+   *     The timeout, in milliseconds.  Zero means no timeout.
+   * @throws NoSuchMethodException
+   *     If no method can be found with the given name and the correct signature.
+   */
+  public final void registerState (S state, String methodName, long timeout)
+      throws NoSuchMethodException
+  {
+    registerState(state,methodName);
+    setStateTimeout(state,timeout);
+  }
+
+  /**
+   * Provides the priority of a state.
+   *
+   * @param state
+   *     The state.
+   * @return
+   *     The priority.  Higher numbers are more urgent.
+   */
+  public final int getStatePriority (S state)
+  {
+    return _statePriorities[state.ordinal()];
+  }
+
+  /**
+   * Sets the priority of a state.  Every item this machine puts into the queue carries the
+   * priority of its state (see {@link ProcessInfo#getPriority()}), and
+   * {@link xephyrus.sam.core.queue.ProcessingQueue}s which respect priority, such as
+   * {@link xephyrus.sam.core.queue.PriorityProcessingQueue}, use it to decide what's processed
+   * first.  States registered through the {@link StateMachineState} annotation take their
+   * priority from it.  By default every state has a priority of 0.
+   *
+   * @param state
+   *     The state.
+   * @param priority
+   *     The priority.  Higher numbers are more urgent.
+   */
+  public final void setStatePriority (S state, int priority)
+  {
+    _statePriorities[state.ordinal()] = priority;
+  }
+
+  /**
+   * Provides the timeout of a state.
+   *
+   * @param state
+   *     The state.
+   * @return
+   *     The timeout, in milliseconds.  Zero means no timeout.
+   */
+  public final long getStateTimeout (S state)
+  {
+    return _stateTimeouts[state.ordinal()];
+  }
+
+  /**
+   * <p>
+   *   Sets the longest time the method for a state may run for a payload.  States registered
+   *   through the {@link StateMachineState} annotation take their timeout from it.  By default no
+   *   state has a timeout.
+   * </p><p>
+   *   When a state times out, the thread running it is interrupted, and the state fails with a
+   *   {@link StateTimeoutException}: an error state cycle is triggered, and unless the state's
+   *   retry policy retries it (see {@link #setRetryPolicy(Enum,RetryPolicy)}), processing of the
+   *   payload ends with a completion and the payload stops counting against the machine's
+   *   capacity.  Whatever the method eventually returns is thrown away, and the thread goes back
+   *   to the pool as soon as the method returns.  A method which ignores interrupts (for example,
+   *   one blocked in a call that can't be interrupted) keeps its thread until it does return.
+   * </p>
+   *
+   * @param state
+   *     The state.
+   * @param timeout
+   *     The timeout, in milliseconds.  Zero means no timeout.
+   */
+  public final void setStateTimeout (S state, long timeout)
+  {
+    _stateTimeouts[state.ordinal()] = Math.max(timeout,0L);
+  }
+
+  /**
+   * Provides the retry policy of a state.
+   *
+   * @param state
+   *     The state.
+   * @return
+   *     The retry policy, or null if the state isn't retried.
+   */
+  public final RetryPolicy getRetryPolicy (S state)
+  {
+    return _retryPolicies[state.ordinal()];
+  }
+
+  /**
+   * Sets how a state is retried when its method fails, including when it times out.  States
+   * registered through the {@link StateMachineState} annotation take their retry policy from a
+   * {@link RetryableState} annotation, if there is one.  By default no state is retried, and any
+   * failure ends processing of the payload.
+   *
+   * @param state
+   *     The state.
+   * @param retryPolicy
+   *     The retry policy, or null to stop retrying the state.
+   */
+  public final void setRetryPolicy (S state, RetryPolicy retryPolicy)
+  {
+    _retryPolicies[state.ordinal()] = retryPolicy;
+  }
+
+  /**
+   * Provides the store where payloads which run out of retries are put.
+   *
+   * @return
+   *     The dead letter store, or null if there isn't one.
+   */
+  public DeadLetterStore<S,P> getDeadLetterStore ()
+  {
+    return _deadLetters;
+  }
+
+  /**
+   * Sets the store where payloads which run out of retries are put.  By default there's none,
+   * and such payloads are only reported to the completion listeners.
+   *
+   * @param deadLetters
+   *     The dead letter store.
+   */
+  public void setDeadLetterStore (DeadLetterStore<S,P> deadLetters)
+  {
+    _deadLetters = deadLetters;
+  }
+
+  /**
+   * Provides the write-ahead log this state machine records its transitions in.
+   *
+   * @return
+   *     The transition log, or null if there isn't one.
+   */
+  public TransitionLog getTransitionLog ()
+  {
+    return _transitionLog;
+  }
+
+  /**
+   * Sets a write-ahead log to record this state machine's transitions in.  When set, each state
+   * worker records the transition to the next state before pushing it, and each completion
+   * before the completion listeners hear of it, and waits until the record is durable.  The log
+   * commits records from all the workers in groups, so this costs a wait for the next flush
+   * rather than a flush per transition.  By default there's none.  See {@link TransitionLog}.
+   *
+   * @param transitionLog
+   *     The transition log, or null to stop logging.
+   */
+  public void setTransitionLog (TransitionLog transitionLog)
+  {
+    _transitionLog = transitionLog;
+  }
+
+  /**
+   * Registers a request that this state machine be stopped.  This request is passed to the main
+   * execution thread for this state machine.  The state machine will stop on it's next cycle.
+   */
+  public final void requestStop ()
+  {
+    _stopRequested = true;
+    signalDispatcher();
+  }
+
+  /**
+   * This is the main execution thread for this state machine.  Once started, this will execute
+   * until a stop is requested.  This thread will handle one state execution for one payload per
+   * cycle, or up to {@link #getDispatchBatchSize()} of them if batching is enabled.
+   *
+   * If more than one dispatcher has been asked for (see {@link #setDispatcherCount(int)}), the
+   * extra dispatchers are started alongside this thread, and this thread waits for them all to
+   * stop before it stops.
+   */
+  @Override
+  public final void run ()
+  {
+    List<Thread> dispatchers = new ArrayList<Thread>();
+    try
+    {
+      triggerMachineCycle(MachineCycles.STARTING);
+      getMachineCycleController();
+      _dispatchThreads.add(this);
+      for (int i = 1; i < _dispatcherCount; i++)
+      {
+        Thread dispatcher = new Thread(new Runnable()
+        {
+          @Override
+          public void run ()
+          {
+            dispatchLoop();
+          }
+        },getName() + "-dispatcher-" + i);
+        dispatchers.add(dispatcher);
+        _dispatchThreads.add(dispatcher);
+        dispatcher.start();
+      }
+      dispatchLoop();
+    }
+    catch (Throwable fail)
+    {
+      failing(fail);
+    }
+
+    for (Thread dispatcher: dispatchers)
+    {
+      joinUninterruptibly(dispatcher);
+    }
+    _dispatchThreads.clear();
+    triggerMachineCycle(MachineCycles.STOPPING);
+  }
+
+  /**
+   * Provides the number of dispatchers pulling work off the queue for this state machine.
+   *
+   * @return
+   *   The dispatcher count.
+   */
+  public int getDispatcherCount ()
+  {
+    return _dispatcherCount;
+  }
+
+  /**
+   * <p>
+   *   Sets the number of dispatchers pulling work off the queue for this state machine.  By
+   *   default, the machine's own thread is the one and only dispatcher, which can become the
+   *   bottleneck when state methods are very short.  With more dispatchers, each runs the full
+   *   processing cycle (the controller checks, the cycle listener callbacks, popping the queue
+   *   and handing items to the thread pool) against the same queue at the same time.
+   * </p><p>
+   *   With more than one dispatcher, the processing queue, the machine cycle controller, and any
+   *   machine cycle listeners must all be safe to use from several threads at once.  If any
+   *   dispatcher fails, the whole machine stops.
+   * </p><p>
+   *   This must be set before the machine is started.
+   * </p>
+   *
+   * @param dispatcherCount
+   *   The dispatcher count.  Must be at least 1.
+   */
+  public void setDispatcherCount (int dispatcherCount)
+  {
+    if (dispatcherCount < 1)
+    {
+      throw new IllegalArgumentException("Dispatcher count must be at least 1, not " +
+          dispatcherCount);
+    }
+    _dispatcherCount = dispatcherCount;
+  }
+
+  /**
+   * <p>
+   *   Runs a single processing cycle on behalf of an outside scheduler, such as the
+   *   {@link StateMachineDispatcher}, rather than this machine's own thread.  This pops up to the
+   *   given number of ready items off the queue and hands them to the thread pool, calling the
+   *   machine cycle listeners just as the machine's own cycle would.
+   * </p><p>
+   *   The machine cycle controller isn't consulted; that's left to the scheduler.
+   * </p>
+   *
+   * @param max
+   *   The most items to hand off.
+   * @return
+   *   The number of items handed off.  If this is less than the number that were ready, the
+   *   rest were either deferred by the machine cycle controller (see
+   *   {@link StateDispatchController}) or refused by the thread pool, and were pushed back onto
+   *   the queue.
+   * @throws ProcessingQueueException
+   *   If refused items can't be pushed back onto the queue.
+   */
+  public final int dispatchReady (int max)
+      throws ProcessingQueueException
+  {
+    AtomicInteger handed = new AtomicInteger();
+    dispatchReady(max,handed,0L);
+    return handed.get();
+  }
+
+  /**
+   * Runs a single processing cycle on behalf of an outside scheduler, just like
+   * {@link #dispatchReady(int)}, but tells the scheduler whether the thread pool refused an item,
+   * as opposed to the machine cycle controller deferring some.  Only a refusal means the pool is
+   * full.
+   * <p>
+   *   If the pool refuses an item, the scheduler can wait for room, the way this machine's own
+   *   dispatchers do, rather than polling.  A state worker of any machine the scheduler runs
+   *   wakes it when it finishes (see {@link #addSchedulerThread(Thread)}).
+   * </p>
+   *
+   * @param max
+   *   The most items to hand off.
+   * @param handed
+   *   Counts the items handed off.
+   * @param maxWait
+   *   The longest time to wait for room in the pool before giving up on an item, in
+   *   milliseconds.  Zero gives up as soon as the pool refuses it.
+   * @return
+   *   {@link Handoff#REFUSED} if the thread pool refused an item, cutting the cycle short;
+   *   otherwise {@link Handoff#HANDED}, even if some of the items were deferred.
+   * @throws ProcessingQueueException
+   *   If refused items can't be pushed back onto the queue.
+   */
+  final Handoff dispatchReady (int max, AtomicInteger handed, long maxWait)
+      throws ProcessingQueueException
+  {
+    triggerMachineCycle(MachineCycles.BEFORE);
+    Handoff handoff = dispatch(_processingQueue.popReady(max),maxWait,handed);
+    triggerMachineCycle(MachineCycles.AFTER);
+    return handoff;
+  }
+
+  /**
+   * Lets an outside scheduler be woken up along with this machine's own dispatchers whenever
+   * something is added to the queue, and whenever a state worker finishes.  See
+   * {@link #dispatchReady(int)}.
+   *
+   * @param scheduler
+   *   The scheduler's thread.
+   */
+  final void addSchedulerThread (Thread scheduler)
+  {
+    _schedulerThreads.add(scheduler);
+  }
+
+  /**
+   * Stops waking an outside scheduler.
+   *
+   * @param scheduler
+   *   The scheduler's thread.
+   */
+  final void removeSchedulerThread (Thread scheduler)
+  {
+    _schedulerThreads.remove(scheduler);
+  }
+
+  /**
+   * Runs the processing cycle until a stop is requested or the cycle fails.
+   */
+  private void dispatchLoop ()
+  {
+    try
+    {
+      while (!_stopRequested)
+      {
+        if (getMachineCycleController().shouldProcess())
+        {
+          triggerMachineCycle(MachineCycles.BEFORE);
+          if (_dispatchBatchSize > 1)
+          {
+            dispatch(_processingQueue.popReady(_dispatchBatchSize),Long.MAX_VALUE,null);
+          }
+          else
+          {
+            ProcessInfo<S,P> info = _processingQueue.popReady();
+            if (info != null)
+            {
+              dispatch(info,Long.MAX_VALUE);
+            }
+          }
+          triggerMachineCycle(MachineCycles.AFTER);
+        }
+
+        MachineCycleController controller = getMachineCycleController();
+        if (controller.shouldYield())
+        {
+          triggerMachineCycle(MachineCycles.YIELD);
+          if (controller instanceof IdleStrategy)
+          {
+            ((IdleStrategy) controller).idle();
+          }
+          else
+          {
+            waitForWork(controller.getYieldTime());
+          }
+        }
+      }
+    }
+    catch (Throwable fail)
+    {
+      failing(fail);
+    }
+  }
+
+  /**
+   * Handles a failure of the processing cycle: lets the listeners know, and stops any other
+   * dispatchers.
+   */
+  private void failing (Throwable fail)
+  {
+    triggerMachineCycle(MachineCycles.FAILING,fail);
+    _stopRequested = true;
+    signalDispatcher();
+  }
+
+  /**
+   * Waits for a thread to end, holding onto any interrupt until it does.
+   */
+  static private void joinUninterruptibly (Thread thread)
+  {
+    boolean interrupted = false;
+    while (thread.isAlive())
+    {
+      try
+      {
+        thread.join();
+      }
+      catch (InterruptedException e)
+      {
+        interrupted = true;
+      }
+    }
+    if (interrupted)
+    {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Makes sure a new payload can be processed.
+   *
+   * @throws IllegalArgumentException
+   *   If the payload has a null id.
+   */
+  private void checkPayload (P payload)
+  {
+    if (payload.getId() == null)
+    {
+      throw new IllegalArgumentException("Payload type " + payload.getClass().getCanonicalName() +
+          " has a null id");
+    }
+  }
+
+  /**
+   * Adds a newly accepted payload to the queue in its start state.
+   */
+  private void enqueue (P payload)
+  {
+    ProcessInfo<S,P> info = newProcessInfo(payload,getStartState(),true);
+    try
+    {
+      _processingQueue.queue(info);
+      signalDispatcher();
+    }
+    catch (ProcessingQueueException e)
+    {
+      triggerStateCycle(StateCycles.ERROR,info.getState(),info.getPayload(),e);
+      complete(info,e);
+    }
+  }
+
+  /**
+   * Adds a batch of newly accepted payloads to the queue in their start state, all stamped with
+   * the same time.  If the queue won't take them, each one fails.
+   */
+  private void enqueue (List<P> payloads)
+  {
+    S state = getStartState();
+    int priority = _statePriorities[state.ordinal()];
+    long now = System.currentTimeMillis();
+    List<ProcessInfo<S,P>> items = new ArrayList<ProcessInfo<S,P>>(payloads.size());
+    for (P payload: payloads)
+    {
+      items.add(new ProcessInfo<S,P>(payload,state,priority,1,now,true));
+    }
+
+    try
+    {
+      _processingQueue.queueAll(items);
+      signalDispatcher();
+    }
+    catch (ProcessingQueueException e)
+    {
+      for (ProcessInfo<S,P> info: items)
+      {
+        triggerStateCycle(StateCycles.ERROR,info.getState(),info.getPayload(),e);
+        complete(info,e);
+      }
+    }
+  }
+
+  /**
+   * Wraps a payload and the state it's in, along with the priority of that state, and whether
+   * the payload holds a place in the machine.
+   */
+  private ProcessInfo<S,P> newProcessInfo (P payload, S state, boolean admitted)
+  {
+    return new ProcessInfo<S,P>(payload,state,_statePriorities[state.ordinal()],1,
+        System.currentTimeMillis(),admitted);
+  }
+
+  /**
+   * Turns away a payload which was never accepted, letting the listeners know.
+   */
+  private void reject (P payload, Throwable error)
+  {
+    triggerStateCycle(StateCycles.ERROR,getStartState(),payload,error);
+    triggerNotifyComplete(payload,getStartState(),error);
+  }
+
+  /**
+   * Provides the error reported for payloads turned away because the machine is at capacity.
+   */
+  private ProcessingQueueException atCapacity ()
+  {
+    return new ProcessingQueueException("StateMachine is at its capacity of " + _capacity +
+        " payloads");
+  }
+
+  /**
+   * Accepts a payload, dropping the oldest items in the queue to make room, and letting the
+   * listeners know about each one dropped.  Items which never took a place in the machine don't
+   * make any room when they're dropped, and another producer may take the room first, so this
+   * keeps dropping until the payload is actually accepted.
+   *
+   * @return
+   *   If the payload was accepted, true; if the queue ran out of items to drop first, false.
+   */
+  private boolean dropOldest ()
+  {
+    while (!admit())
+    {
+      ProcessInfo<S,P> oldest = _processingQueue.pop();
+      if (oldest == null)
+      {
+        return false;
+      }
+      complete(oldest,new ProcessingQueueException("Dropped to make room for a newer payload"));
+    }
+    return true;
+  }
+
+  /**
+   * Accepts as many of a batch of payloads as there's room for right now.
+   *
+   * @param count
+   *   The number of payloads in the batch.
+   * @return
+   *   The number of payloads accepted, from the front of the batch.
+   */
+  private int admitUpTo (int count)
+  {
+    if (_capacity <= 0)
+    {
+      _inFlight.addAndGet(count);
+      return count;
+    }
+    while (true)
+    {
+      int inFlight = _inFlight.get();
+      int granted = Math.min(count,Math.max(_capacity - inFlight,0));
+      if (granted == 0)
+      {
+        return 0;
+      }
+      if (_inFlight.compareAndSet(inFlight,inFlight + granted))
+      {
+        return granted;
+      }
+    }
+  }
+
+  /**
+   * Accepts a payload if there's room for it right now.
    *
    * @return
-   *   The machine cycle controller.
+   *   If the payload was accepted, true; otherwise false.
    */
-  public MachineCycleController getMachineCycleController ()
+  private boolean admit ()
   {
-    _cycleController = (_cycleController == null ?
-        new DefaultMachineCycleController<S,P>(this) :
-        _cycleController);
-    return _cycleController;
+    if (_capacity <= 0)
+    {
+      _inFlight.incrementAndGet();
+      return true;
+    }
+    while (true)
+    {
+      int inFlight = _inFlight.get();
+      if (inFlight >= _capacity)
+      {
+        return false;
+      }
+      if (_inFlight.compareAndSet(inFlight,inFlight + 1))
+      {
+        return true;
+      }
+    }
   }
 
   /**
-   * Sets the machine cycle controller to be used in governing the processing cycle of this state
-   * machine.
+   * Accepts a payload, waiting up to the given time for there to be room.
    *
-   * @param cycleController
-   *   The machine cycle controller.
+   * @param timeout
+   *   The longest to wait, in nanoseconds.
+   * @return
+   *   If the payload was accepted, true; otherwise false.
+   * @throws InterruptedException
+   *   If the thread is interrupted while waiting.
    */
-  public void setMachineCycleController (MachineCycleController cycleController)
+  private boolean admit (long timeout)
+      throws InterruptedException
   {
-    _cycleController = cycleController;
+    if (admit())
+    {
+      return true;
+    }
+    _admissionLock.lockInterruptibly();
+    try
+    {
+      _admissionWaiters++;
+      long remaining = timeout;
+      while (!admit())
+      {
+        if (remaining <= 0L)
+        {
+          return false;
+        }
+        remaining = _admissionAvailable.awaitNanos(remaining);
+      }
+      return true;
+    }
+    finally
+    {
+      _admissionWaiters--;
+      _admissionLock.unlock();
+    }
   }
 
   /**
-   * Provides direct access to the process queue.
+   * Handles a state which failed for a payload.  If the state's retry policy says the failure is
+   * worth retrying, and there are attempts left, the same state is put straight back onto the
+   * queue for the payload, held back as a waiting item until the retry delay has passed;
+   * otherwise processing of the payload ends with the error, and if it ran out of retries it's put
+   * into the dead letter store.
+   * <p>
+   *   Since the retry waits in the queue, it counts towards the queue's contents, it's kept by a
+   *   queue which survives a restart, and it's released by the queue's timing wheel.
+   * </p>
    *
-   * @return
-   *   The process queue, raw and dangerous.
+   * @param info
+   *     The state and payload which failed.
+   * @param error
+   *     The error the state failed with.
    */
-  public ProcessingQueue<S, P> getProcessingQueue ()
+  private void fail (ProcessInfo<S,P> info, Throwable error)
   {
-    return _processingQueue;
+    triggerStateCycle(StateCycles.ERROR, info.getState(), info.getPayload(), error);
+
+    RetryPolicy retry = _retryPolicies[info.getState().ordinal()];
+    if ((retry != null) && (retry.isRetryable(error)))
+    {
+      if (info.getAttempt() < retry.getMaxAttempts())
+      {
+        long now = System.currentTimeMillis();
+        ProcessInfo<S,P> next = new ProcessInfo<S,P>(info.getPayload(),info.getState(),
+            info.getPriority(),info.getAttempt() + 1,now,info.isAdmitted());
+        long readyTime = Math.max(ProcessingQueueUtils.getReadyTime(next),
+            now + retry.getDelay(info.getAttempt()));
+        requeue(delay(next,readyTime));
+        return;
+      }
+      DeadLetterStore<S,P> deadLetters = _deadLetters;
+      if (deadLetters != null)
+      {
+        deadLetters.add(info,error);
+      }
+    }
+    complete(info,error);
   }
 
   /**
-   * Sets the process queue to be used by this state machine.  For simple and non-robust
-   * reference or academic type applications, you can use {@link
-   * xephyrus.sam.core.queue.MemoryProcessingQueue}.
+   * Puts a state being retried back onto the queue.
    *
-   * @param processingQueue
-   *     The process queue to use for this state machine.
+   * @param info
+   *     The state and payload to retry.
    */
-  public final void setProcessingQueue (ProcessingQueue<S, P> processingQueue)
+  private void requeue (ProcessInfo<S,P> info)
   {
-    _processingQueue = processingQueue;
+    try
+    {
+      _processingQueue.push(info);
+      signalDispatcher();
+    }
+    catch (ProcessingQueueException cant)
+    {
+      triggerStateCycle(StateCycles.ERROR, info.getState(), info.getPayload(), cant);
+      complete(info,cant);
+    }
   }
 
   /**
-   * Provides the start state for new payloads.  Any new payloads registered with this state
-   * machine will initially be in the state given by this method.
+   * Ends processing of a payload: frees up its room in the machine, if it took any, and lets the
+   * completion listeners know.
    *
-   * @return
-   *     The start state for new payloads.
+   * @param info
+   *     The payload which has completed, along with its last valid state.
+   * @param error
+   *     The exception that caused processing of this payload to end, if any.
    */
-  public final S getStartState ()
+  private void complete (ProcessInfo<S,P> info, Throwable error)
   {
-    if (_startState == null)
+    P payload = info.getPayload();
+    S lastState = info.getState();
+    TransitionLog log = _transitionLog;
+    if (log != null)
     {
-      _startState = _stateType.getEnumConstants()[0];
+      try
+      {
+        log.record((error == null ? TransitionLog.Kind.COMPLETE : TransitionLog.Kind.FAILED),
+            payload.getId(),lastState,null);
+      }
+      catch (TransitionLogException cant)
+      {
+        // The payload is done either way; the listeners hear about the log failing instead.
+        if (error == null)
+        {
+          error = cant;
+        }
+      }
     }
-    return _startState;
+    if (info.isAdmitted())
+    {
+      _inFlight.decrementAndGet();
+    }
+    if (_admissionWaiters > 0)
+    {
+      _admissionLock.lock();
+      try
+      {
+        _admissionAvailable.signal();
+      }
+      finally
+      {
+        _admissionLock.unlock();
+      }
+    }
+    triggerNotifyComplete(payload,lastState,error);
   }
 
   /**
-   * Determines the start state for new payloads.  If this isn't set, the first state in the state
-   * enum is considered as the start state.
+   * Takes every item for a payload out of a queue which can't look payloads up by id, by
+   * searching it item by item.  The queue may change while it's searched; if the item at an
+   * index turns out not to be the one found there, it's put back and the search starts over.
    *
-   * @param state
-   *     The state to use as the start state for new payloads.
+   * @param queue
+   *   The queue to search.
+   * @param payloadId
+   *   The id of the payload.
+   * @return
+   *   The items taken out of the queue.
+   * @throws ProcessingQueueException
+   *   If an item can't be taken out of the queue or put back.
    */
-  public final void setStartState (S state)
+  private List<ProcessInfo<S,P>> removePayload (ProcessingQueue<S,P> queue, Long payloadId)
+      throws ProcessingQueueException
   {
-    _startState = state;
+    List<ProcessInfo<S,P>> removed = new ArrayList<ProcessInfo<S,P>>();
+    int index = 0;
+    while (index < queue.getCount())
+    {
+      ProcessInfo<S,P> item = queue.peek(index);
+      if (item == null)
+      {
+        break;
+      }
+      if (!payloadId.equals(item.getPayload().getId()))
+      {
+        index++;
+        continue;
+      }
+      ProcessInfo<S,P> taken = queue.remove(index);
+      if (taken == item)
+      {
+        removed.add(item);
+      }
+      else if (taken != null)
+      {
+        queue.push(taken);
+        index = 0;
+      }
+    }
+    return removed;
   }
 
   /**
-   * Provides the current thread pool for the state worker threads.
+   * Asks the machine cycle controller whether an item may be processed now, if it decides item
+   * by item (see {@link StateDispatchController}).  If it says yes, anything it took for the item
+   * has to be given back with {@link #cancelDispatch(ProcessInfo)} if the item isn't processed
+   * after all.
    *
+   * @param info
+   *   The item about to be processed.
    * @return
-   *   The state worker's thread pool.
+   *   If the item may be processed now, true; otherwise false.
    */
-  public ExecutorService getThreadPool ()
+  private boolean mayDispatch (ProcessInfo<S,P> info)
   {
-    return _threadPool;
+    MachineCycleController controller = getMachineCycleController();
+    return ((!(controller instanceof StateDispatchController)) ||
+        (((StateDispatchController) controller).shouldDispatch(info)));
   }
 
   /**
-   * Sets the thread pool for the state worker threads.
+   * Tells the machine cycle controller that an item it let through wasn't processed after all.
    *
-   * @param threadPool
-   *   The state worker's thread pool.
+   * @param info
+   *   The item which went back onto the queue.
    */
-  public void setThreadPool (ExecutorService threadPool)
+  private void cancelDispatch (ProcessInfo<S,P> info)
   {
-    _threadPool = threadPool;
+    MachineCycleController controller = getMachineCycleController();
+    if (controller instanceof StateDispatchController)
+    {
+      ((StateDispatchController) controller).cancelDispatch(info);
+    }
   }
 
   /**
-   * Register a new payload for processing.  This submits a payload to the state machine.  The
-   * state machine will the pass this payload to the registered methods for each state it
-   * encounters until an end-state condition or an exception condition occurs.
-   *
-   * Every payload must have a valid id.
+   * Hands a single item to a state worker in the thread pool.  If the machine cycle controller
+   * defers it (see {@link StateDispatchController}), the item goes back onto the queue, held
+   * back for as long as the controller says.
+   * <p>
+   *   Each time the pool refuses the item, a full machine cycle is triggered, giving listeners
+   *   the chance to make room (see {@link xephyrus.sam.core.executor.ElasticPoolManager}).  When
+   *   waiting is allowed, the item is then held until a state worker finishes and the pool has
+   *   room, rather than going back onto the queue behind everything else; otherwise, or once the
+   *   wait runs out, or if the machine is stopping or the thread is interrupted, it goes back
+   *   onto the queue.
+   * </p><p>
+   *   If the pool only refused the item because the one lane it has to go to is full (see
+   *   {@link LaneFullException}), there's no point waiting, since items bound for other lanes
+   *   would be held up behind it.  The item is held back in the queue for the controller's yield
+   *   time instead, and the dispatcher carries on.  It's held back for at least a millisecond,
+   *   even if the yield time is zero, so the dispatcher doesn't spin on the full lane.
+   * </p>
    *
-   * @param payload
-   *     The payload to be processed.
+   * @param info
+   *   The item to be processed.
+   * @param maxWait
+   *   The longest time to wait for room in the pool if the pool refuses the item, in
+   *   milliseconds.  Zero doesn't wait at all, and {@link Long#MAX_VALUE} waits as long as it
+   *   takes.
+   * @return
+   *   What became of the item.
+   * @throws ProcessingQueueException
+   *   If the item can't be pushed back onto the queue.
    */
-  public final void process (P payload)
+  private Handoff dispatch (ProcessInfo<S,P> info, long maxWait)
+      throws ProcessingQueueException
   {
-    if (payload != null)
+    MachineCycleController controller = getMachineCycleController();
+    if (controller instanceof StateDispatchController)
     {
-      if (payload.getId() == null)
+      StateDispatchController dispatchController = (StateDispatchController) controller;
+      if (!dispatchController.shouldDispatch(info))
       {
-        throw new IllegalArgumentException("Payload type " + payload.getClass().getCanonicalName() +
-            " has a null id");
+        long deferTime = Math.max(0L,dispatchController.getDeferTime(info));
+        _processingQueue.push(delay(info,System.currentTimeMillis() + deferTime));
+        return Handoff.DEFERRED;
       }
-      ProcessInfo<S,P> info = new ProcessInfo<S,P>(payload,getStartState());
-      try
+    }
+
+    StateWorker worker = new StateWorker(info);
+    boolean waiting = false;
+    long giveUp = Long.MAX_VALUE;
+    try
+    {
+      while (true)
       {
-        _processingQueue.queue(info);
+        try
+        {
+          _threadPool.submit(worker);
+          return Handoff.HANDED;
+        }
+        catch (LaneFullException cant)
+        {
+          triggerMachineCycle(MachineCycles.FULL);
+          cancelDispatch(info);
+          _processingQueue.push(delay(info,System.currentTimeMillis() +
+              Math.max(1L,controller.getYieldTime())));
+          return Handoff.DEFERRED;
+        }
+        catch (RejectedExecutionException cant)
+        {
+          triggerMachineCycle(MachineCycles.FULL);
+          long now = System.currentTimeMillis();
+          if ((maxWait <= 0L) || (now >= giveUp) || (_stopRequested) ||
+              (Thread.currentThread().isInterrupted()))
+          {
+            cancelDispatch(info);
+            _processingQueue.push(info);
+            return Handoff.REFUSED;
+          }
+          if (!waiting)
+          {
+            // Register before trying again, so a worker finishing in between still wakes us.
+            waiting = true;
+            _capacityWaiters.incrementAndGet();
+            if (maxWait < Long.MAX_VALUE)
+            {
+              giveUp = now + maxWait;
+            }
+          }
+          else if (awaitCapacity(worker,Math.min(controller.getYieldTime(),giveUp - now)))
+          {
+            return Handoff.HANDED;
+          }
+        }
       }
-      catch (ProcessingQueueException e)
+    }
+    finally
+    {
+      if (waiting)
       {
-        triggerStateCycle(StateCycles.ERROR,info.getState(),info.getPayload(),e);
-        triggerNotifyComplete(info.getPayload(),info.getState(),e);
+        _capacityWaiters.decrementAndGet();
       }
     }
   }
 
   /**
-   * Registers a state with this state machine.  This defines what method gets executed when
-   * processing of a payload is in this specific state.
-   *
-   * If the registered method is null or if no method is defined for a state, that state is
-   * considered an end state.  Transition to such a state will signal the end of processing for
-   * that payload.
-   *
-   * The method given must be in this class (sub-class, of course), and the method signature must
-   * be:
-   * <br/><pre>S method (P payload)</pre><br/>
-   *
-   * The return value of this method is the state to transition to.  Returning null will also
-   * signal the end of processing for that payload.
-   *
-   * This method may throw any exceptions.  Any exceptions thrown will signal the end of
-   * processing for that payload.  The exception will be passed to any completion listeners.
+   * Hands a batch of items to state workers in the thread pool.  Once the pool refuses an item,
+   * that item and the rest of the batch go back onto the queue, in order.  Items deferred by the
+   * machine cycle controller go back onto the queue as well, but don't stop the batch.
    *
-   * @param state
-   *     The state to register.
-   * @param method
-   *     The method to execute for this state.  The return value of this method is the state to
-   *     transition to.
+   * @param batch
+   *   The items to be processed.
+   * @param maxWait
+   *   The longest time to wait for room in the pool each time the pool refuses an item, in
+   *   milliseconds.  Zero doesn't wait at all, and {@link Long#MAX_VALUE} waits as long as it
+   *   takes.
+   * @param handed
+   *   Counts the items handed off, not counting any that were deferred, if it isn't null.
+   * @return
+   *   {@link Handoff#REFUSED} if the pool refused an item; otherwise {@link Handoff#HANDED}.
+   * @throws ProcessingQueueException
+   *   If the items can't be pushed back onto the queue.
    */
-  public final void registerState (S state, Method method)
+  private Handoff dispatch (List<ProcessInfo<S,P>> batch, long maxWait, AtomicInteger handed)
+      throws ProcessingQueueException
   {
-    _stateMap.put(state, method);
+    for (int i = 0; i < batch.size(); i++)
+    {
+      Handoff handoff = dispatch(batch.get(i),maxWait);
+      if (handoff == Handoff.REFUSED)
+      {
+        for (int j = i + 1; j < batch.size(); j++)
+        {
+          _processingQueue.push(batch.get(j));
+        }
+        return Handoff.REFUSED;
+      }
+      if ((handoff == Handoff.HANDED) && (handed != null))
+      {
+        handed.incrementAndGet();
+      }
+    }
+    return Handoff.HANDED;
   }
 
   /**
-   * Registers a state with this state machine.  This gives a handy way to register methods by
-   * name.  Since the signature of the method is fixed (it must be <pre>S method (P payload)</pre>),
-   * and the method must be in this class, finding the method by name is easy peasy.
+   * Makes a copy of a queue item which is held back in the queue until the given time, as a
+   * waiting item (see {@link ProcessingQueueUtils#isProcessInfoWaiting(ProcessInfo)}).
    *
-   * This is the same as calling:
-   * <br/><pre>registerState(state,getClass().getMethod(methodName,payloadType));</pre><br/>
+   * @param info
+   *   The item to hold back.
+   * @param readyTime
+   *   The millisecond timestamp when the item should be ready.
+   * @return
+   *   The held back copy.
+   */
+  private ProcessInfo<S,P> delay (ProcessInfo<S,P> info, long readyTime)
+  {
+    long waitTime = ProcessingQueueUtils.getReadyTime(info) - info.getLastCycle();
+    return new ProcessInfo<S,P>(info.getPayload(),info.getState(),info.getPriority(),
+        info.getAttempt(),readyTime - waitTime,info.isAdmitted());
+  }
+
+  /**
+   * Waits for a state worker to finish, making room in the thread pool, or for the given time to
+   * pass, whichever comes first.
+   * <p>
+   *   A worker finishing only frees its slot in a pool which hands work straight to its threads,
+   *   like the default {@link ThreadPoolExecutor} over a {@link SynchronousQueue}, once its
+   *   thread comes back for more, which is after the worker itself has returned.  So for those
+   *   pools, the waiting worker is offered straight to the next thread that comes back, rather
+   *   than waiting to be woken and trying the pool again too soon.
+   * </p>
    *
-   * @param state
-   *     The state to register.
-   * @param methodName
-   *     The method to execute for this state.  The return value of this method is the state to
-   *     transition to.
-   * @throws NoSuchMethodException
-   *     If no method can be found with the given name and the correct signature, a big nasty
-   *     NoSuchMethodException is thrown.
+   * @param worker
+   *   The worker waiting for room.
+   * @param waitTime
+   *   The longest time to wait, in milliseconds.  At least a millisecond is always allowed.
+   * @return
+   *   If the worker was handed straight to a thread in the pool, true; if the pool should be
+   *   tried again, false.
    */
-  public final void registerState (S state, String methodName)
-      throws NoSuchMethodException
+  private boolean awaitCapacity (StateWorker worker, long waitTime)
   {
-    registerState(state, getClass().getMethod(methodName, (Class) _payloadType));
+    long waitNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1L,waitTime));
+    ExecutorService pool = _threadPool;
+    if ((pool instanceof ThreadPoolExecutor) && (!pool.isShutdown()) &&
+        (((ThreadPoolExecutor) pool).getQueue() instanceof SynchronousQueue))
+    {
+      try
+      {
+        return ((ThreadPoolExecutor) pool).getQueue().offer(worker,waitNanos,
+            TimeUnit.NANOSECONDS);
+      }
+      catch (InterruptedException stop)
+      {
+        Thread.currentThread().interrupt();
+        return false;
+      }
+    }
+    LockSupport.parkNanos(this,waitNanos);
+    return false;
   }
 
   /**
-   * Registers a request that this state machine be stopped.  This request is passed to the main
-   * execution thread for this state machine.  The state machine will stop on it's next cycle.
+   * Wakes the dispatchers, if any are waiting for room in the thread pool, and any outside
+   * schedulers, because a state worker has finished and there may be room in the pool.  Outside
+   * schedulers are always woken, since the pool is shared with other machines, and the item
+   * waiting for room may be another machine's.
    */
-  public final void requestStop ()
+  private void signalCapacity ()
   {
-    _stopRequested = true;
+    if (_capacityWaiters.get() > 0)
+    {
+      for (Thread dispatcher: _dispatchThreads)
+      {
+        LockSupport.unpark(dispatcher);
+      }
+    }
+    for (Thread scheduler: _schedulerThreads)
+    {
+      LockSupport.unpark(scheduler);
+    }
   }
 
   /**
-   * This is the main execution thread for this state machine.  Once started, this will execute
-   * until a stop is requested.  This thread will handle one state execution for one payload per
-   * cycle.
+   * Wakes the dispatchers if they're waiting for work.  This only has an effect on the machine's
+   * own dispatchers in wake-on-queue mode; any outside schedulers are always woken.
    */
-  @SuppressWarnings({"unchecked"})
-  @Override
-  public final void run ()
+  protected final void signalDispatcher ()
   {
-    try
+    if (_wakeOnQueue)
     {
-      triggerMachineCycle(MachineCycles.STARTING);
-      while (!_stopRequested)
+      LockSupport.unpark(this);
+      for (Thread dispatcher: _dispatchThreads)
       {
-        if (getMachineCycleController().shouldProcess())
-        {
-          triggerMachineCycle(MachineCycles.BEFORE);
-          ProcessInfo<S,P> info = _processingQueue.popReady();
-          if (info != null)
-          {
-            try
-            {
-              _threadPool.submit(new StateWorker(info));
-            }
-            catch (RejectedExecutionException cant)
-            {
-              triggerMachineCycle(MachineCycles.FULL);
-              _processingQueue.push(info);
-            }
-          }
-          triggerMachineCycle(MachineCycles.AFTER);
-        }
+        LockSupport.unpark(dispatcher);
+      }
+    }
+    for (Thread scheduler: _schedulerThreads)
+    {
+      LockSupport.unpark(scheduler);
+    }
+  }
 
-        if (getMachineCycleController().shouldYield())
-        {
-          triggerMachineCycle(MachineCycles.YIELD);
-          Thread.sleep(getMachineCycleController().getYieldTime());
-        }
+  /**
+   * Yields the main execution thread.  In wake-on-queue mode this parks until something is added
+   * to the queue or the yield time passes, whichever comes first; otherwise this just sleeps.
+   *
+   * @param yieldTime
+   *   The longest time to yield, in milliseconds.
+   * @throws InterruptedException
+   *   If the main execution thread is interrupted while yielding.
+   */
+  private void waitForWork (long yieldTime)
+      throws InterruptedException
+  {
+    if (_wakeOnQueue)
+    {
+      LockSupport.parkNanos(this,TimeUnit.MILLISECONDS.toNanos(yieldTime));
+      if (Thread.interrupted())
+      {
+        throw new InterruptedException();
       }
     }
-    catch (Throwable fail)
+    else
     {
-      triggerMachineCycle(MachineCycles.FAILING,fail);
+      Thread.sleep(yieldTime);
     }
-    triggerMachineCycle(MachineCycles.STOPPING);
   }
 
   /**
@@ -507,6 +2485,18 @@ public class StateMachine<S extends Enum, P extends Payload>
         StateMachineState ann = method.getAnnotation(StateMachineState.class);
         S state = (S) Enum.valueOf(_stateType,ann.value());
         registerState(state,method);
+        setStatePriority(state,ann.priority());
+        setStateTimeout(state,ann.timeout());
+        if (method.isAnnotationPresent(RetryableState.class))
+        {
+          RetryableState retry = method.getAnnotation(RetryableState.class);
+          RetryPolicy policy = new RetryPolicy(retry.maxAttempts(),retry.backoff());
+          policy.setMaxBackoff(retry.maxBackoff());
+          policy.setMultiplier(retry.multiplier());
+          policy.setJitter(retry.jitter());
+          policy.setRetryOn(retry.retryOn());
+          setRetryPolicy(state,policy);
+        }
 
         if (method.isAnnotationPresent(StartingState.class))
         {
@@ -518,6 +2508,11 @@ public class StateMachine<S extends Enum, P extends Payload>
         throw new InvalidStateDeclarationException("Method " + method.getName() + " is " +
             "annotated as a StartingState, but not as a StateMachineState.");
       }
+      else if (method.isAnnotationPresent(RetryableState.class))
+      {
+        throw new InvalidStateDeclarationException("Method " + method.getName() + " is " +
+            "annotated as a RetryableState, but not as a StateMachineState.");
+      }
     }
   }
 
@@ -671,12 +2666,40 @@ public class StateMachine<S extends Enum, P extends Payload>
   private Class<S> _stateType;
   private Class<P> _payloadType;
   private Object _machine;
-  private Map<S,Method> _stateMap = new HashMap<S,Method>();
-  private ProcessingQueue<S,P> _processingQueue;
+  private StateHandler[] _handlers;
+  private int[] _statePriorities;
+  private long[] _stateTimeouts;
+  private RetryPolicy[] _retryPolicies;
+  private DeadLetterStore<S,P> _deadLetters;
+  private TransitionLog _transitionLog;
+  private ProcessingQueue<S,P> _processingQueue = new ConcurrentProcessingQueue<S,P>();
   private MachineCycleController _cycleController;
-  private boolean _stopRequested;
+  private volatile boolean _stopRequested;
+  private volatile boolean _wakeOnQueue;
+  private int _dispatchBatchSize = 1;
+  private int _dispatcherCount = 1;
+  private final List<Thread> _dispatchThreads = new CopyOnWriteArrayList<Thread>();
+  private final List<Thread> _schedulerThreads = new CopyOnWriteArrayList<Thread>();
+  private int _maxInlineHops;
+  private long _inlineTimeSlice;
+  private int _capacity;
+  private OverflowPolicy _overflowPolicy = OverflowPolicy.BLOCK;
+  private final AtomicInteger _inFlight = new AtomicInteger();
+  private final ReentrantLock _admissionLock = new ReentrantLock();
+  private final Condition _admissionAvailable = _admissionLock.newCondition();
+  private volatile int _admissionWaiters;
+  private final AtomicInteger _capacityWaiters = new AtomicInteger();
+  private final Runnable _capacityListener = new Runnable()
+  {
+    @Override
+    public void run ()
+    {
+      signalCapacity();
+    }
+  };
   private List<CompletionListener<S,P>> _completionListeners =
       new LinkedList<CompletionListener<S,P>>();
+  private CompletionPublisher<S,P> _completionPublisher;
   private List<MachineCycleListener> _machineCycleListeners =
       new LinkedList<MachineCycleListener>();
   private List<StateCycleListener<S,P>> _stateCycleListeners =
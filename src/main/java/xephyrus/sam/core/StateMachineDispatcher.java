@@ -1,13 +1,34 @@
 package xephyrus.sam.core;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * <p>
  *   Provides a repository of {@link StateMachine}s.  This allows state machines to be registered
  *   by their payload type, and payloads to be submitted to the corresponding machine.  This can be
  *   useful when managing several different state machines
+ * </p><p>
+ *   The dispatcher can also run all of its machines itself, over one shared thread pool, instead
+ *   of each machine running its own thread and its own pool.  Calling {@link #start()} starts a
+ *   single scheduler thread which takes turns pulling ready items off each machine's queue and
+ *   handing them to the shared pool.  Each machine gets a share of the pool in proportion to the
+ *   weight it was registered with (using deficit round-robin), so a busy machine can't crowd out
+ *   the others, and idle machines cost nothing.  In this mode, the registered machines must not
+ *   be started themselves.  A machine registered after the dispatcher is started is switched
+ *   over to the shared pool straight away.
  * </p>
  */
 public class StateMachineDispatcher
@@ -21,13 +42,41 @@ public class StateMachineDispatcher
    *   The state machine.
    */
   public void registerStateMachine (Class<? extends Payload> payloadType, StateMachine machine)
+  {
+    registerStateMachine(payloadType,machine,1);
+  }
+
+  /**
+   * Registers into the dispatcher the given state machine for the given payload type, with the
+   * given weight for sharing the thread pool once the dispatcher is started.
+   *
+   * @param payloadType
+   *   The payload type.  Note that only one state machine can be registered for any given type.
+   * @param machine
+   *   The state machine.
+   * @param weight
+   *   The most items this machine may hand to the shared pool on each turn.  When every machine
+   *   is busy, each gets a share of the pool in proportion to its weight.
+   */
+  public synchronized void registerStateMachine (Class<? extends Payload> payloadType,
+      StateMachine machine, int weight)
   {
     if (_machines.containsKey(payloadType))
     {
       throw new IllegalArgumentException("Tried to add payload " + payloadType.getCanonicalName() +
           " twice");
     }
+    if (weight < 1)
+    {
+      throw new IllegalArgumentException("Weight must be at least 1, not " + weight);
+    }
+    if (_scheduler != null)
+    {
+      machine.setThreadPool(_threadPool);
+      machine.addSchedulerThread(_scheduler);
+    }
     _machines.put(payloadType,machine);
+    _scheduled.add(new ScheduledMachine(machine,weight));
   }
 
   /**
@@ -52,6 +101,247 @@ public class StateMachineDispatcher
     machine.process(payload);
   }
 
+  /**
+   * Submits a batch of payloads for processing.  The payloads are grouped by the StateMachine
+   * registered for their type, keeping their order within each group, and each group is handed
+   * to its machine in one go (see {@link StateMachine#process(Collection)}).
+   *
+   * @param payloads
+   *   The payloads to be processed.
+   * @throws IllegalArgumentException
+   *   If no machine has been registered for one of the payload types.  In that case none of the
+   *   batch is processed.
+   */
+  @SuppressWarnings({"unchecked"})
+  public void process (Collection<? extends Payload> payloads)
+  {
+    Map<StateMachine,List<Payload>> groups = new LinkedHashMap<StateMachine,List<Payload>>();
+    for (Payload payload: payloads)
+    {
+      StateMachine machine = _machines.get(payload.getClass());
+      if (machine == null)
+      {
+        throw new IllegalArgumentException("No machine has been registered for payload " +
+            payload.getClass().getCanonicalName());
+      }
+      List<Payload> group = groups.get(machine);
+      if (group == null)
+      {
+        group = new ArrayList<Payload>();
+        groups.put(machine,group);
+      }
+      group.add(payload);
+    }
+
+    for (Map.Entry<StateMachine,List<Payload>> group: groups.entrySet())
+    {
+      group.getKey().process(group.getValue());
+    }
+  }
+
+  /**
+   * Provides the thread pool shared by all the machines once the dispatcher is started.
+   *
+   * @return
+   *   The shared thread pool.
+   */
+  public ExecutorService getThreadPool ()
+  {
+    return _threadPool;
+  }
+
+  /**
+   * Sets the thread pool shared by all the machines once the dispatcher is started.  By default
+   * this is a fixed pool of 10 threads, just like a single machine's.
+   *
+   * @param threadPool
+   *   The shared thread pool.
+   */
+  public void setThreadPool (ExecutorService threadPool)
+  {
+    _threadPool = threadPool;
+  }
+
+  /**
+   * Provides how long the scheduler sleeps when none of the machines have anything ready.
+   *
+   * @return
+   *   The yield time, in milliseconds.
+   */
+  public long getYieldTime ()
+  {
+    return _yieldTime;
+  }
+
+  /**
+   * Sets how long the scheduler sleeps when none of the machines have anything ready.  The
+   * scheduler is woken early whenever anything is added to a machine's queue through the
+   * machine, so this mostly matters for waiting states.  By default this is 100 milliseconds.
+   *
+   * @param yieldTime
+   *   The yield time, in milliseconds.
+   */
+  public void setYieldTime (long yieldTime)
+  {
+    _yieldTime = yieldTime;
+  }
+
+  /**
+   * Starts running all the registered machines over the shared thread pool.  Each machine's
+   * thread pool is replaced with the shared one.
+   */
+  public synchronized void start ()
+  {
+    if (_scheduler != null)
+    {
+      throw new IllegalStateException("The dispatcher has already been started");
+    }
+    _stopRequested = false;
+    _scheduler = new Thread(new Runnable()
+    {
+      @Override
+      public void run ()
+      {
+        schedule();
+      }
+    },"sam-dispatcher");
+    for (ScheduledMachine scheduled: _scheduled)
+    {
+      scheduled._machine.setThreadPool(_threadPool);
+      scheduled._machine.addSchedulerThread(_scheduler);
+    }
+    _scheduler.start();
+  }
+
+  /**
+   * Registers a request that the scheduler be stopped.  The scheduler will stop after its
+   * current turn.  Anything still in the machines' queues stays there.
+   */
+  public synchronized void requestStop ()
+  {
+    _stopRequested = true;
+    if (_scheduler != null)
+    {
+      LockSupport.unpark(_scheduler);
+    }
+  }
+
+  /**
+   * The scheduler loop.  Each pass goes round the machines, giving each a turn to hand off up to
+   * its deficit: its weight, plus whatever it couldn't use on its last turn.  Machines with
+   * nothing ready lose their deficit.  When the pool is full, the machine whose turn it is waits
+   * for room, up to the idle time, and is woken as soon as any machine's state worker finishes.
+   * If the pool still refuses the item, the round is cut short and picks up with the same
+   * machine next time.  Items a machine's controller holds back don't count as the pool being
+   * full, so a throttled machine doesn't hold up the others.
+   */
+  private void schedule ()
+  {
+    int next = 0;
+    AtomicInteger handed = new AtomicInteger();
+    while (!_stopRequested)
+    {
+      boolean dispatched = false;
+      boolean full = false;
+      int count = _scheduled.size();
+      for (int i = 0; (i < count) && (!full); i++)
+      {
+        ScheduledMachine scheduled = _scheduled.get((next + i) % count);
+        if (!scheduled._machine.getMachineCycleController().shouldProcess())
+        {
+          scheduled._deficit = 0;
+          continue;
+        }
+
+        scheduled._deficit += scheduled._weight;
+        try
+        {
+          handed.set(0);
+          StateMachine.Handoff handoff = scheduled._machine.dispatchReady(scheduled._deficit,
+              handed,getIdleTime());
+          scheduled._deficit -= handed.get();
+          dispatched |= (handed.get() > 0);
+          if (handoff == StateMachine.Handoff.REFUSED)
+          {
+            scheduled._deficit = Math.min(scheduled._deficit,scheduled._weight);
+            full = true;
+            next = (next + i) % count;
+          }
+          else if (!scheduled._machine.getProcessingQueue().isReady())
+          {
+            scheduled._deficit = 0;
+          }
+          else
+          {
+            scheduled._deficit = Math.min(scheduled._deficit,scheduled._weight);
+          }
+        }
+        catch (Throwable fail)
+        {
+          scheduled._machine.triggerMachineCycle(StateMachine.MachineCycles.FAILING,fail);
+        }
+      }
+
+      if ((!full) && (!dispatched))
+      {
+        LockSupport.parkNanos(this,TimeUnit.MILLISECONDS.toNanos(getIdleTime()));
+      }
+    }
+
+    synchronized (this)
+    {
+      for (ScheduledMachine scheduled: _scheduled)
+      {
+        scheduled._machine.removeSchedulerThread(Thread.currentThread());
+      }
+      _scheduler = null;
+    }
+  }
+
+  /**
+   * Provides how long the scheduler should sleep when nothing was handed off: the yield time, cut
+   * short by any machine whose controller decides item by item (see
+   * {@link StateDispatchController}), since it may be holding items back for less time than that.
+   *
+   * @return
+   *   The time to sleep, in milliseconds.
+   */
+  private long getIdleTime ()
+  {
+    long idleTime = _yieldTime;
+    for (ScheduledMachine scheduled: _scheduled)
+    {
+      MachineCycleController controller = scheduled._machine.getMachineCycleController();
+      if (controller instanceof StateDispatchController)
+      {
+        idleTime = Math.min(idleTime,controller.getYieldTime());
+      }
+    }
+    return Math.max(1L,idleTime);
+  }
+
+  /**
+   * A registered machine, with its scheduling weight and deficit.
+   */
+  static private class ScheduledMachine
+  {
+    ScheduledMachine (StateMachine machine, int weight)
+    {
+      _machine = machine;
+      _weight = weight;
+    }
+
+    private final StateMachine _machine;
+    private final int _weight;
+    private int _deficit;
+  }
+
   private Map<Class<? extends Payload>,StateMachine> _machines =
-      new HashMap<Class<? extends Payload>, StateMachine>();
+      new ConcurrentHashMap<Class<? extends Payload>, StateMachine>();
+  private List<ScheduledMachine> _scheduled = new CopyOnWriteArrayList<ScheduledMachine>();
+  private ExecutorService _threadPool = new ThreadPoolExecutor(10,10,60L,TimeUnit.SECONDS,
+      new SynchronousQueue<Runnable>(),new AbortPolicy());
+  private long _yieldTime = 100L;
+  private Thread _scheduler;
+  private volatile boolean _stopRequested;
 }
@@ -0,0 +1,29 @@
+package xephyrus.sam.core;
+
+/**
+ * This is passed to {@link StateCycleListener}s and {@link CompletionListener}s when a state
+ * method runs longer than the timeout set for its state (see
+ * {@link StateMachine#setStateTimeout(Enum,long)}).  Processing of that payload ends there.
+ */
+public class StateTimeoutException
+  extends RuntimeException
+{
+  public StateTimeoutException ()
+  {
+  }
+
+  public StateTimeoutException (String msg)
+  {
+    super(msg);
+  }
+
+  public StateTimeoutException (String msg, Throwable cause)
+  {
+    super(msg,cause);
+  }
+
+  public StateTimeoutException (Throwable cause)
+  {
+    super(cause);
+  }
+}
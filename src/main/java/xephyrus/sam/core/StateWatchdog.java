@@ -0,0 +1,99 @@
+package xephyrus.sam.core;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Times state executions which have a timeout.  One daemon thread serves every
+ * {@link StateMachine}, since it only wakes when something is actually due.  Since that one
+ * thread is shared, tasks should only note what's due and hand any real work, like running
+ * listeners, on with {@link #expire(Runnable)}.
+ * <p>
+ *   Expiries aren't handed to the machine's own thread pool, since a state usually times out
+ *   because the pool's threads are stuck, and the expiry would have to wait behind them.  They
+ *   run on their own daemon threads instead, which are started as needed and go away once
+ *   they've been idle for a minute.
+ * </p>
+ */
+final class StateWatchdog
+{
+  /**
+   * Schedules the given task to run once the delay passes, unless it's cancelled first.
+   *
+   * @param task
+   *   The task to run.
+   * @param timeout
+   *   The delay, in milliseconds.
+   * @return
+   *   The scheduled task, which may be cancelled.
+   */
+  static ScheduledFuture<?> schedule (Runnable task, long timeout)
+  {
+    return _timer.schedule(task,timeout,TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Runs the work of expiring a state execution, like failing the state and running the
+   * listeners, on one of the expiry threads.
+   *
+   * @param task
+   *   The expiry work.
+   */
+  static void expire (Runnable task)
+  {
+    _expirer.execute(task);
+  }
+
+  /**
+   * Creates the timer.  Cancelled timeouts are dropped straight away rather than left to expire,
+   * since nearly every timeout is cancelled.
+   */
+  static private ScheduledThreadPoolExecutor createTimer ()
+  {
+    ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1,new ThreadFactory()
+    {
+      @Override
+      public Thread newThread (Runnable runnable)
+      {
+        Thread thread = new Thread(runnable,"sam-watchdog");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    timer.setRemoveOnCancelPolicy(true);
+    return timer;
+  }
+
+  /**
+   * Creates the expiry threads' pool.  It never refuses work, so an expiry never waits for
+   * another one, however slow its listeners are.
+   */
+  static private ExecutorService createExpirer ()
+  {
+    return new ThreadPoolExecutor(0,Integer.MAX_VALUE,60L,TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>(),new ThreadFactory()
+        {
+          @Override
+          public Thread newThread (Runnable runnable)
+          {
+            Thread thread = new Thread(runnable,"sam-expiry-" + _expiryThreads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+  }
+
+  private StateWatchdog ()
+  {
+  }
+
+  static private final ScheduledThreadPoolExecutor _timer = createTimer();
+  static private final AtomicInteger _expiryThreads = new AtomicInteger();
+  static private final ExecutorService _expirer = createExpirer();
+}
@@ -0,0 +1,123 @@
+package xephyrus.sam.core;
+
+/**
+ * A simple token bucket rate limiter.  Tokens are added continuously at a fixed rate, up to a
+ * maximum burst, and each permit taken uses up one token.  The bucket starts full.
+ */
+public class TokenBucket
+{
+  /**
+   * Creates a new one of these.
+   *
+   * @param permitsPerSecond
+   *   The rate at which tokens are added.
+   * @param burst
+   *   The most tokens the bucket can hold, which is the most permits that can be taken at once
+   *   after a quiet spell.
+   */
+  public TokenBucket (double permitsPerSecond, int burst)
+  {
+    if (permitsPerSecond <= 0.0)
+    {
+      throw new IllegalArgumentException("Rate must be positive, not " + permitsPerSecond);
+    }
+    if (burst < 1)
+    {
+      throw new IllegalArgumentException("Burst must be at least 1, not " + burst);
+    }
+    _permitsPerNano = permitsPerSecond / 1000000000.0;
+    _burst = burst;
+    _tokens = burst;
+    _lastRefill = System.nanoTime();
+    _reserved = _lastRefill;
+  }
+
+  /**
+   * Takes a permit, if there's a token for it.
+   *
+   * @return
+   *   If a permit was taken, true; otherwise false.
+   */
+  public synchronized boolean tryAcquire ()
+  {
+    refill();
+    if (_tokens >= 1.0)
+    {
+      _tokens -= 1.0;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Gives back a permit which was taken but not used.  The bucket never holds more than its
+   * burst.
+   */
+  public synchronized void release ()
+  {
+    refill();
+    _tokens = Math.min(_burst,_tokens + 1.0);
+  }
+
+  /**
+   * Reports how long until the next token is available.
+   *
+   * @return
+   *   The time until a permit can be taken, in milliseconds.  Zero if one can be taken now.
+   */
+  public synchronized long getWaitTime ()
+  {
+    refill();
+    if (_tokens >= 1.0)
+    {
+      return 0L;
+    }
+    return (long) Math.ceil((1.0 - _tokens) / _permitsPerNano / 1000000.0);
+  }
+
+  /**
+   * <p>
+   *   Books a place in line for a future token, and reports how long until it's due.  The first
+   *   caller in line is due when the next token is; each caller after that is due one token
+   *   later than the one before, so callers which have been turned away can come back one at a
+   *   time instead of all at once.
+   * </p><p>
+   *   A booking doesn't set a token aside; whoever calls {@link #tryAcquire()} first when the
+   *   token comes still gets it.
+   * </p>
+   *
+   * @return
+   *   The time until the booked token is due, in milliseconds.  Zero if one can be taken now.
+   */
+  public synchronized long reserve ()
+  {
+    refill();
+    long due = _lastRefill;
+    if (_tokens < 1.0)
+    {
+      due += (long) Math.ceil((1.0 - _tokens) / _permitsPerNano);
+    }
+    if (_reserved - due > 0L)
+    {
+      due = _reserved;
+    }
+    _reserved = due + (long) Math.ceil(1.0 / _permitsPerNano);
+    return (long) Math.ceil((due - _lastRefill) / 1000000.0);
+  }
+
+  /**
+   * Adds the tokens earned since the last refill.
+   */
+  private void refill ()
+  {
+    long now = System.nanoTime();
+    _tokens = Math.min(_burst,_tokens + ((now - _lastRefill) * _permitsPerNano));
+    _lastRefill = now;
+  }
+
+  private final double _permitsPerNano;
+  private final int _burst;
+  private double _tokens;
+  private long _lastRefill;
+  private long _reserved;
+}
@@ -0,0 +1,635 @@
+package xephyrus.sam.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+/**
+ * <p>
+ *   A write-ahead log of a {@link StateMachine}'s transitions, which doesn't let a transition
+ *   take effect until it's safely on the disk.  Once a log is set with
+ *   {@link StateMachine#setTransitionLog(TransitionLog)}, each state worker records every
+ *   transition it makes before pushing the next state, and every completion before the
+ *   completion listeners hear of it, and waits until the record is durable before carrying on.
+ * </p><p>
+ *   Forcing each record out to the disk on its own would hold every worker to the speed of the
+ *   disk's flushes.  Instead the log commits in groups: records from all the workers go into a
+ *   shared buffer, and a single writer thread writes the buffer out and forces it to the disk in
+ *   one go, then lets every worker with a record in that batch carry on.  While one batch is
+ *   being forced, the next one fills, so the busier the machine, the more records share each
+ *   flush.  A batch is written as soon as the writer is free, unless a delay is set, in which
+ *   case the writer waits up to that long for the batch to fill before writing it, trading a
+ *   little latency for fewer, larger flushes.  A batch that reaches the maximum batch size is
+ *   written straight away, and workers wait for room if the writer falls behind.
+ * </p><p>
+ *   Each record carries a checksum, so {@link #read(File,Class)} stops cleanly at a record that
+ *   was only partly written when the process stopped.  The log is appended to if the file
+ *   already exists, after its last intact record: a torn record left at the end is cut off when
+ *   the log is opened, so the records written after it can still be read back.  Call
+ *   {@link #close()} when done with the log.
+ * </p>
+ */
+public class TransitionLog
+  implements AutoCloseable
+{
+  /**
+   * The kinds of records in the log.
+   */
+  public enum Kind
+  {
+    /** A state finished and the payload moved on to its next state. */
+    TRANSITION,
+    /** Processing of the payload ended normally. */
+    COMPLETE,
+    /** Processing of the payload ended with an error. */
+    FAILED
+  }
+
+  /**
+   * Creates a new one of these, with batches of up to 256KB written as soon as the writer is
+   * free.
+   *
+   * @param file
+   *   The log file.  This is created if need be, and appended to otherwise.
+   * @throws IOException
+   *   If the file can't be opened or read.
+   */
+  public TransitionLog (File file)
+    throws IOException
+  {
+    this(file,256 * 1024,0L,TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Creates a new one of these.
+   *
+   * @param file
+   *   The log file.  This is created if need be, and appended to otherwise.
+   * @param maxBatchSize
+   *   The most bytes to write and flush in one batch.  A batch this full is written straight
+   *   away.
+   * @param maxDelay
+   *   How long the writer waits for a batch to fill before writing it, counted from the first
+   *   record in the batch.  Zero writes each batch as soon as the writer is free.
+   * @param unit
+   *   The unit of the delay.
+   * @throws IOException
+   *   If the file can't be opened or read.
+   */
+  public TransitionLog (File file, int maxBatchSize, long maxDelay, TimeUnit unit)
+    throws IOException
+  {
+    if (maxBatchSize < RECORD_SIZE)
+    {
+      throw new IllegalArgumentException("Batch size must be at least " + RECORD_SIZE +
+          " bytes, not " + maxBatchSize);
+    }
+    _file = file;
+    _maxDelay = unit.toNanos(Math.max(maxDelay,0L));
+    _filling = ByteBuffer.allocateDirect(maxBatchSize);
+    _flushing = ByteBuffer.allocateDirect(maxBatchSize);
+    _channel = FileChannel.open(file.toPath(),StandardOpenOption.CREATE,StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try
+    {
+      // Cut off anything torn at the end, so new records follow straight on from the last one.
+      long end = scan(_channel,null,null);
+      _channel.truncate(end);
+      _channel.position(end);
+    }
+    catch (IOException e)
+    {
+      _channel.close();
+      throw e;
+    }
+
+    _writer = new Thread("sam-transition-log")
+    {
+      @Override
+      public void run ()
+      {
+        write();
+      }
+    };
+    _writer.setDaemon(true);
+    _writer.start();
+  }
+
+  /**
+   * Provides the log file.
+   *
+   * @return
+   *   The file.
+   */
+  public File getFile ()
+  {
+    return _file;
+  }
+
+  /**
+   * Provides how long the writer waits for a batch to fill before writing it.
+   *
+   * @return
+   *   The delay, in nanoseconds.
+   */
+  public long getMaxDelay ()
+  {
+    return _maxDelay;
+  }
+
+  /**
+   * Provides the most bytes written and flushed in one batch.
+   *
+   * @return
+   *   The batch size.
+   */
+  public int getMaxBatchSize ()
+  {
+    return _filling.capacity();
+  }
+
+  /**
+   * Provides the number of records made durable so far.
+   *
+   * @return
+   *   The record count.
+   */
+  public long getRecordCount ()
+  {
+    _lock.lock();
+    try
+    {
+      return _durable;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Provides the number of times the log has been forced to the disk so far.  Each flush makes a
+   * whole batch of records durable.
+   *
+   * @return
+   *   The flush count.
+   */
+  public long getFlushCount ()
+  {
+    _lock.lock();
+    try
+    {
+      return _flushes;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Records an event and waits until it's durable.
+   *
+   * @param kind
+   *   What happened.
+   * @param payloadId
+   *   The payload it happened to.
+   * @param fromState
+   *   The state the payload was in.
+   * @param toState
+   *   The state the payload moved on to, or null if it didn't.
+   * @throws TransitionLogException
+   *   If the record can't be made durable, this will be thrown with an appropriate message.
+   */
+  public void record (Kind kind, Long payloadId, Enum fromState, Enum toState)
+  {
+    awaitDurable(append(kind,payloadId,fromState,toState));
+  }
+
+  /**
+   * Adds an event to the batch being filled, without waiting for it to be durable.  If the batch
+   * is full, this waits for room.
+   *
+   * @param kind
+   *   What happened.
+   * @param payloadId
+   *   The payload it happened to.
+   * @param fromState
+   *   The state the payload was in.
+   * @param toState
+   *   The state the payload moved on to, or null if it didn't.
+   * @return
+   *   The record's sequence number, for {@link #awaitDurable(long)}.
+   * @throws TransitionLogException
+   *   If the log can't be written or has been closed, this will be thrown with an appropriate
+   *   message.
+   */
+  public long append (Kind kind, Long payloadId, Enum fromState, Enum toState)
+  {
+    _lock.lock();
+    try
+    {
+      while (_filling.remaining() < RECORD_SIZE)
+      {
+        check();
+        _batchReady.signal();
+        _batchWritten.awaitUninterruptibly();
+      }
+      check();
+
+      int position = _filling.position();
+      _filling.putInt(RECORD_SIZE - HEADER);
+      _filling.putInt(0);
+      _filling.put((byte) kind.ordinal());
+      _filling.putLong(payloadId);
+      _filling.putInt(fromState != null ? fromState.ordinal() : -1);
+      _filling.putInt(toState != null ? toState.ordinal() : -1);
+      _filling.putLong(System.currentTimeMillis());
+      _filling.putInt(position + 4,checksum(_filling,position + HEADER,RECORD_SIZE - HEADER));
+
+      if (position == 0)
+      {
+        _batchStarted = System.nanoTime();
+        _batchReady.signal();
+      }
+      else if (_filling.remaining() < RECORD_SIZE)
+      {
+        _batchReady.signal();
+      }
+      return ++_appended;
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Waits until the record with the given sequence number, and every one before it, is durable.
+   * If the thread is interrupted while waiting, it carries on waiting, and is left interrupted.
+   *
+   * @param sequence
+   *   The record's sequence number, from {@link #append(Kind,Long,Enum,Enum)}.
+   * @throws TransitionLogException
+   *   If the record can't be made durable, this will be thrown with an appropriate message.
+   */
+  public void awaitDurable (long sequence)
+  {
+    _lock.lock();
+    try
+    {
+      while (_durable < sequence)
+      {
+        // Once closed, the writer still finishes off what's been recorded.
+        if ((_failure != null) || (_finished))
+        {
+          check();
+        }
+        _batchWritten.awaitUninterruptibly();
+      }
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+  }
+
+  /**
+   * Writes out whatever's been recorded, then closes the log.  Recording anything after this
+   * throws a {@link TransitionLogException}.
+   *
+   * @throws IOException
+   *   If the log can't be closed.
+   */
+  @Override
+  public void close ()
+    throws IOException
+  {
+    _lock.lock();
+    try
+    {
+      _closed = true;
+      _batchReady.signal();
+    }
+    finally
+    {
+      _lock.unlock();
+    }
+    try
+    {
+      _writer.join();
+    }
+    catch (InterruptedException e)
+    {
+      Thread.currentThread().interrupt();
+    }
+    _channel.close();
+  }
+
+  /**
+   * Reads back the records in a log file, stopping at the first one that's missing or doesn't
+   * check out.
+   *
+   * @param file
+   *   The log file.
+   * @param stateType
+   *   The enumeration of states the log's machine uses.
+   * @param <S>
+   *   The states of the machine.
+   * @return
+   *   The records, in the order they were written.
+   * @throws IOException
+   *   If the file can't be read.
+   */
+  static public <S extends Enum> List<Transition<S>> read (File file, Class<S> stateType)
+    throws IOException
+  {
+    List<Transition<S>> transitions = new ArrayList<Transition<S>>();
+    FileChannel channel = FileChannel.open(file.toPath(),StandardOpenOption.READ);
+    try
+    {
+      scan(channel,stateType.getEnumConstants(),transitions);
+    }
+    finally
+    {
+      channel.close();
+    }
+    return transitions;
+  }
+
+  /**
+   * A record read back from a log.
+   *
+   * @param <S>
+   *   The states of the log's machine.
+   */
+  static public class Transition<S extends Enum>
+  {
+    Transition (Kind kind, Long payloadId, S fromState, S toState, long time)
+    {
+      _kind = kind;
+      _payloadId = payloadId;
+      _fromState = fromState;
+      _toState = toState;
+      _time = time;
+    }
+
+    /**
+     * Provides what happened.
+     *
+     * @return
+     *   The kind of record.
+     */
+    public Kind getKind ()
+    {
+      return _kind;
+    }
+
+    /**
+     * Provides the payload it happened to.
+     *
+     * @return
+     *   The payload's id.
+     */
+    public Long getPayloadId ()
+    {
+      return _payloadId;
+    }
+
+    /**
+     * Provides the state the payload was in.
+     *
+     * @return
+     *   The state.
+     */
+    public S getFromState ()
+    {
+      return _fromState;
+    }
+
+    /**
+     * Provides the state the payload moved on to.
+     *
+     * @return
+     *   The next state, or null if the payload didn't move on.
+     */
+    public S getToState ()
+    {
+      return _toState;
+    }
+
+    /**
+     * Provides when it happened.
+     *
+     * @return
+     *   The millisecond timestamp of the record.
+     */
+    public long getTime ()
+    {
+      return _time;
+    }
+
+    private final Kind _kind;
+    private final Long _payloadId;
+    private final S _fromState;
+    private final S _toState;
+    private final long _time;
+  }
+
+  /**
+   * Throws if the log has failed or been closed.
+   */
+  private void check ()
+  {
+    if (_failure != null)
+    {
+      throw new TransitionLogException("Transition log " + _file + " can't be written",_failure);
+    }
+    if (_closed)
+    {
+      throw new TransitionLogException("Transition log " + _file + " is closed");
+    }
+  }
+
+  /**
+   * The writer thread's loop: waits for a batch, swaps it for the empty buffer so the workers
+   * can carry on filling, then writes it out and forces it to the disk, and lets everyone
+   * waiting on it know.
+   */
+  private void write ()
+  {
+    while (true)
+    {
+      ByteBuffer batch;
+      long sequence;
+      _lock.lock();
+      try
+      {
+        while ((_filling.position() == 0) && (!_closed))
+        {
+          _batchReady.awaitUninterruptibly();
+        }
+        if (_filling.position() == 0)
+        {
+          // Closed, and nothing left to write.
+          _finished = true;
+          _batchWritten.signalAll();
+          return;
+        }
+        long remaining = _maxDelay - (System.nanoTime() - _batchStarted);
+        while ((remaining > 0L) && (!_closed) && (_filling.remaining() >= RECORD_SIZE))
+        {
+          try
+          {
+            remaining = _batchReady.awaitNanos(remaining);
+          }
+          catch (InterruptedException e)
+          {
+            break;
+          }
+        }
+        batch = _filling;
+        _filling = _flushing;
+        _flushing = batch;
+        sequence = _appended;
+        // Anyone waiting for room can use the empty buffer now.
+        _batchWritten.signalAll();
+      }
+      finally
+      {
+        _lock.unlock();
+      }
+
+      IOException failure = null;
+      try
+      {
+        batch.flip();
+        while (batch.hasRemaining())
+        {
+          _channel.write(batch);
+        }
+        _channel.force(false);
+      }
+      catch (IOException e)
+      {
+        failure = e;
+      }
+      batch.clear();
+
+      _lock.lock();
+      try
+      {
+        if (failure != null)
+        {
+          _failure = failure;
+          _batchWritten.signalAll();
+          return;
+        }
+        _durable = sequence;
+        _flushes++;
+        _batchWritten.signalAll();
+      }
+      finally
+      {
+        _lock.unlock();
+      }
+    }
+  }
+
+  /**
+   * Reads through the records in a log file from the start, stopping at the first one that's
+   * missing or doesn't check out.
+   *
+   * @param channel
+   *   The log file.  Its position isn't touched.
+   * @param states
+   *   The enumeration of states the log's machine uses, or null if the records aren't wanted.
+   * @param transitions
+   *   Where the records are added, or null if they aren't wanted.
+   * @return
+   *   The length of the intact records at the start of the file, which is where the next record
+   *   belongs.
+   */
+  static private <S extends Enum> long scan (FileChannel channel, S[] states,
+      List<Transition<S>> transitions)
+    throws IOException
+  {
+    ByteBuffer buffer = ByteBuffer.allocate(RECORD_SIZE * 1024);
+    long end = 0L;
+    while (true)
+    {
+      buffer.clear();
+      while ((buffer.hasRemaining()) && (channel.read(buffer,end + buffer.position()) >= 0))
+      {
+        // Keep reading until the buffer is full or the file runs out.
+      }
+      boolean more = !buffer.hasRemaining();
+      buffer.flip();
+      while (buffer.remaining() >= RECORD_SIZE)
+      {
+        int position = buffer.position();
+        if ((buffer.getInt(position) != RECORD_SIZE - HEADER) || (buffer.getInt(position + 4) !=
+            checksum(buffer,position + HEADER,RECORD_SIZE - HEADER)))
+        {
+          return end;
+        }
+        buffer.position(position + HEADER);
+        Kind kind = Kind.values()[buffer.get()];
+        long payloadId = buffer.getLong();
+        int from = buffer.getInt();
+        int to = buffer.getInt();
+        long time = buffer.getLong();
+        if (transitions != null)
+        {
+          transitions.add(new Transition<S>(kind,payloadId,(from < 0 ? null : states[from]),
+              (to < 0 ? null : states[to]),time));
+        }
+        end += RECORD_SIZE;
+      }
+      if (!more)
+      {
+        return end;
+      }
+    }
+  }
+
+  /**
+   * Works out the checksum of a record's body.
+   */
+  static private int checksum (ByteBuffer buffer, int body, int length)
+  {
+    CRC32C crc = new CRC32C();
+    crc.update(buffer.slice(body,length));
+    return (int) crc.getValue();
+  }
+
+  /** The length and checksum in front of every record. */
+  static private final int HEADER = 8;
+  /** The header plus the kind, payload id, from state, to state and time. */
+  static private final int RECORD_SIZE = HEADER + 25;
+
+  private final File _file;
+  private final long _maxDelay;
+  private final FileChannel _channel;
+  private final Thread _writer;
+  private final ReentrantLock _lock = new ReentrantLock();
+  private final Condition _batchReady = _lock.newCondition();
+  private final Condition _batchWritten = _lock.newCondition();
+  private ByteBuffer _filling;
+  private ByteBuffer _flushing;
+  private long _batchStarted;
+  private long _appended;
+  private long _durable;
+  private long _flushes;
+  private boolean _closed;
+  private boolean _finished;
+  private IOException _failure;
+}
@@ -0,0 +1,29 @@
+package xephyrus.sam.core;
+
+/**
+ * Thrown when a {@link TransitionLog} can't make a record durable, because the log couldn't be
+ * written or has been closed.  A state step which hits this fails, and its payload's processing
+ * ends with this as the error.
+ */
+public class TransitionLogException
+  extends RuntimeException
+{
+  public TransitionLogException ()
+  {
+  }
+
+  public TransitionLogException (String msg)
+  {
+    super(msg);
+  }
+
+  public TransitionLogException (String msg, Throwable cause)
+  {
+    super(msg,cause);
+  }
+
+  public TransitionLogException (Throwable cause)
+  {
+    super(cause);
+  }
+}
@@ -37,7 +37,9 @@ package xephyrus.sam.core;
  *   </pre>
  * </p><p>
  *   The WaitingState interface is handled in the {@link xephyrus.sam.core.queue.ProcessingQueue}.
- *   Support for this depends upon the implementation of the ProcessingQueue.
+ *   Support for this depends upon the implementation of the ProcessingQueue.  The queues provided
+ *   hold waiting items aside until their wait is over, so a long wait doesn't hold up anything
+ *   else in the queue.
  * </p>
  */
 public interface WaitingState
@@ -0,0 +1,67 @@
+package xephyrus.sam.core.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <p>
+ *   Identifies a state whose worker method should be retried when it fails.  Use this on the
+ *   state worker method alongside the {@link StateMachineState} annotation.  For example:
+ *   <pre>
+ *     &#64;RetryableState(maxAttempts = 5, backoff = 200, retryOn = IOException.class)
+ *     &#64;StateMachineState("CallTheService")
+ *     public MyState callTheService (MyPayload payload)
+ *     {
+ *       :
+ *     }
+ *   </pre>
+ * </p><p>
+ *   This is turned into a {@link xephyrus.sam.core.RetryPolicy} for the state when the
+ *   {@link xephyrus.sam.core.StateMachine} is instantiated; see there for how retries behave.
+ *   If this annotation is used on a method that is not marked with the
+ *   {@link StateMachineState} annotation, an {@link xephyrus.sam.core.InvalidStateDeclarationException}
+ *   will be thrown when the {@link xephyrus.sam.core.StateMachine} is instantiated.
+ * </p>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface RetryableState
+{
+  /**
+   * Identifies the most times the method is tried for a payload, including the first.
+   * @return The maximum attempts.
+   */
+  int maxAttempts() default 3;
+
+  /**
+   * Identifies the delay before the first retry.
+   * @return The backoff, in milliseconds.
+   */
+  long backoff() default 100L;
+
+  /**
+   * Identifies the longest delay before any retry.
+   * @return The maximum backoff, in milliseconds.
+   */
+  long maxBackoff() default 60000L;
+
+  /**
+   * Identifies how much the delay grows with each retry.
+   * @return The backoff multiplier.
+   */
+  double multiplier() default 2.0;
+
+  /**
+   * Identifies how much each delay is randomly spread, as a fraction of the delay.
+   * @return The jitter, from 0 to 1.
+   */
+  double jitter() default 0.2;
+
+  /**
+   * Identifies the kinds of errors which are worth retrying.
+   * @return The retryable error types.
+   */
+  Class<? extends Throwable>[] retryOn() default {Exception.class};
+}
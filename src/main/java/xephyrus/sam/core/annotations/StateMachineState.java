@@ -32,4 +32,18 @@ public @interface StateMachineState
    * @return The state.
    */
   String value();
+
+  /**
+   * Identifies the priority of this state, for {@link xephyrus.sam.core.queue.ProcessingQueue}s
+   * which respect priority.  Higher numbers are more urgent.
+   * @return The priority.
+   */
+  int priority() default 0;
+
+  /**
+   * Identifies the longest time this method may run for a payload before the state is timed out
+   * and processing of that payload ends.  Zero means no timeout.
+   * @return The timeout, in milliseconds.
+   */
+  long timeout() default 0L;
 }
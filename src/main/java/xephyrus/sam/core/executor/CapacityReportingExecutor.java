@@ -0,0 +1,36 @@
+package xephyrus.sam.core.executor;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>
+ *   An executor for state workers which frees a worker's slot only after the worker itself has
+ *   returned, and says so when it does.  A {@link xephyrus.sam.core.StateMachine} waiting for
+ *   room in such a pool can't tell from its own workers finishing when to try again, since a
+ *   worker that has just returned still holds its slot.
+ * </p><p>
+ *   When the thread pool of a StateMachine implements this interface, the machine adds a
+ *   listener for as long as the pool is set, and waits to be told by the pool, rather than by
+ *   its workers, that there's room.
+ * </p>
+ */
+public interface CapacityReportingExecutor
+  extends ExecutorService
+{
+  /**
+   * Adds a listener which is run, on the worker's thread, each time a worker's slot is freed.
+   * It should do no more than wake whoever is waiting.
+   *
+   * @param listener
+   *   The listener to add.
+   */
+  void addCapacityListener (Runnable listener);
+
+  /**
+   * Removes a listener added with {@link #addCapacityListener(Runnable)}.
+   *
+   * @param listener
+   *   The listener to remove.
+   */
+  void removeCapacityListener (Runnable listener);
+}
@@ -0,0 +1,31 @@
+package xephyrus.sam.core.executor;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * <p>
+ *   An executor for state workers which can take the next state of a payload directly from the
+ *   worker that produced it, rather than having it go back through the
+ *   {@link xephyrus.sam.core.queue.ProcessingQueue} and the {@link xephyrus.sam.core.StateMachine}
+ *   processing cycle.
+ * </p><p>
+ *   When the thread pool of a StateMachine implements this interface, each state worker offers
+ *   the worker for its payload's next state to {@link #continueLocally(Runnable)} before falling
+ *   back to pushing it onto the queue.  States which are still waiting (see
+ *   {@link xephyrus.sam.core.WaitingState}) are always pushed onto the queue.
+ * </p>
+ */
+public interface ContinuationExecutor
+  extends ExecutorService
+{
+  /**
+   * Offers the worker for a payload's next state, from the thread that executed its last state.
+   *
+   * @param worker
+   *   The state worker for the next state.
+   * @return
+   *   If the worker was accepted and will be executed, true; if it should go back onto the queue
+   *   instead, false.
+   */
+  boolean continueLocally (Runnable worker);
+}
@@ -0,0 +1,263 @@
+package xephyrus.sam.core.executor;
+
+import xephyrus.sam.core.MachineCycleListener;
+import xephyrus.sam.core.StateMachine;
+
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor.AbortPolicy;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *   Grows and shrinks a {@link StateMachine}'s thread pool between set bounds, so the pool
+ *   doesn't need to be hand-tuned for each machine.  This listens to the machine's cycles:
+ *   <ul>
+ *     <li>
+ *       Each time the pool refuses a state worker (a full machine cycle), the pool grows by half
+ *       again, up to the maximum size.  The machine tries the refused worker again straight
+ *       away, so growing doesn't cost a trip back through the queue.
+ *     </li>
+ *     <li>
+ *       Every so often (once a second, by default) the pool is sampled.  If every thread is busy
+ *       and there's still work queued up, the pool grows.  If the pool hasn't been full since the
+ *       last sample and fewer than half the threads are busy, it shrinks by a quarter, down to
+ *       the minimum size.
+ *     </li>
+ *   </ul>
+ * </p><p>
+ *   To use it:
+ *   <pre>
+ *     ElasticPoolManager elastic = new ElasticPoolManager(machine,2,64);
+ *     machine.setThreadPool(elastic.getThreadPool());
+ *     machine.addMachineCycleListener(elastic);
+ *   </pre>
+ * </p>
+ */
+public class ElasticPoolManager
+  implements MachineCycleListener
+{
+  /**
+   * Creates a new one of these, along with a thread pool to manage which hands workers straight
+   * to threads without queuing them.
+   *
+   * @param machine
+   *   The StateMachine whose pool is managed.
+   * @param minSize
+   *   The fewest threads in the pool.
+   * @param maxSize
+   *   The most threads in the pool.
+   */
+  public ElasticPoolManager (StateMachine<?,?> machine, int minSize, int maxSize)
+  {
+    this(machine,new ThreadPoolExecutor(Math.max(minSize,1),Math.max(minSize,1),60L,
+        TimeUnit.SECONDS,new SynchronousQueue<Runnable>(),new AbortPolicy()),minSize,maxSize);
+  }
+
+  /**
+   * Creates a new one of these to manage the given thread pool.  The pool is resized to the
+   * minimum size straight away.
+   *
+   * @param machine
+   *   The StateMachine whose pool is managed.
+   * @param pool
+   *   The thread pool to manage.
+   * @param minSize
+   *   The fewest threads in the pool.
+   * @param maxSize
+   *   The most threads in the pool.
+   */
+  public ElasticPoolManager (StateMachine<?,?> machine, ThreadPoolExecutor pool, int minSize,
+      int maxSize)
+  {
+    if ((minSize < 1) || (maxSize < minSize))
+    {
+      throw new IllegalArgumentException("Invalid pool bounds: " + minSize + "-" + maxSize);
+    }
+    _machine = machine;
+    _pool = pool;
+    _minSize = minSize;
+    _maxSize = maxSize;
+    resize(minSize);
+  }
+
+  /**
+   * Provides the thread pool being managed.
+   *
+   * @return
+   *   The thread pool.
+   */
+  public ThreadPoolExecutor getThreadPool ()
+  {
+    return _pool;
+  }
+
+  /**
+   * Provides the fewest threads the pool will be shrunk to.
+   *
+   * @return
+   *   The minimum pool size.
+   */
+  public int getMinSize ()
+  {
+    return _minSize;
+  }
+
+  /**
+   * Provides the most threads the pool will be grown to.
+   *
+   * @return
+   *   The maximum pool size.
+   */
+  public int getMaxSize ()
+  {
+    return _maxSize;
+  }
+
+  /**
+   * Provides the size the pool is currently set to.
+   *
+   * @return
+   *   The pool size.
+   */
+  public int getPoolSize ()
+  {
+    return _size;
+  }
+
+  /**
+   * Provides how often the pool is sampled to decide whether to grow or shrink it.
+   *
+   * @return
+   *   The sample interval, in milliseconds.
+   */
+  public long getSampleInterval ()
+  {
+    return TimeUnit.NANOSECONDS.toMillis(_sampleInterval);
+  }
+
+  /**
+   * Sets how often the pool is sampled to decide whether to grow or shrink it.  Shorter
+   * intervals respond faster; longer ones keep the pool steadier.  The default is 1,000
+   * milliseconds.
+   *
+   * @param sampleInterval
+   *   The sample interval, in milliseconds.
+   */
+  public void setSampleInterval (long sampleInterval)
+  {
+    _sampleInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(sampleInterval,0L));
+  }
+
+  @Override
+  public void beforeCycle ()
+  {
+  }
+
+  @Override
+  public void afterCycle ()
+  {
+    sample();
+  }
+
+  @Override
+  public void yieldCycle ()
+  {
+    sample();
+  }
+
+  @Override
+  public void startingMachine ()
+  {
+  }
+
+  @Override
+  public void stoppingMachine ()
+  {
+  }
+
+  @Override
+  public void failingMachine (Throwable error)
+  {
+  }
+
+  @Override
+  public synchronized void fullMachine ()
+  {
+    _fullSinceSample = true;
+    grow();
+  }
+
+  /**
+   * Samples the pool's utilization and the machine's queue depth, if the sample interval has
+   * passed, and grows or shrinks the pool to suit.
+   */
+  private void sample ()
+  {
+    long now = System.nanoTime();
+    if (now - _lastSample < _sampleInterval)
+    {
+      return;
+    }
+    synchronized (this)
+    {
+      if (now - _lastSample < _sampleInterval)
+      {
+        return;
+      }
+      int active = _pool.getActiveCount();
+      if ((active >= _size) && (_machine.getProcessingQueue().getCount() > 0))
+      {
+        grow();
+      }
+      else if ((!_fullSinceSample) && (active * 2 < _size))
+      {
+        resize(Math.max(_minSize,Math.max(active + 1,_size - Math.max(1,_size / 4))));
+      }
+      _fullSinceSample = false;
+      _lastSample = System.nanoTime();
+    }
+  }
+
+  /**
+   * Grows the pool by half again, up to the maximum size.
+   */
+  private void grow ()
+  {
+    if (_size < _maxSize)
+    {
+      resize(Math.min(_maxSize,_size + Math.max(1,_size / 2)));
+    }
+  }
+
+  /**
+   * Sets the pool to the given size.  The core and maximum sizes are changed in an order which
+   * keeps the core size from ever exceeding the maximum.
+   *
+   * @param size
+   *   The new pool size.
+   */
+  private void resize (int size)
+  {
+    if (size > _pool.getMaximumPoolSize())
+    {
+      _pool.setMaximumPoolSize(size);
+      _pool.setCorePoolSize(size);
+    }
+    else
+    {
+      _pool.setCorePoolSize(size);
+      _pool.setMaximumPoolSize(size);
+    }
+    _size = size;
+  }
+
+  private final StateMachine<?,?> _machine;
+  private final ThreadPoolExecutor _pool;
+  private final int _minSize;
+  private final int _maxSize;
+  private volatile int _size;
+  private volatile long _sampleInterval = TimeUnit.SECONDS.toNanos(1L);
+  private volatile long _lastSample = System.nanoTime();
+  private boolean _fullSinceSample;
+}
@@ -0,0 +1,32 @@
+package xephyrus.sam.core.executor;
+
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This is thrown by the {@link PartitionedExecutorService} when a task is refused because the one
+ * lane it has to go to is full.  The other lanes may still have room, so the
+ * {@link xephyrus.sam.core.StateMachine} holds just that item back and carries on with the rest,
+ * rather than waiting for room in the whole pool.
+ */
+public class LaneFullException
+  extends RejectedExecutionException
+{
+  public LaneFullException ()
+  {
+  }
+
+  public LaneFullException (String msg)
+  {
+    super(msg);
+  }
+
+  public LaneFullException (String msg, Throwable cause)
+  {
+    super(msg,cause);
+  }
+
+  public LaneFullException (Throwable cause)
+  {
+    super(cause);
+  }
+}
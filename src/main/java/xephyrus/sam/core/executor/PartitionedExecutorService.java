@@ -0,0 +1,259 @@
+package xephyrus.sam.core.executor;
+
+import xephyrus.sam.core.StateMachine.StateWorker;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.RunnableFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ *   An executor for state workers which partitions payloads by id onto a fixed number of serial
+ *   lanes.  Each lane has its own queue and its own single thread, and every state worker for a
+ *   given payload id is always sent to the same lane.  That gives two guarantees:
+ *   <ul>
+ *     <li>
+ *       State workers for the same payload id never run at the same time, and run in the order
+ *       they're submitted, so state methods don't need to lock around payload changes.
+ *     </li>
+ *     <li>
+ *       A payload stays on the same thread from state to state, which keeps its data warm in
+ *       that core's cache.
+ *     </li>
+ *   </ul>
+ * </p><p>
+ *   When a lane's queue is full, new workers for that lane are rejected with a
+ *   {@link LaneFullException}, so the {@link xephyrus.sam.core.StateMachine} reports a full
+ *   machine and holds just that item back in the queue for a while, carrying on with items bound
+ *   for the other lanes.  Anything submitted which isn't a state worker is spread across the
+ *   lanes round-robin.
+ * </p><p>
+ *   To use it:
+ *   <pre>
+ *     machine.setThreadPool(new PartitionedExecutorService(8));
+ *   </pre>
+ * </p>
+ */
+public class PartitionedExecutorService
+  extends AbstractExecutorService
+{
+  /**
+   * Creates a new one of these with one lane per available processor, each holding up to 1,000
+   * waiting workers.
+   */
+  public PartitionedExecutorService ()
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new one of these with the given number of lanes, each holding up to 1,000 waiting
+   * workers.
+   *
+   * @param laneCount
+   *   The number of lanes.
+   */
+  public PartitionedExecutorService (int laneCount)
+  {
+    this(laneCount,1000);
+  }
+
+  /**
+   * Creates a new one of these with the given number of lanes, each holding up to the given
+   * number of waiting workers.
+   *
+   * @param laneCount
+   *   The number of lanes.
+   * @param laneCapacity
+   *   The most workers that can wait in each lane.
+   */
+  public PartitionedExecutorService (int laneCount, int laneCapacity)
+  {
+    if (laneCount < 1)
+    {
+      throw new IllegalArgumentException("Lane count must be at least 1, not " + laneCount);
+    }
+    _lanes = new ThreadPoolExecutor[laneCount];
+    for (int i = 0; i < laneCount; i++)
+    {
+      _lanes[i] = new ThreadPoolExecutor(1,1,0L,TimeUnit.MILLISECONDS,
+          new ArrayBlockingQueue<Runnable>(laneCapacity),new LaneThreadFactory(i),
+          new LaneFullPolicy(i));
+    }
+  }
+
+  /**
+   * Reports which lane the given payload id is assigned to.
+   *
+   * @param payloadId
+   *   The payload id.
+   * @return
+   *   The index of the lane, from 0 up to, but not including, {@link #getLaneCount()}.
+   */
+  public int getLane (Long payloadId)
+  {
+    if (payloadId == null)
+    {
+      return 0;
+    }
+    long h = payloadId * 0x9E3779B97F4A7C15L;
+    return (int) ((h >>> 32) % _lanes.length);
+  }
+
+  /**
+   * Provides the number of lanes.
+   *
+   * @return
+   *   The lane count.
+   */
+  public int getLaneCount ()
+  {
+    return _lanes.length;
+  }
+
+  @Override
+  public void execute (Runnable command)
+  {
+    laneFor(command).execute(command);
+  }
+
+  @Override
+  public Future<?> submit (Runnable task)
+  {
+    RunnableFuture<Void> future = newTaskFor(task,null);
+    laneFor(task).execute(future);
+    return future;
+  }
+
+  @Override
+  public void shutdown ()
+  {
+    for (ThreadPoolExecutor lane: _lanes)
+    {
+      lane.shutdown();
+    }
+  }
+
+  @Override
+  public List<Runnable> shutdownNow ()
+  {
+    List<Runnable> waiting = new ArrayList<Runnable>();
+    for (ThreadPoolExecutor lane: _lanes)
+    {
+      waiting.addAll(lane.shutdownNow());
+    }
+    return waiting;
+  }
+
+  @Override
+  public boolean isShutdown ()
+  {
+    for (ThreadPoolExecutor lane: _lanes)
+    {
+      if (!lane.isShutdown())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean isTerminated ()
+  {
+    for (ThreadPoolExecutor lane: _lanes)
+    {
+      if (!lane.isTerminated())
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public boolean awaitTermination (long timeout, TimeUnit unit)
+      throws InterruptedException
+  {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    for (ThreadPoolExecutor lane: _lanes)
+    {
+      if (!lane.awaitTermination(deadline - System.nanoTime(),TimeUnit.NANOSECONDS))
+      {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Picks the lane for a task.  State workers go to the lane for their payload id; anything else
+   * goes round-robin.
+   */
+  private ThreadPoolExecutor laneFor (Runnable task)
+  {
+    if (task instanceof StateWorker)
+    {
+      return _lanes[getLane(((StateWorker) task).getInfo().getPayload().getId())];
+    }
+    return _lanes[Math.floorMod(_nextLane.getAndIncrement(),_lanes.length)];
+  }
+
+  /**
+   * Names the lane threads so they can be told apart.
+   */
+  static private class LaneThreadFactory
+    implements ThreadFactory
+  {
+    LaneThreadFactory (int lane)
+    {
+      _lane = lane;
+    }
+
+    @Override
+    public Thread newThread (Runnable runnable)
+    {
+      Thread thread = new Thread(runnable,"sam-lane-" + _lane);
+      thread.setDaemon(true);
+      return thread;
+    }
+
+    private final int _lane;
+  }
+
+  /**
+   * Refuses tasks for a lane, telling a lane that's full apart from one that's shut down.
+   */
+  static private class LaneFullPolicy
+    implements RejectedExecutionHandler
+  {
+    LaneFullPolicy (int lane)
+    {
+      _lane = lane;
+    }
+
+    @Override
+    public void rejectedExecution (Runnable task, ThreadPoolExecutor lane)
+    {
+      if (lane.isShutdown())
+      {
+        throw new RejectedExecutionException("Lane " + _lane + " is shut down");
+      }
+      throw new LaneFullException("Lane " + _lane + " is full");
+    }
+
+    private final int _lane;
+  }
+
+  private final ThreadPoolExecutor[] _lanes;
+  private final AtomicInteger _nextLane = new AtomicInteger();
+}
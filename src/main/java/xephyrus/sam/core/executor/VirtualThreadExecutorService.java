@@ -0,0 +1,169 @@
+package xephyrus.sam.core.executor;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *   An executor for state workers which runs each worker on its own virtual thread.  This is
+ *   meant for machines whose state methods block on I/O (database calls, file reads, remote
+ *   services), where a small fixed pool of platform threads caps how many payloads can be in
+ *   flight at once.  A blocked virtual thread doesn't hold onto a carrier thread, so thousands of
+ *   blocking state methods can be waiting at the same time.
+ * </p><p>
+ *   The number of workers running at once is capped by a concurrency limit.  Once the limit is
+ *   reached, new workers are rejected with a {@link RejectedExecutionException}, just like the
+ *   default pool does when it's full, so the {@link xephyrus.sam.core.StateMachine} reports a
+ *   full machine and pushes the item back onto the queue.  A worker's permit is only given back
+ *   once the worker has returned, so the pool tells its capacity listeners when it is (see
+ *   {@link CapacityReportingExecutor}), rather than the machine trying again too soon.
+ * </p><p>
+ *   To use it:
+ *   <pre>
+ *     machine.setThreadPool(new VirtualThreadExecutorService(5000));
+ *   </pre>
+ * </p>
+ */
+public class VirtualThreadExecutorService
+  extends AbstractExecutorService
+  implements CapacityReportingExecutor
+{
+  /**
+   * Creates a new one of these with a concurrency limit of 10,000 workers.
+   */
+  public VirtualThreadExecutorService ()
+  {
+    this(10000);
+  }
+
+  /**
+   * Creates a new one of these with the given concurrency limit.
+   *
+   * @param concurrencyLimit
+   *   The most workers allowed to run at once.
+   */
+  public VirtualThreadExecutorService (int concurrencyLimit)
+  {
+    if (concurrencyLimit < 1)
+    {
+      throw new IllegalArgumentException("Concurrency limit must be at least 1, not " +
+          concurrencyLimit);
+    }
+    _concurrencyLimit = concurrencyLimit;
+    _permits = new Semaphore(concurrencyLimit);
+    _executor = Executors.newThreadPerTaskExecutor(
+        Thread.ofVirtual().name("sam-worker-",0L).factory());
+  }
+
+  @Override
+  public void execute (final Runnable command)
+  {
+    if (!_permits.tryAcquire())
+    {
+      throw new RejectedExecutionException("All " + _concurrencyLimit + " workers are busy");
+    }
+    try
+    {
+      _executor.execute(new Runnable()
+      {
+        @Override
+        public void run ()
+        {
+          try
+          {
+            command.run();
+          }
+          finally
+          {
+            _permits.release();
+            for (Runnable listener: _capacityListeners)
+            {
+              listener.run();
+            }
+          }
+        }
+      });
+    }
+    catch (RejectedExecutionException cant)
+    {
+      _permits.release();
+      throw cant;
+    }
+  }
+
+  @Override
+  public void addCapacityListener (Runnable listener)
+  {
+    _capacityListeners.add(listener);
+  }
+
+  @Override
+  public void removeCapacityListener (Runnable listener)
+  {
+    _capacityListeners.remove(listener);
+  }
+
+  /**
+   * Reports the number of workers currently running.
+   *
+   * @return
+   *   The count of running workers.
+   */
+  public int getActiveCount ()
+  {
+    return _concurrencyLimit - _permits.availablePermits();
+  }
+
+  /**
+   * Provides the most workers allowed to run at once.
+   *
+   * @return
+   *   The concurrency limit.
+   */
+  public int getConcurrencyLimit ()
+  {
+    return _concurrencyLimit;
+  }
+
+  @Override
+  public void shutdown ()
+  {
+    _executor.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow ()
+  {
+    return _executor.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown ()
+  {
+    return _executor.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated ()
+  {
+    return _executor.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination (long timeout, TimeUnit unit)
+      throws InterruptedException
+  {
+    return _executor.awaitTermination(timeout,unit);
+  }
+
+  private final int _concurrencyLimit;
+  private final Semaphore _permits;
+  private final ExecutorService _executor;
+  private final List<Runnable> _capacityListeners = new CopyOnWriteArrayList<Runnable>();
+}
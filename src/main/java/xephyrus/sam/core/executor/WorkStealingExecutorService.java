@@ -0,0 +1,137 @@
+package xephyrus.sam.core.executor;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ *   An executor for state workers built on a work-stealing {@link ForkJoinPool}.  The
+ *   {@link xephyrus.sam.core.StateMachine} still feeds new payloads in through its processing
+ *   cycle, but once a payload is running, the worker for each next state is forked onto the
+ *   executing thread's own deque instead of being pushed back onto the shared
+ *   {@link xephyrus.sam.core.queue.ProcessingQueue}.  Threads that run out of work steal from the
+ *   others.  Transitions then never pass through the single dispatcher thread or the shared
+ *   queue, so CPU-bound machines can scale with the number of cores.
+ * </p><p>
+ *   New work coming from the dispatcher is rejected with a {@link RejectedExecutionException}
+ *   once the pool has more than a set number of submissions waiting, so the StateMachine reports
+ *   a full machine and leaves the rest in its queue rather than draining it all into the pool.
+ * </p><p>
+ *   To use it:
+ *   <pre>
+ *     machine.setThreadPool(new WorkStealingExecutorService());
+ *   </pre>
+ * </p>
+ */
+public class WorkStealingExecutorService
+  extends AbstractExecutorService
+  implements ContinuationExecutor
+{
+  /**
+   * Creates a new one of these with one thread per available processor, and up to 1,000 waiting
+   * submissions.
+   */
+  public WorkStealingExecutorService ()
+  {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Creates a new one of these with the given number of threads, and up to 1,000 waiting
+   * submissions.
+   *
+   * @param parallelism
+   *   The number of threads.
+   */
+  public WorkStealingExecutorService (int parallelism)
+  {
+    this(parallelism,1000);
+  }
+
+  /**
+   * Creates a new one of these with the given number of threads and the given limit on waiting
+   * submissions.
+   *
+   * @param parallelism
+   *   The number of threads.
+   * @param submissionLimit
+   *   The most submissions from outside the pool that can be waiting before new ones are
+   *   rejected.
+   */
+  public WorkStealingExecutorService (int parallelism, int submissionLimit)
+  {
+    _pool = new ForkJoinPool(parallelism,ForkJoinPool.defaultForkJoinWorkerThreadFactory,null,
+        false);
+    _submissionLimit = submissionLimit;
+  }
+
+  @Override
+  public boolean continueLocally (Runnable worker)
+  {
+    if ((ForkJoinTask.getPool() == _pool) && (!_pool.isShutdown()))
+    {
+      ForkJoinTask.adapt(worker).fork();
+      return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void execute (Runnable command)
+  {
+    if (_pool.getQueuedSubmissionCount() >= _submissionLimit)
+    {
+      throw new RejectedExecutionException(_submissionLimit + " submissions are already waiting");
+    }
+    _pool.execute(command);
+  }
+
+  /**
+   * Provides the underlying pool, for monitoring.
+   *
+   * @return
+   *   The fork/join pool.
+   */
+  public ForkJoinPool getPool ()
+  {
+    return _pool;
+  }
+
+  @Override
+  public void shutdown ()
+  {
+    _pool.shutdown();
+  }
+
+  @Override
+  public List<Runnable> shutdownNow ()
+  {
+    return _pool.shutdownNow();
+  }
+
+  @Override
+  public boolean isShutdown ()
+  {
+    return _pool.isShutdown();
+  }
+
+  @Override
+  public boolean isTerminated ()
+  {
+    return _pool.isTerminated();
+  }
+
+  @Override
+  public boolean awaitTermination (long timeout, TimeUnit unit)
+      throws InterruptedException
+  {
+    return _pool.awaitTermination(timeout,unit);
+  }
+
+  private final ForkJoinPool _pool;
+  private final int _submissionLimit;
+}
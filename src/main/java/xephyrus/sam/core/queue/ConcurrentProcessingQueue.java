@@ -0,0 +1,322 @@
+package xephyrus.sam.core.queue;
+
+import xephyrus.sam.core.Payload;
+import xephyrus.sam.core.ProcessInfo;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <p>
+ *   An implementation of {@link ProcessingQueue} which manages the queue in memory without locks,
+ *   using a {@link ConcurrentLinkedQueue}.  Producers calling
+ *   {@link xephyrus.sam.core.StateMachine#process(Payload)}, state workers pushing back next
+ *   states, and any number of dispatchers can all use it at once without waiting on one another,
+ *   so it keeps scaling as threads are added where a synchronized queue would have them queue up
+ *   on its lock.  This is the queue a {@link xephyrus.sam.core.StateMachine} uses unless it's
+ *   given another, and the one to use for multi-threaded work kept in memory.
+ * </p><p>
+ *   Taking the ready head is a compare-and-set on that item, so two dispatchers can never both
+ *   take the same one.  The count is kept separately, so it can briefly lag behind the queue
+ *   while items are being added and removed, and indexed operations ({@link #peek(int)},
+ *   {@link #remove(int)}) walk the queue as it is at that moment.  A batch added with
+ *   {@link #queueAll(Collection)} is linked in as a single step.
+ * </p><p>
+ *   Items which are still waiting, whether in a {@link xephyrus.sam.core.WaitingState} or held back
+ *   by the machine (see {@link ProcessingQueueUtils#isProcessInfoWaiting(ProcessInfo)}), are held
+ *   aside in a {@link TimingWheel}, and join the back of the queue when their wait is over, so they
+ *   never hold up the ready items queued behind them.  The wheel has a lock of its own, which is
+ *   only taken for waiting items; whichever dispatcher gets to it first releases the items that
+ *   are due, and the rest carry on without waiting.  Held items still count towards
+ *   {@link #getCount()}, and come after the ready items for {@link #peek(int)} and
+ *   {@link #remove(int)}.
+ * </p>
+ *
+ * @param <S> The states of this {@link xephyrus.sam.core.StateMachine}.
+ * @param <P> The {@link Payload} of this {@link xephyrus.sam.core.StateMachine}.
+ */
+public class ConcurrentProcessingQueue<S extends Enum, P extends Payload>
+  implements ProcessingQueue<S,P>
+{
+  @Override
+  public void clear ()
+  {
+    while (pop() != null)
+    {
+      // Popping one at a time keeps the count in step.
+    }
+  }
+
+  @Override
+  public int getCount ()
+  {
+    return Math.max(_count.get(),0);
+  }
+
+  @Override
+  public boolean isContained (ProcessInfo<S, P> item)
+  {
+    if (_queue.contains(item))
+    {
+      return true;
+    }
+    if (_waitingCount > 0)
+    {
+      _waitingLock.lock();
+      try
+      {
+        return _waiting.contains(item);
+      }
+      finally
+      {
+        _waitingLock.unlock();
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public boolean isReady ()
+  {
+    release();
+    return (_queue.peek() != null);
+  }
+
+  @Override
+  public ProcessInfo<S, P> peek ()
+  {
+    release();
+    ProcessInfo<S,P> head = _queue.peek();
+    if ((head == null) && (_waitingCount > 0))
+    {
+      _waitingLock.lock();
+      try
+      {
+        head = _waiting.peek();
+      }
+      finally
+      {
+        _waitingLock.unlock();
+      }
+    }
+    return head;
+  }
+
+  @Override
+  public ProcessInfo<S, P> peek (int index)
+  {
+    release();
+    Iterator<ProcessInfo<S,P>> items = _queue.iterator();
+    int i = 0;
+    for (; items.hasNext(); i++)
+    {
+      ProcessInfo<S,P> item = items.next();
+      if (i == index)
+      {
+        return item;
+      }
+    }
+    if (_waitingCount > 0)
+    {
+      _waitingLock.lock();
+      try
+      {
+        List<ProcessInfo<S,P>> waiting = _waiting.toList();
+        if (index - i < waiting.size())
+        {
+          return waiting.get(index - i);
+        }
+      }
+      finally
+      {
+        _waitingLock.unlock();
+      }
+    }
+    return null;
+  }
+
+  @Override
+  public ProcessInfo<S, P> pop ()
+  {
+    ProcessInfo<S,P> item = popReady();
+    if ((item == null) && (_waitingCount > 0))
+    {
+      _waitingLock.lock();
+      try
+      {
+        item = _waiting.poll();
+        _waitingCount = _waiting.size();
+      }
+      finally
+      {
+        _waitingLock.unlock();
+      }
+      if (item != null)
+      {
+        _count.decrementAndGet();
+      }
+    }
+    return item;
+  }
+
+  @Override
+  public ProcessInfo<S, P> popReady ()
+  {
+    release();
+    // The poll unlinks the head atomically, so two dispatchers never get the same item.
+    ProcessInfo<S,P> item = _queue.poll();
+    if (item != null)
+    {
+      _count.decrementAndGet();
+    }
+    return item;
+  }
+
+  @Override
+  public List<ProcessInfo<S, P>> popReady (int max)
+  {
+    release();
+    List<ProcessInfo<S,P>> items = new ArrayList<ProcessInfo<S,P>>(Math.min(max,16));
+    while (items.size() < max)
+    {
+      ProcessInfo<S,P> item = _queue.poll();
+      if (item == null)
+      {
+        break;
+      }
+      _count.decrementAndGet();
+      items.add(item);
+    }
+    return items;
+  }
+
+  @Override
+  public void push (ProcessInfo<S, P> item)
+  {
+    add(item);
+  }
+
+  @Override
+  public void queue (ProcessInfo<S, P> item)
+  {
+    add(item);
+  }
+
+  @Override
+  public void queueAll (Collection<ProcessInfo<S, P>> items)
+  {
+    for (ProcessInfo<S,P> item: items)
+    {
+      if (ProcessingQueueUtils.isProcessInfoWaiting(item))
+      {
+        // Anything waiting means taking the items one at a time.
+        for (ProcessInfo<S,P> each: items)
+        {
+          add(each);
+        }
+        return;
+      }
+    }
+    if (_queue.addAll(items))
+    {
+      _count.addAndGet(items.size());
+    }
+  }
+
+  @Override
+  public ProcessInfo<S, P> remove (int index)
+  {
+    while (true)
+    {
+      ProcessInfo<S,P> item = peek(index);
+      if (item == null)
+      {
+        return null;
+      }
+      if (_queue.remove(item) || removeWaiting(item))
+      {
+        _count.decrementAndGet();
+        return item;
+      }
+    }
+  }
+
+  /**
+   * Adds an item to the back of the queue, or holds it aside if it's still waiting.
+   */
+  private void add (ProcessInfo<S, P> item)
+  {
+    _count.incrementAndGet();
+    if (ProcessingQueueUtils.isProcessInfoWaiting(item))
+    {
+      _waitingLock.lock();
+      try
+      {
+        boolean held = _waiting.schedule(item,ProcessingQueueUtils.getReadyTime(item));
+        _waitingCount = _waiting.size();
+        if (held)
+        {
+          return;
+        }
+      }
+      finally
+      {
+        _waitingLock.unlock();
+      }
+    }
+    _queue.offer(item);
+  }
+
+  /**
+   * Stops holding a waiting item.
+   *
+   * @return
+   *   If the item was being held, true; otherwise false.
+   */
+  private boolean removeWaiting (ProcessInfo<S, P> item)
+  {
+    _waitingLock.lock();
+    try
+    {
+      boolean removed = _waiting.remove(item);
+      _waitingCount = _waiting.size();
+      return removed;
+    }
+    finally
+    {
+      _waitingLock.unlock();
+    }
+  }
+
+  /**
+   * Moves any held items whose wait is over onto the back of the queue.  If someone else is
+   * already using the wheel, this doesn't wait for them.
+   */
+  private void release ()
+  {
+    if ((_waitingCount > 0) && (_waitingLock.tryLock()))
+    {
+      try
+      {
+        _waiting.expire(System.currentTimeMillis(),_queue);
+        _waitingCount = _waiting.size();
+      }
+      finally
+      {
+        _waitingLock.unlock();
+      }
+    }
+  }
+
+  private final ConcurrentLinkedQueue<ProcessInfo<S,P>> _queue =
+      new ConcurrentLinkedQueue<ProcessInfo<S,P>>();
+  private final AtomicInteger _count = new AtomicInteger();
+  private final TimingWheel<ProcessInfo<S,P>> _waiting = new TimingWheel<ProcessInfo<S,P>>();
+  private final ReentrantLock _waitingLock = new ReentrantLock();
+  private volatile int _waitingCount;
+}
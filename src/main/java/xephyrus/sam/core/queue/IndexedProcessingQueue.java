@@ -0,0 +1,499 @@
+package xephyrus.sam.core.queue;
+
+import xephyrus.sam.core.Payload;
+import xephyrus.sam.core.ProcessInfo;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>
+ *   An implementation of {@link ProcessingQueue} which manages the queue in memory, indexed for
+ *   looking items up on large queues.  Every item is indexed by its payload's id, so
+ *   {@link #isContained(ProcessInfo)}, {@link #isPayloadQueued(Long)} and
+ *   {@link #removePayload(Long)} take constant time, and positions are tracked in a Fenwick tree,
+ *   so {@link #peek(int)} and {@link #remove(int)} take logarithmic time, where a list would have
+ *   to walk the queue for all of these.  Use it where payloads are looked up or cancelled by id
+ *   while the queue is deep.
+ * </p><p>
+ *   Items sit in an array in the order they were added.  Removing one, from anywhere in the queue,
+ *   leaves a gap which the tree skips over; when the array fills up, the gaps are squeezed out,
+ *   and the array only grows if it's still more than half full.
+ * </p><p>
+ *   As with {@link MemoryProcessingQueue}, every operation is synchronized on the queue, and
+ *   items which are still waiting are held aside in a {@link TimingWheel} until their wait is
+ *   over.  Waiting items are indexed too, and removing one takes it straight out of the wheel,
+ *   found by the time it's due.
+ * </p>
+ *
+ * @param <S> The states of this {@link xephyrus.sam.core.StateMachine}.
+ * @param <P> The {@link Payload} of this {@link xephyrus.sam.core.StateMachine}.
+ */
+public class IndexedProcessingQueue<S extends Enum, P extends Payload>
+  implements ProcessingQueue<S,P>
+{
+  /**
+   * Creates a new one of these with room for 1024 items before it has to grow.
+   */
+  public IndexedProcessingQueue ()
+  {
+    this(1024);
+  }
+
+  /**
+   * Creates a new one of these.
+   *
+   * @param capacity
+   *   How many items to make room for up front.  This is rounded up to a power of two.
+   */
+  public IndexedProcessingQueue (int capacity)
+  {
+    if (capacity < 1)
+    {
+      throw new IllegalArgumentException("Capacity must be at least 1, not " + capacity);
+    }
+    int size = 1;
+    while (size < capacity)
+    {
+      size <<= 1;
+    }
+    allocate(size);
+  }
+
+  /**
+   * Reports whether any item for the given payload is in the queue, including any that are
+   * waiting.
+   *
+   * @param payloadId
+   *   The id of the payload.
+   * @return
+   *   If the payload is in the queue, true; otherwise false.
+   */
+  public synchronized boolean isPayloadQueued (Long payloadId)
+  {
+    return _index.containsKey(payloadId);
+  }
+
+  /**
+   * Removes every item for the given payload from the queue, including any that are waiting.
+   * <p>
+   *   This only takes the items out of the queue: the {@link xephyrus.sam.core.StateMachine}
+   *   doesn't hear about it, so the payloads never complete.  To cancel a payload, use
+   *   {@link xephyrus.sam.core.StateMachine#cancel(Long)}, which calls this and then completes
+   *   each item removed.
+   * </p>
+   *
+   * @param payloadId
+   *   The id of the payload.
+   * @return
+   *   The items removed, which may be none.
+   */
+  public synchronized List<ProcessInfo<S,P>> removePayload (Long payloadId)
+  {
+    List<ProcessInfo<S,P>> removed = new ArrayList<ProcessInfo<S,P>>();
+    Entry<S,P> entry = _index.remove(payloadId);
+    while (entry != null)
+    {
+      Entry<S,P> next = entry._sameId;
+      entry._sameId = null;
+      drop(entry);
+      removed.add(entry._item);
+      entry = next;
+    }
+    return removed;
+  }
+
+  @Override
+  public synchronized void clear ()
+  {
+    allocate(_entries.length);
+    _index.clear();
+    _waiting.clear();
+    _waitingCount = 0;
+  }
+
+  @Override
+  public synchronized int getCount ()
+  {
+    return _size + _waitingCount;
+  }
+
+  @Override
+  public synchronized boolean isContained (ProcessInfo<S, P> item)
+  {
+    for (Entry<S,P> entry = _index.get(item.getPayload().getId()); entry != null;
+         entry = entry._sameId)
+    {
+      if (entry._item == item)
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized boolean isReady ()
+  {
+    release();
+    return (_size > 0);
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> peek ()
+  {
+    release();
+    if (_size > 0)
+    {
+      return first()._item;
+    }
+    Entry<S,P> entry = waiting(0);
+    return (entry != null ? entry._item : null);
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> peek (int index)
+  {
+    release();
+    Entry<S,P> entry = find(index);
+    return (entry != null ? entry._item : null);
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> pop ()
+  {
+    ProcessInfo<S,P> item = popReady();
+    if (item == null)
+    {
+      Entry<S,P> entry = _waiting.poll();
+      if (entry != null)
+      {
+        unindex(entry);
+        entry._removed = true;
+        _waitingCount--;
+        item = entry._item;
+      }
+    }
+    return item;
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> popReady ()
+  {
+    release();
+    if (_size == 0)
+    {
+      return null;
+    }
+    Entry<S,P> entry = first();
+    unindex(entry);
+    drop(entry);
+    return entry._item;
+  }
+
+  @Override
+  public synchronized List<ProcessInfo<S, P>> popReady (int max)
+  {
+    release();
+    List<ProcessInfo<S,P>> items = new ArrayList<ProcessInfo<S,P>>(Math.min(max,_size));
+    while ((items.size() < max) && (_size > 0))
+    {
+      items.add(popReady());
+    }
+    return items;
+  }
+
+  @Override
+  public synchronized void push (ProcessInfo<S, P> item)
+  {
+    add(item);
+  }
+
+  @Override
+  public synchronized void queue (ProcessInfo<S, P> item)
+  {
+    add(item);
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> remove (int index)
+  {
+    release();
+    Entry<S,P> entry = find(index);
+    if (entry == null)
+    {
+      return null;
+    }
+    unindex(entry);
+    drop(entry);
+    return entry._item;
+  }
+
+  /**
+   * Indexes an item, then holds it aside if it's still waiting, or adds it to the back of the
+   * queue.
+   */
+  private void add (ProcessInfo<S, P> item)
+  {
+    Entry<S,P> entry = new Entry<S,P>(item);
+    Long id = item.getPayload().getId();
+    entry._sameId = _index.put(id,entry);
+
+    if ((ProcessingQueueUtils.isProcessInfoWaiting(item)) &&
+        (_waiting.schedule(entry,ProcessingQueueUtils.getReadyTime(item))))
+    {
+      _waitingCount++;
+    }
+    else
+    {
+      append(entry);
+    }
+  }
+
+  /**
+   * Adds an entry to the back of the array, making room first if it's full.
+   */
+  private void append (Entry<S,P> entry)
+  {
+    if (_end == _entries.length)
+    {
+      compact(_size * 2 > _entries.length ? _entries.length * 2 : _entries.length);
+    }
+    entry._position = _end;
+    _entries[_end] = entry;
+    update(_end,1);
+    _end++;
+    _size++;
+  }
+
+  /**
+   * Takes an entry out of the queue, whether it's in the array or waiting.  This doesn't touch
+   * the index.
+   */
+  private void drop (Entry<S,P> entry)
+  {
+    if (entry._removed)
+    {
+      return;
+    }
+    entry._removed = true;
+    if (entry._position < 0)
+    {
+      _waiting.remove(entry,ProcessingQueueUtils.getReadyTime(entry._item));
+      _waitingCount--;
+      return;
+    }
+    _entries[entry._position] = null;
+    update(entry._position,-1);
+    _size--;
+    if (_size == 0)
+    {
+      // Nothing left to keep the gaps for.
+      _start = 0;
+      _end = 0;
+    }
+  }
+
+  /**
+   * Takes an entry out of the payload index.
+   */
+  private void unindex (Entry<S,P> entry)
+  {
+    Long id = entry._item.getPayload().getId();
+    Entry<S,P> head = _index.get(id);
+    if (head == entry)
+    {
+      if (entry._sameId == null)
+      {
+        _index.remove(id);
+      }
+      else
+      {
+        _index.put(id,entry._sameId);
+      }
+    }
+    else
+    {
+      for (Entry<S,P> previous = head; previous != null; previous = previous._sameId)
+      {
+        if (previous._sameId == entry)
+        {
+          previous._sameId = entry._sameId;
+          break;
+        }
+      }
+    }
+    entry._sameId = null;
+  }
+
+  /**
+   * Provides the entry at the front of the array, stepping past any gaps left at the front.
+   */
+  private Entry<S,P> first ()
+  {
+    while (_entries[_start] == null)
+    {
+      _start++;
+    }
+    return _entries[_start];
+  }
+
+  /**
+   * Finds the entry at the given index in the queue: ready items first, then waiting ones.
+   */
+  private Entry<S,P> find (int index)
+  {
+    if (index < 0)
+    {
+      return null;
+    }
+    if (index < _size)
+    {
+      return _entries[search(index + 1)];
+    }
+    return waiting(index - _size);
+  }
+
+  /**
+   * Finds the waiting entry at the given index among the waiting entries.
+   */
+  private Entry<S,P> waiting (int index)
+  {
+    if (index < _waitingCount)
+    {
+      for (Entry<S,P> entry: _waiting.toList())
+      {
+        if (index-- == 0)
+        {
+          return entry;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Adds any held entries whose wait is over to the back of the array.
+   */
+  private void release ()
+  {
+    if (_waiting.size() > 0)
+    {
+      _released.clear();
+      _waiting.expire(System.currentTimeMillis(),_released);
+      for (Entry<S,P> entry: _released)
+      {
+        _waitingCount--;
+        append(entry);
+      }
+      _released.clear();
+    }
+  }
+
+  /**
+   * Squeezes the gaps out of the array, moving everything to the front, into an array of the
+   * given capacity.
+   */
+  @SuppressWarnings({"unchecked"})
+  private void compact (int capacity)
+  {
+    Entry<S,P>[] entries = _entries;
+    int end = _end;
+    int size = _size;
+    allocate(capacity);
+    _size = size;
+    for (int i = 0; i < end; i++)
+    {
+      if (entries[i] != null)
+      {
+        entries[i]._position = _end;
+        _entries[_end++] = entries[i];
+      }
+    }
+
+    // Build the tree in one pass: each node passes its count up to its parent.
+    for (int i = 1; i <= capacity; i++)
+    {
+      if (i <= _end)
+      {
+        _tree[i] += 1;
+      }
+      int parent = i + (i & -i);
+      if (parent <= capacity)
+      {
+        _tree[parent] += _tree[i];
+      }
+    }
+  }
+
+  /**
+   * Replaces the array and tree with empty ones of the given capacity.
+   */
+  @SuppressWarnings({"unchecked"})
+  private void allocate (int capacity)
+  {
+    _entries = new Entry[capacity];
+    _tree = new int[capacity + 1];
+    _start = 0;
+    _end = 0;
+    _size = 0;
+  }
+
+  /**
+   * Adds to the count at the given position in the tree.
+   */
+  private void update (int position, int delta)
+  {
+    for (int i = position + 1; i < _tree.length; i += (i & -i))
+    {
+      _tree[i] += delta;
+    }
+  }
+
+  /**
+   * Finds the position of the given ordinal entry in the array, counting from 1 and skipping
+   * the gaps, by walking down the tree.
+   */
+  private int search (int ordinal)
+  {
+    int position = 0;
+    for (int step = Integer.highestOneBit(_entries.length); step > 0; step >>= 1)
+    {
+      int next = position + step;
+      if ((next < _tree.length) && (_tree[next] < ordinal))
+      {
+        position = next;
+        ordinal -= _tree[next];
+      }
+    }
+    return position;
+  }
+
+  /**
+   * An item in the queue, along with where it is.
+   */
+  static private class Entry<S extends Enum, P extends Payload>
+  {
+    Entry (ProcessInfo<S,P> item)
+    {
+      _item = item;
+    }
+
+    private final ProcessInfo<S,P> _item;
+    private int _position = -1;
+    private boolean _removed;
+    private Entry<S,P> _sameId;
+  }
+
+  private Entry<S,P>[] _entries;
+  private int[] _tree;
+  private int _start;
+  private int _end;
+  private int _size;
+  private int _waitingCount;
+  private final Map<Long,Entry<S,P>> _index = new HashMap<Long,Entry<S,P>>();
+  private final TimingWheel<Entry<S,P>> _waiting = new TimingWheel<Entry<S,P>>();
+  private final List<Entry<S,P>> _released = new ArrayList<Entry<S,P>>();
+}
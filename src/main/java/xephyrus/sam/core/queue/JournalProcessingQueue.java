@@ -0,0 +1,926 @@
+package xephyrus.sam.core.queue;
+
+import xephyrus.sam.core.CompletionListener;
+import xephyrus.sam.core.Payload;
+import xephyrus.sam.core.ProcessInfo;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32C;
+
+/**
+ * <p>
+ *   An implementation of {@link ProcessingQueue} which keeps a journal of everything queued, so a
+ *   machine picks up where it left off after a restart, payloads mid-workflow included.  The
+ *   items themselves are kept in another queue, an in-memory {@link ConcurrentProcessingQueue}
+ *   unless another is given, and every item added to it is also written to the journal: an
+ *   <i>enqueue</i> record when a payload is first queued, a <i>transition</i> record each time
+ *   it's pushed back with its next state, and a <i>complete</i> record when the machine is done
+ *   with it.  On startup the journal is read back and every payload that hadn't completed is
+ *   queued again, in its last recorded state.
+ * </p><p>
+ *   A payload doesn't always go back through the queue between states: a state worker may go on
+ *   to execute the next state itself (see
+ *   {@link xephyrus.sam.core.StateMachine#setMaxInlineHops(int)}), or hand it straight to a
+ *   {@link xephyrus.sam.core.executor.ContinuationExecutor}.  The machine journals those
+ *   transitions with {@link #recordTransition(ProcessInfo)} before the next state starts, so
+ *   they're recovered just the same, at the cost of a journal write for every state.
+ * </p><p>
+ *   Payloads are journalled by id, so a payload can only be queued once at a time: queueing a
+ *   payload whose id is already in the journal, and hasn't completed, is turned away with a
+ *   {@link ProcessingQueueException}.
+ * </p><p>
+ *   This queue finds out about completions by being a {@link CompletionListener}, and
+ *   {@link xephyrus.sam.core.StateMachine#setProcessingQueue(ProcessingQueue)} registers it as
+ *   one automatically.  A payload that was in the middle of a state when the machine stopped is
+ *   queued again in that state, so states are run at least once, rather than exactly once.  If
+ *   a completion can't be recorded, the listener doesn't throw it back at the machine's worker;
+ *   instead the failure is kept (see {@link #getFailure()}), and from then on the queue stops
+ *   taking items, since the journal no longer matches what the machine is doing.
+ * </p><p>
+ *   The journal is a directory of append-only segment files, each mapped into memory.  Records
+ *   are written straight into the mapped segment, without a system call, so journalling costs
+ *   little more than the copy of the payload's bytes; the operating system writes the pages out
+ *   in the background.  That makes the journal safe against the process stopping, but not
+ *   against the machine itself going down; call {@link #flush()} to force what's been written
+ *   out to the disk.  Each record carries a checksum, and each record's length is written last,
+ *   so a record that was only partly written when the process stopped is recognized, and the
+ *   journal is read back up to it.
+ * </p><p>
+ *   When a segment fills up, a new one is started.  Segments are deleted, oldest first, as soon
+ *   as every payload recorded in them has been recorded again since, or completed.  If payloads
+ *   linger long enough that the journal grows past its segment limit anyway, the records still
+ *   in use are copied forward out of the oldest segment so it can be deleted.
+ * </p><p>
+ *   Writing to the journal is synchronized on the queue, while everything else goes straight to
+ *   the queue underneath.  Call {@link #close()} when done with the queue.
+ * </p>
+ *
+ * @param <S> The states of this {@link xephyrus.sam.core.StateMachine}.
+ * @param <P> The {@link Payload} of this {@link xephyrus.sam.core.StateMachine}.
+ */
+public class JournalProcessingQueue<S extends Enum, P extends Payload>
+  implements ProcessingQueue<S,P>, CompletionListener<S,P>, AutoCloseable
+{
+  /**
+   * Creates a new one of these, keeping the items in a {@link ConcurrentProcessingQueue}, with
+   * 64MB segments.  Anything left in the journal is read back and queued again.
+   *
+   * @param directory
+   *   The directory for the journal's segment files.  This is created if need be.
+   * @param stateType
+   *   The enumeration of states.
+   * @param codec
+   *   How to convert payloads to and from bytes.
+   * @throws ProcessingQueueException
+   *   If the journal can't be opened or read back, this will be thrown with an appropriate
+   *   message.
+   */
+  public JournalProcessingQueue (File directory, Class<S> stateType, PayloadCodec<P> codec)
+    throws ProcessingQueueException
+  {
+    this(directory,stateType,codec,new ConcurrentProcessingQueue<S,P>(),64 * 1024 * 1024);
+  }
+
+  /**
+   * Creates a new one of these.  Anything left in the journal is read back and queued again.
+   *
+   * @param directory
+   *   The directory for the journal's segment files.  This is created if need be.
+   * @param stateType
+   *   The enumeration of states.
+   * @param codec
+   *   How to convert payloads to and from bytes.
+   * @param queue
+   *   The queue to keep the items in.
+   * @param segmentSize
+   *   The size of each segment file, in bytes.  No record can be bigger than this.
+   * @throws ProcessingQueueException
+   *   If the journal can't be opened or read back, this will be thrown with an appropriate
+   *   message.
+   */
+  public JournalProcessingQueue (File directory, Class<S> stateType, PayloadCodec<P> codec,
+      ProcessingQueue<S,P> queue, int segmentSize)
+    throws ProcessingQueueException
+  {
+    if (segmentSize < HEADER + RECORD)
+    {
+      throw new IllegalArgumentException("Segment size must be at least " + (HEADER + RECORD) +
+          " bytes, not " + segmentSize);
+    }
+    if ((!directory.isDirectory()) && (!directory.mkdirs()))
+    {
+      throw new ProcessingQueueException("Can't create journal directory " + directory);
+    }
+    _directory = directory;
+    _states = stateType.getEnumConstants();
+    _codec = codec;
+    _queue = queue;
+    _segmentSize = segmentSize;
+    recover();
+  }
+
+  /**
+   * Provides the queue the items are kept in.
+   *
+   * @return
+   *   The queue.
+   */
+  public ProcessingQueue<S,P> getQueue ()
+  {
+    return _queue;
+  }
+
+  /**
+   * Provides how many segments the journal can grow to before records still in use are copied
+   * forward out of the oldest one.  The default is 16.
+   *
+   * @return
+   *   The segment limit.
+   */
+  public synchronized int getMaxSegments ()
+  {
+    return _maxSegments;
+  }
+
+  /**
+   * Sets how many segments the journal can grow to before records still in use are copied
+   * forward out of the oldest one.
+   *
+   * @param maxSegments
+   *   The segment limit, at least 2.
+   */
+  public synchronized void setMaxSegments (int maxSegments)
+  {
+    _maxSegments = Math.max(maxSegments,2);
+  }
+
+  /**
+   * Provides the number of segment files the journal currently has.
+   *
+   * @return
+   *   The segment count.
+   */
+  public synchronized int getSegmentCount ()
+  {
+    return _segments.size();
+  }
+
+  /**
+   * Provides the number of payloads recorded in the journal which haven't completed, whether
+   * they're in the queue or being processed.
+   *
+   * @return
+   *   The payload count.
+   */
+  public synchronized int getJournalledCount ()
+  {
+    return _live.size();
+  }
+
+  /**
+   * Provides the failure which stopped the queue taking items, if a completion couldn't be
+   * recorded in the journal.
+   *
+   * @return
+   *   The failure, or null if the journal is healthy.
+   */
+  public synchronized ProcessingQueueException getFailure ()
+  {
+    return _failure;
+  }
+
+  /**
+   * Forces everything written to the journal so far out to the disk.
+   *
+   * @throws ProcessingQueueException
+   *   If the journal can't be written, this will be thrown with an appropriate message.
+   */
+  public synchronized void flush ()
+    throws ProcessingQueueException
+  {
+    try
+    {
+      for (Segment segment: _segments)
+      {
+        segment._buffer.force();
+      }
+    }
+    catch (RuntimeException e)
+    {
+      throw new ProcessingQueueException("Can't flush journal in " + _directory,e);
+    }
+  }
+
+  /**
+   * Forces the journal out to the disk and closes its files.  The queue can't be used after this.
+   *
+   * @throws ProcessingQueueException
+   *   If the journal can't be written or closed, this will be thrown with an appropriate message.
+   */
+  @Override
+  public synchronized void close ()
+    throws ProcessingQueueException
+  {
+    flush();
+    for (Segment segment: _segments)
+    {
+      segment.close();
+    }
+    _segments.clear();
+    _active = null;
+  }
+
+  /**
+   * Records that the machine is done with a payload, so it isn't queued again on restart.  If
+   * that can't be recorded, the failure is kept and the queue stops taking items.
+   */
+  @Override
+  public synchronized void notifyComplete (P payload, S lastState, Throwable error)
+  {
+    try
+    {
+      complete(payload);
+    }
+    catch (ProcessingQueueException e)
+    {
+      if (_failure == null)
+      {
+        _failure = e;
+      }
+    }
+  }
+
+  /**
+   * Empties the queue, and the journal along with it.  This starts the journal afresh, so it
+   * clears any failure too.
+   */
+  @Override
+  public synchronized void clear ()
+  {
+    _queue.clear();
+    _live.clear();
+    _failure = null;
+    for (Segment segment: _segments)
+    {
+      segment.delete();
+    }
+    _segments.clear();
+    try
+    {
+      _active = startSegment(_nextSequence++);
+    }
+    catch (ProcessingQueueException e)
+    {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  @Override
+  public int getCount ()
+  {
+    return _queue.getCount();
+  }
+
+  @Override
+  public boolean isContained (ProcessInfo<S, P> item)
+  {
+    return _queue.isContained(item);
+  }
+
+  @Override
+  public boolean isReady ()
+  {
+    return _queue.isReady();
+  }
+
+  @Override
+  public ProcessInfo<S, P> peek ()
+  {
+    return _queue.peek();
+  }
+
+  @Override
+  public ProcessInfo<S, P> peek (int index)
+    throws ProcessingQueueException
+  {
+    return _queue.peek(index);
+  }
+
+  @Override
+  public ProcessInfo<S, P> pop ()
+  {
+    return _queue.pop();
+  }
+
+  @Override
+  public ProcessInfo<S, P> popReady ()
+  {
+    return _queue.popReady();
+  }
+
+  @Override
+  public List<ProcessInfo<S, P>> popReady (int max)
+  {
+    return _queue.popReady(max);
+  }
+
+  @Override
+  public void push (ProcessInfo<S, P> item)
+    throws ProcessingQueueException
+  {
+    record(TRANSITION,item);
+    _queue.push(item);
+  }
+
+  /**
+   * Journals an item's next state without queueing it, for a transition which doesn't go back
+   * through the queue.  The payload is recovered in this state if the machine stops before it
+   * moves on.
+   *
+   * @param item
+   *   The payload and the state it's about to be executed in.
+   * @throws ProcessingQueueException
+   *   If the journal can't take the record, this will be thrown with an appropriate message.
+   */
+  public void recordTransition (ProcessInfo<S, P> item)
+    throws ProcessingQueueException
+  {
+    record(TRANSITION,item);
+  }
+
+  /**
+   * Adds an item to the queue, journalling it first.  If the queue underneath won't take it, the
+   * journal records it as complete again.
+   *
+   * @throws ProcessingQueueException
+   *   If the payload is already in the journal, or the journal or the queue underneath can't take
+   *   it, this will be thrown with an appropriate message.
+   */
+  @Override
+  public void queue (ProcessInfo<S, P> item)
+    throws ProcessingQueueException
+  {
+    record(ENQUEUE,item);
+    try
+    {
+      _queue.queue(item);
+    }
+    catch (ProcessingQueueException e)
+    {
+      discard(Collections.singletonList(item));
+      throw e;
+    }
+  }
+
+  /**
+   * Adds the items to the queue, journalling them first.  The whole batch is checked before any
+   * of it is journalled, so if any payload is already in the journal, or appears twice in the
+   * batch, none of it is taken.  If the journal fills up part way through, or the queue
+   * underneath won't take them, the journal records any that weren't queued as complete again.
+   *
+   * @throws ProcessingQueueException
+   *   If a payload is already in the journal, or the journal or the queue underneath can't take
+   *   the items, this will be thrown with an appropriate message.
+   */
+  @Override
+  public void queueAll (Collection<ProcessInfo<S, P>> items)
+    throws ProcessingQueueException
+  {
+    List<byte[]> encoded = new ArrayList<byte[]>(items.size());
+    for (ProcessInfo<S,P> item: items)
+    {
+      encoded.add(_codec.encode(item.getPayload()));
+    }
+    synchronized (this)
+    {
+      Set<Long> batch = new HashSet<Long>();
+      for (ProcessInfo<S,P> item: items)
+      {
+        Long id = item.getPayload().getId();
+        if (!batch.add(id))
+        {
+          throw new ProcessingQueueException("Payload " + id + " is in the batch more than once");
+        }
+        checkQueued(id);
+      }
+      try
+      {
+        int i = 0;
+        for (ProcessInfo<S,P> item: items)
+        {
+          write(ENQUEUE,item,encoded.get(i++));
+        }
+      }
+      catch (ProcessingQueueException e)
+      {
+        discard(items);
+        throw e;
+      }
+    }
+    try
+    {
+      _queue.queueAll(items);
+    }
+    catch (ProcessingQueueException e)
+    {
+      discard(items);
+      throw e;
+    }
+  }
+
+  /**
+   * Removes the item at the specified index, recording it as complete, since the machine will
+   * never see it again.
+   */
+  @Override
+  public ProcessInfo<S, P> remove (int index)
+    throws ProcessingQueueException
+  {
+    ProcessInfo<S,P> item = _queue.remove(index);
+    if (item != null)
+    {
+      complete(item.getPayload());
+    }
+    return item;
+  }
+
+  /**
+   * Writes an enqueue or transition record for an item.  A payload can only be enqueued if it
+   * isn't in the journal already.
+   */
+  private void record (byte type, ProcessInfo<S, P> item)
+    throws ProcessingQueueException
+  {
+    // Encode outside the lock, so only the copy into the journal is serialized.
+    byte[] payload = _codec.encode(item.getPayload());
+    synchronized (this)
+    {
+      if (type == ENQUEUE)
+      {
+        checkQueued(item.getPayload().getId());
+      }
+      write(type,item,payload);
+    }
+  }
+
+  /**
+   * Turns away a payload which is already in the journal.
+   */
+  private void checkQueued (Long payloadId)
+    throws ProcessingQueueException
+  {
+    if (_live.containsKey(payloadId))
+    {
+      throw new ProcessingQueueException("Payload " + payloadId +
+          " is already queued in the journal in " + _directory);
+    }
+  }
+
+  /**
+   * Records as complete any of the given items which were journalled but which the queue
+   * underneath didn't take.  This is done on the way out of a failure, so failing to record them
+   * is kept like any other failed completion, rather than hiding the original failure.
+   */
+  private synchronized void discard (Collection<ProcessInfo<S, P>> items)
+  {
+    for (ProcessInfo<S,P> item: items)
+    {
+      if (!_queue.isContained(item))
+      {
+        notifyComplete(item.getPayload(),item.getState(),null);
+      }
+    }
+  }
+
+  /**
+   * Writes a complete record for a payload, if it's in the journal.  Only the payload which was
+   * journalled completes it: a payload turned away because another with the same id was already
+   * in the journal leaves the journal alone when it completes.
+   */
+  private synchronized void complete (P payload)
+    throws ProcessingQueueException
+  {
+    Long payloadId = payload.getId();
+    Location location = _live.get(payloadId);
+    if ((location != null) && (location._payload == payload))
+    {
+      _live.remove(payloadId);
+      append(COMPLETE,payloadId,-1,0,0,0L,EMPTY);
+      release(location);
+    }
+  }
+
+  /**
+   * Writes an enqueue or transition record for an item, and makes it the payload's record in
+   * use.
+   */
+  private void write (byte type, ProcessInfo<S, P> item, byte[] payload)
+    throws ProcessingQueueException
+  {
+    Long id = item.getPayload().getId();
+    Location location = append(type,id,
+        (item.getState() != null ? item.getState().ordinal() : -1),item.getPriority(),
+        item.getAttempt(),item.getLastCycle(),payload);
+    location._payload = item.getPayload();
+    use(id,location);
+  }
+
+  /**
+   * Makes the given record the payload's record in use, releasing the one it replaces.
+   */
+  private void use (Long payloadId, Location location)
+  {
+    location._segment._live++;
+    Location replaced = _live.put(payloadId,location);
+    if (replaced != null)
+    {
+      release(replaced);
+    }
+  }
+
+  /**
+   * Notes that a record is no longer in use, and deletes any segments at the old end of the
+   * journal which no longer have any records in use.
+   */
+  private void release (Location location)
+  {
+    location._segment._live--;
+    while ((_segments.size() > 1) && (_segments.getFirst()._live == 0))
+    {
+      _segments.removeFirst().delete();
+    }
+  }
+
+  /**
+   * Writes a record into the active segment, starting a new segment if it doesn't fit.  The
+   * record's length is written last, so a partly written record reads back as the end of the
+   * journal.
+   */
+  private Location append (byte type, Long payloadId, int state, int priority, int attempt,
+      long lastCycle, byte[] payload)
+    throws ProcessingQueueException
+  {
+    int length = RECORD + payload.length;
+    if (HEADER + length > _segmentSize)
+    {
+      throw new ProcessingQueueException("Journal record of " + (HEADER + length) +
+          " bytes is bigger than the segment size of " + _segmentSize);
+    }
+    if (_active == null)
+    {
+      throw new ProcessingQueueException("Journal in " + _directory + " is closed");
+    }
+    if (_failure != null)
+    {
+      throw new ProcessingQueueException("Journal in " + _directory + " has stopped taking " +
+          "items, since it couldn't record a completion",_failure);
+    }
+    if (_active._position + HEADER + length > _active._buffer.capacity())
+    {
+      roll();
+      if (_active._position + HEADER + length > _active._buffer.capacity())
+      {
+        // Compacting filled the new segment; start another, without compacting again.
+        _active = startSegment(_nextSequence++);
+      }
+    }
+
+    MappedByteBuffer buffer = _active._buffer;
+    int position = _active._position;
+    int body = position + HEADER;
+    buffer.put(body,type);
+    buffer.putLong(body + 1,payloadId);
+    buffer.putInt(body + 9,state);
+    buffer.putInt(body + 13,priority);
+    buffer.putInt(body + 17,attempt);
+    buffer.putLong(body + 21,lastCycle);
+    buffer.put(body + RECORD,payload);
+    buffer.putInt(position + 4,checksum(buffer,body,length));
+    buffer.putInt(position,length);
+    _active._position = body + length;
+    return new Location(_active,position,HEADER + length);
+  }
+
+  /**
+   * Starts a new segment, and if that takes the journal past its segment limit, copies the
+   * records still in use out of the oldest segment so it can be deleted.
+   */
+  private void roll ()
+    throws ProcessingQueueException
+  {
+    _active = startSegment(_nextSequence++);
+    if ((_segments.size() > _maxSegments) && (!_compacting))
+    {
+      _compacting = true;
+      try
+      {
+        compact(_segments.getFirst());
+      }
+      finally
+      {
+        _compacting = false;
+      }
+    }
+  }
+
+  /**
+   * Copies the records still in use in the given segment forward into the active segment.  Once
+   * they're copied, the segment has nothing in use, and is deleted.
+   */
+  private void compact (Segment segment)
+    throws ProcessingQueueException
+  {
+    List<Map.Entry<Long,Location>> moving = new ArrayList<Map.Entry<Long,Location>>();
+    for (Map.Entry<Long,Location> entry: _live.entrySet())
+    {
+      if (entry.getValue()._segment == segment)
+      {
+        moving.add(entry);
+      }
+    }
+    for (Map.Entry<Long,Location> entry: moving)
+    {
+      Location from = entry.getValue();
+      if (_active._position + from._length > _active._buffer.capacity())
+      {
+        roll();
+      }
+      ByteBuffer record = segment._buffer.slice(from._offset,from._length);
+      _active._buffer.put(_active._position,record,0,from._length);
+      Location to = new Location(_active,_active._position,from._length);
+      to._payload = from._payload;
+      _active._position += from._length;
+      use(entry.getKey(),to);
+    }
+  }
+
+  /**
+   * Reads back every segment in the journal, in order, works out which payloads haven't
+   * completed, and queues them again in their last recorded state.
+   */
+  private void recover ()
+    throws ProcessingQueueException
+  {
+    File[] files = _directory.listFiles();
+    List<File> journal = new ArrayList<File>();
+    for (File file: (files != null ? files : new File[0]))
+    {
+      if (file.getName().endsWith(SUFFIX))
+      {
+        journal.add(file);
+      }
+    }
+    File[] sorted = journal.toArray(new File[journal.size()]);
+    Arrays.sort(sorted);
+
+    // Most recently recorded last, which is the order the payloads get queued back in.
+    Map<Long,Location> recovered = new LinkedHashMap<Long,Location>();
+    for (int i = 0; i < sorted.length; i++)
+    {
+      Segment segment = openSegment(sorted[i]);
+      _segments.add(segment);
+      _nextSequence = segment._sequence + 1;
+      boolean intact = read(segment,recovered);
+      if ((!intact) && (i < sorted.length - 1))
+      {
+        throw new ProcessingQueueException("Journal segment " + sorted[i] +
+            " is damaged before its end");
+      }
+    }
+    _active = (_segments.isEmpty() ? startSegment(_nextSequence++) : _segments.getLast());
+
+    for (Map.Entry<Long,Location> entry: recovered.entrySet())
+    {
+      use(entry.getKey(),entry.getValue());
+    }
+    for (Location location: recovered.values())
+    {
+      ProcessInfo<S,P> item = decode(location);
+      location._payload = item.getPayload();
+      _queue.push(item);
+    }
+    while ((_segments.size() > 1) && (_segments.getFirst()._live == 0))
+    {
+      _segments.removeFirst().delete();
+    }
+  }
+
+  /**
+   * Reads the records in a segment, noting the latest record for each payload and dropping the
+   * payloads that completed.  Reading stops at the first record that's missing or doesn't check
+   * out, which becomes the segment's write position.
+   *
+   * @return
+   *   If the segment ends cleanly, true; if it ends in a damaged record, false, and the damage is
+   *   cleared away so the segment can be written to again.
+   */
+  private boolean read (Segment segment, Map<Long,Location> recovered)
+  {
+    MappedByteBuffer buffer = segment._buffer;
+    int position = 0;
+    boolean intact = true;
+    while (position + HEADER <= buffer.capacity())
+    {
+      int length = buffer.getInt(position);
+      if (length == 0)
+      {
+        break;
+      }
+      int body = position + HEADER;
+      if ((length < RECORD) || (length > buffer.capacity() - body) ||
+          (buffer.getInt(position + 4) != checksum(buffer,body,length)))
+      {
+        intact = false;
+        break;
+      }
+
+      Long id = buffer.getLong(body + 1);
+      recovered.remove(id);
+      if (buffer.get(body) != COMPLETE)
+      {
+        recovered.put(id,new Location(segment,position,HEADER + length));
+      }
+      position = body + length;
+    }
+    segment._position = position;
+
+    if (!intact)
+    {
+      for (int i = position; i < buffer.capacity(); i++)
+      {
+        buffer.put(i,(byte) 0);
+      }
+    }
+    return intact;
+  }
+
+  /**
+   * Rebuilds an item from its record.
+   */
+  @SuppressWarnings({"unchecked"})
+  private ProcessInfo<S, P> decode (Location location)
+    throws ProcessingQueueException
+  {
+    MappedByteBuffer buffer = location._segment._buffer;
+    int body = location._offset + HEADER;
+    int state = buffer.getInt(body + 9);
+    byte[] payload = new byte[location._length - HEADER - RECORD];
+    buffer.get(body + RECORD,payload);
+    return new ProcessInfo<S,P>(_codec.decode(payload),(state < 0 ? null : _states[state]),
+        buffer.getInt(body + 13),buffer.getInt(body + 17),buffer.getLong(body + 21));
+  }
+
+  /**
+   * Creates a new, empty segment file and makes it the newest segment.
+   */
+  private Segment startSegment (long sequence)
+    throws ProcessingQueueException
+  {
+    File file = new File(_directory,String.format("%020d%s",sequence,SUFFIX));
+    try
+    {
+      RandomAccessFile access = new RandomAccessFile(file,"rw");
+      access.setLength(_segmentSize);
+      Segment segment = new Segment(sequence,file,access.getChannel());
+      _segments.add(segment);
+      return segment;
+    }
+    catch (IOException e)
+    {
+      throw new ProcessingQueueException("Can't create journal segment " + file,e);
+    }
+  }
+
+  /**
+   * Opens an existing segment file.
+   */
+  private Segment openSegment (File file)
+    throws ProcessingQueueException
+  {
+    String name = file.getName();
+    try
+    {
+      long sequence = Long.parseLong(name.substring(0,name.length() - SUFFIX.length()));
+      return new Segment(sequence,file,new RandomAccessFile(file,"rw").getChannel());
+    }
+    catch (IOException | NumberFormatException e)
+    {
+      throw new ProcessingQueueException("Can't open journal segment " + file,e);
+    }
+  }
+
+  /**
+   * Works out the checksum of a record's body, straight from the mapped segment.
+   */
+  static private int checksum (MappedByteBuffer buffer, int body, int length)
+  {
+    CRC32C crc = new CRC32C();
+    crc.update(buffer.slice(body,length));
+    return (int) crc.getValue();
+  }
+
+  /**
+   * One of the journal's segment files, mapped into memory.
+   */
+  static private class Segment
+  {
+    Segment (long sequence, File file, FileChannel channel)
+      throws IOException
+    {
+      _sequence = sequence;
+      _file = file;
+      _channel = channel;
+      _buffer = channel.map(FileChannel.MapMode.READ_WRITE,0,channel.size());
+    }
+
+    /**
+     * Closes the file.  The mapping goes away once it's no longer referenced.
+     */
+    void close ()
+    {
+      try
+      {
+        _channel.close();
+      }
+      catch (IOException e)
+      {
+        // Nothing more can be done with it anyway.
+      }
+    }
+
+    /**
+     * Closes and deletes the file.
+     */
+    void delete ()
+    {
+      close();
+      _file.delete();
+    }
+
+    private final long _sequence;
+    private final File _file;
+    private final FileChannel _channel;
+    private final MappedByteBuffer _buffer;
+    private int _position;
+    private int _live;
+  }
+
+  /**
+   * Where a record is in the journal.
+   */
+  static private class Location
+  {
+    Location (Segment segment, int offset, int length)
+    {
+      _segment = segment;
+      _offset = offset;
+      _length = length;
+    }
+
+    private final Segment _segment;
+    private final int _offset;
+    private final int _length;
+    /** The payload the record was written for, which is the only one that can complete it. */
+    private Object _payload;
+  }
+
+  static private final byte ENQUEUE = 1;
+  static private final byte TRANSITION = 2;
+  static private final byte COMPLETE = 3;
+  static private final byte[] EMPTY = new byte[0];
+  static private final String SUFFIX = ".journal";
+
+  /** The length and checksum in front of every record. */
+  static private final int HEADER = 8;
+  /** The type, payload id, state, priority, attempt and last cycle in every record's body. */
+  static private final int RECORD = 29;
+
+  private final File _directory;
+  private final S[] _states;
+  private final PayloadCodec<P> _codec;
+  private final ProcessingQueue<S,P> _queue;
+  private final int _segmentSize;
+  private final LinkedList<Segment> _segments = new LinkedList<Segment>();
+  private final Map<Long,Location> _live = new HashMap<Long,Location>();
+  private Segment _active;
+  private long _nextSequence;
+  private int _maxSegments = 16;
+  private boolean _compacting;
+  private ProcessingQueueException _failure;
+}
@@ -3,11 +3,24 @@ package xephyrus.sam.core.queue;
 import xephyrus.sam.core.Payload;
 import xephyrus.sam.core.ProcessInfo;
 
+import java.util.ArrayList;
 import java.util.LinkedList;
+import java.util.List;
 
 /**
- * An implementation of {@link ProcessingQueue} which manages the queue in memory using a
- * {@link LinkedList}.
+ * <p>
+ *   An implementation of {@link ProcessingQueue} which manages the queue in memory using a
+ *   {@link LinkedList}.  Every operation is synchronized on the queue, so it's safe to share
+ *   between the producers calling {@link xephyrus.sam.core.StateMachine#process(Payload)}, the
+ *   state workers pushing back next states, and any number of dispatchers.
+ * </p><p>
+ *   Items which are still waiting, whether in a {@link xephyrus.sam.core.WaitingState} or held back
+ *   by the machine (see {@link ProcessingQueueUtils#isProcessInfoWaiting(ProcessInfo)}), are held
+ *   aside in a {@link TimingWheel}, and join the back of the queue when their wait is over, so they
+ *   never hold up the ready items queued behind them.  Held items still count towards
+ *   {@link #getCount()}, and come after the ready items for {@link #peek(int)} and
+ *   {@link #remove(int)}.
+ * </p>
  *
  * @param <S> The states of this {@link xephyrus.sam.core.StateMachine}.
  * @param <P> The {@link Payload} of this {@link xephyrus.sam.core.StateMachine}.
@@ -16,82 +29,133 @@ public class MemoryProcessingQueue<S extends Enum, P extends Payload>
   implements ProcessingQueue<S,P>
 {
   @Override
-  public void clear ()
+  public synchronized void clear ()
   {
     _queue.clear();
+    _waiting.clear();
   }
 
   @Override
-  public int getCount ()
+  public synchronized int getCount ()
   {
-    return _queue.size();
+    return _queue.size() + _waiting.size();
   }
 
   @Override
-  public boolean isContained (ProcessInfo<S, P> item)
+  public synchronized boolean isContained (ProcessInfo<S, P> item)
   {
-    return _queue.contains(item);
+    return (_queue.contains(item) || _waiting.contains(item));
   }
 
   @Override
-  public boolean isReady ()
+  public synchronized boolean isReady ()
   {
-    return ((_queue.size() > 0) && (!ProcessingQueueUtils.isProcessInfoWaiting(_queue.peek())));
+    release();
+    return (_queue.size() > 0);
   }
 
   @Override
-  public ProcessInfo<S, P> peek ()
+  public synchronized ProcessInfo<S, P> peek ()
   {
-    return _queue.peek();
+    release();
+    return (_queue.isEmpty() ? _waiting.peek() : _queue.peek());
   }
 
   @Override
-  public ProcessInfo<S, P> peek (int index)
+  public synchronized ProcessInfo<S, P> peek (int index)
   {
+    release();
     if (index < _queue.size())
     {
       return _queue.get(index);
     }
+    if (index < getCount())
+    {
+      return _waiting.toList().get(index - _queue.size());
+    }
     return null;
   }
 
   @Override
-  public ProcessInfo<S, P> pop ()
+  public synchronized ProcessInfo<S, P> pop ()
   {
-    return _queue.pop();
+    release();
+    return (_queue.isEmpty() ? _waiting.poll() : _queue.pop());
   }
 
   @Override
-  public ProcessInfo<S, P> popReady ()
+  public synchronized ProcessInfo<S, P> popReady ()
   {
     if (isReady())
     {
-      return pop();
+      return _queue.pop();
     }
     return null;
   }
 
   @Override
-  public void push (ProcessInfo<S, P> item)
+  public synchronized List<ProcessInfo<S, P>> popReady (int max)
   {
-    _queue.add(item);
+    release();
+    List<ProcessInfo<S,P>> items = new ArrayList<ProcessInfo<S,P>>(Math.min(max,_queue.size()));
+    while ((items.size() < max) && (!_queue.isEmpty()))
+    {
+      items.add(_queue.pop());
+    }
+    return items;
   }
 
   @Override
-  public void queue (ProcessInfo<S, P> item)
+  public synchronized void push (ProcessInfo<S, P> item)
   {
-    _queue.add(item);
+    add(item);
   }
 
   @Override
-  public ProcessInfo<S, P> remove (int index)
+  public synchronized void queue (ProcessInfo<S, P> item)
   {
+    add(item);
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> remove (int index)
+  {
+    release();
     if (index < _queue.size())
     {
       return _queue.remove(index);
     }
-    return null;
+    ProcessInfo<S,P> item = peek(index);
+    if (item != null)
+    {
+      _waiting.remove(item);
+    }
+    return item;
+  }
+
+  /**
+   * Adds an item to the back of the queue, or holds it aside if it's still waiting.
+   */
+  private void add (ProcessInfo<S, P> item)
+  {
+    if ((!ProcessingQueueUtils.isProcessInfoWaiting(item)) ||
+        (!_waiting.schedule(item,ProcessingQueueUtils.getReadyTime(item))))
+    {
+      _queue.add(item);
+    }
+  }
+
+  /**
+   * Moves any held items whose wait is over onto the back of the queue.
+   */
+  private void release ()
+  {
+    if (_waiting.size() > 0)
+    {
+      _waiting.expire(System.currentTimeMillis(),_queue);
+    }
   }
 
   private LinkedList<ProcessInfo<S,P>> _queue = new LinkedList<ProcessInfo<S,P>>();
+  private TimingWheel<ProcessInfo<S,P>> _waiting = new TimingWheel<ProcessInfo<S,P>>();
 }
@@ -0,0 +1,39 @@
+package xephyrus.sam.core.queue;
+
+import xephyrus.sam.core.Payload;
+
+/**
+ * Converts payloads to and from bytes, so a {@link ProcessingQueue} can keep them somewhere other
+ * than memory, such as the journal of a {@link JournalProcessingQueue}.
+ *
+ * @param <P>
+ *   The {@link Payload} being converted.
+ */
+public interface PayloadCodec<P extends Payload>
+{
+  /**
+   * Converts a payload to bytes.
+   *
+   * @param payload
+   *   The payload.
+   * @return
+   *   The bytes which {@link #decode(byte[])} turns back into the payload.
+   * @throws ProcessingQueueException
+   *   If the payload can't be converted, this will be thrown with an appropriate message.
+   */
+  byte[] encode (P payload)
+    throws ProcessingQueueException;
+
+  /**
+   * Converts bytes back to a payload.
+   *
+   * @param bytes
+   *   The bytes, as provided by {@link #encode(Payload)}.
+   * @return
+   *   The payload.
+   * @throws ProcessingQueueException
+   *   If the bytes can't be converted, this will be thrown with an appropriate message.
+   */
+  P decode (byte[] bytes)
+    throws ProcessingQueueException;
+}
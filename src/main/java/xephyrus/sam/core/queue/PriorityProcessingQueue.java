@@ -0,0 +1,279 @@
+package xephyrus.sam.core.queue;
+
+import xephyrus.sam.core.Payload;
+import xephyrus.sam.core.ProcessInfo;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * <p>
+ *   An implementation of {@link ProcessingQueue} which manages the queue in memory, in order of
+ *   priority rather than strictly first-in, first-out.  The priority of each item comes from
+ *   {@link ProcessingQueueUtils#getPriority(ProcessInfo)}: the priority of its state plus, if the
+ *   payload is a {@link xephyrus.sam.core.PrioritizedPayload}, the priority of its payload.
+ *   Items of equal priority come out in the order they went in.
+ * </p><p>
+ *   So that a steady stream of urgent items can't starve everything else, items age while they
+ *   wait: every aging interval an item spends in the queue counts the same as one more point of
+ *   priority.  For example, with the default aging interval of one second, an item of priority 0
+ *   that has waited more than five seconds comes out ahead of a newly queued item of priority 5.
+ * </p><p>
+ *   As with {@link MemoryProcessingQueue}, every operation is synchronized on the queue, and
+ *   items which are still waiting are held aside in a {@link TimingWheel} until their wait is
+ *   over.  They then take their place by priority and age, so an item that has waited a long
+ *   time comes out ahead of newer items of the same priority.
+ * </p>
+ *
+ * @param <S> The states of this {@link xephyrus.sam.core.StateMachine}.
+ * @param <P> The {@link Payload} of this {@link xephyrus.sam.core.StateMachine}.
+ */
+public class PriorityProcessingQueue<S extends Enum, P extends Payload>
+  implements ProcessingQueue<S,P>
+{
+  /**
+   * Creates a new one of these with an aging interval of one second.
+   */
+  public PriorityProcessingQueue ()
+  {
+    this(1000L);
+  }
+
+  /**
+   * Creates a new one of these with the given aging interval.
+   *
+   * @param agingInterval
+   *   How long, in milliseconds, an item must wait to gain the equivalent of one point of
+   *   priority.
+   */
+  public PriorityProcessingQueue (long agingInterval)
+  {
+    _agingInterval = agingInterval;
+  }
+
+  /**
+   * Provides how long an item must wait to gain the equivalent of one point of priority.
+   *
+   * @return
+   *   The aging interval, in milliseconds.
+   */
+  public long getAgingInterval ()
+  {
+    return _agingInterval;
+  }
+
+  @Override
+  public synchronized void clear ()
+  {
+    _queue.clear();
+    _entries.clear();
+    _waiting.clear();
+  }
+
+  @Override
+  public synchronized int getCount ()
+  {
+    return _queue.size() + _waiting.size();
+  }
+
+  @Override
+  public synchronized boolean isContained (ProcessInfo<S, P> item)
+  {
+    return (_entries.containsKey(item) || _waiting.contains(item));
+  }
+
+  @Override
+  public synchronized boolean isReady ()
+  {
+    release();
+    return (!_queue.isEmpty());
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> peek ()
+  {
+    release();
+    return (_queue.isEmpty() ? _waiting.peek() : _queue.first()._item);
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> peek (int index)
+  {
+    release();
+    Entry<S,P> entry = find(index);
+    if (entry != null)
+    {
+      return entry._item;
+    }
+    if ((index >= _queue.size()) && (index < getCount()))
+    {
+      return _waiting.toList().get(index - _queue.size());
+    }
+    return null;
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> pop ()
+  {
+    ProcessInfo<S,P> item = popReady();
+    return (item != null ? item : _waiting.poll());
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> popReady ()
+  {
+    release();
+    Entry<S,P> entry = _queue.pollFirst();
+    if (entry == null)
+    {
+      return null;
+    }
+    _entries.remove(entry._item);
+    return entry._item;
+  }
+
+  @Override
+  public synchronized List<ProcessInfo<S, P>> popReady (int max)
+  {
+    List<ProcessInfo<S,P>> items = new ArrayList<ProcessInfo<S,P>>(Math.min(max,_queue.size()));
+    while ((items.size() < max) && isReady())
+    {
+      items.add(popReady());
+    }
+    return items;
+  }
+
+  @Override
+  public synchronized void push (ProcessInfo<S, P> item)
+  {
+    hold(item);
+  }
+
+  @Override
+  public synchronized void queue (ProcessInfo<S, P> item)
+  {
+    hold(item);
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> remove (int index)
+  {
+    release();
+    Entry<S,P> entry = find(index);
+    if (entry == null)
+    {
+      ProcessInfo<S,P> item = peek(index);
+      if (item != null)
+      {
+        _waiting.remove(item);
+      }
+      return item;
+    }
+    _queue.remove(entry);
+    _entries.remove(entry._item);
+    return entry._item;
+  }
+
+  /**
+   * Holds an item aside if it's still waiting; otherwise adds it into the queue.
+   */
+  private void hold (ProcessInfo<S, P> item)
+  {
+    if ((!ProcessingQueueUtils.isProcessInfoWaiting(item)) ||
+        (!_waiting.schedule(item,ProcessingQueueUtils.getReadyTime(item))))
+    {
+      add(item);
+    }
+  }
+
+  /**
+   * Adds any held items whose wait is over into the queue.
+   */
+  private void release ()
+  {
+    if (_waiting.size() > 0)
+    {
+      _released.clear();
+      _waiting.expire(System.currentTimeMillis(),_released);
+      for (ProcessInfo<S,P> item: _released)
+      {
+        add(item);
+      }
+      _released.clear();
+    }
+  }
+
+  /**
+   * Adds an item into the queue at the spot for its priority and age.
+   */
+  private void add (ProcessInfo<S, P> item)
+  {
+    Entry<S,P> entry = new Entry<S,P>(item,
+        item.getLastCycle() - (ProcessingQueueUtils.getPriority(item) * _agingInterval),
+        _sequence++);
+    _queue.add(entry);
+    _entries.put(item,entry);
+  }
+
+  /**
+   * Finds the entry at the specified index, in queue order.
+   */
+  private Entry<S,P> find (int index)
+  {
+    if ((index < 0) || (index >= _queue.size()))
+    {
+      return null;
+    }
+    Iterator<Entry<S,P>> entries = _queue.iterator();
+    for (int i = 0; i < index; i++)
+    {
+      entries.next();
+    }
+    return entries.next();
+  }
+
+  /**
+   * An item in the queue, along with where it sorts.
+   */
+  static private class Entry<S extends Enum, P extends Payload>
+  {
+    Entry (ProcessInfo<S,P> item, long rank, long sequence)
+    {
+      _item = item;
+      _rank = rank;
+      _sequence = sequence;
+    }
+
+    private final ProcessInfo<S,P> _item;
+    private final long _rank;
+    private final long _sequence;
+  }
+
+  /**
+   * Sorts entries by rank, which combines priority and age, and then by the order they were
+   * added.
+   */
+  static private class EntryComparator
+    implements Comparator<Entry<?,?>>
+  {
+    @Override
+    public int compare (Entry<?,?> a, Entry<?,?> b)
+    {
+      int compared = Long.compare(a._rank,b._rank);
+      return (compared != 0 ? compared : Long.compare(a._sequence,b._sequence));
+    }
+  }
+
+  private final long _agingInterval;
+  private long _sequence;
+  private final TreeSet<Entry<S,P>> _queue = new TreeSet<Entry<S,P>>(new EntryComparator());
+  private final Map<ProcessInfo<S,P>,Entry<S,P>> _entries =
+      new IdentityHashMap<ProcessInfo<S,P>,Entry<S,P>>();
+  private final TimingWheel<ProcessInfo<S,P>> _waiting = new TimingWheel<ProcessInfo<S,P>>();
+  private final List<ProcessInfo<S,P>> _released = new ArrayList<ProcessInfo<S,P>>();
+}
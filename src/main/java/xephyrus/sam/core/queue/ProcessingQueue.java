@@ -3,6 +3,9 @@ package xephyrus.sam.core.queue;
 import xephyrus.sam.core.Payload;
 import xephyrus.sam.core.ProcessInfo;
 
+import java.util.Collection;
+import java.util.List;
+
 /**
  * Defines a queue for tracking items being processed and waiting to be processed.  Each
  * instantiated queue is specific to the {@link xephyrus.sam.core.StateMachine} it supports.
@@ -79,7 +82,7 @@ public interface ProcessingQueue<S extends Enum, P extends Payload>
    * {@link #getCount()} &gt; 0, this will return an item.
    *
    * @return
-   *   The next item from the queue.
+   *   The next item from the queue, or null if the queue is empty.
    */
   ProcessInfo<S,P> pop ();
 
@@ -97,6 +100,23 @@ public interface ProcessingQueue<S extends Enum, P extends Payload>
    */
   ProcessInfo<S,P> popReady ();
 
+  /**
+   * <p>
+   *   Provides up to the specified number of <i>ready</i> items from the front of the queue, in
+   *   order, and removes them from the queue.  This behaves as though {@link #popReady()} were
+   *   called repeatedly until either the maximum is reached or it returns null, but gives the
+   *   implementation a chance to do it all in one go.
+   * </p><p>
+   *   If no items are currently <i>ready</i>, an empty list is returned.
+   * </p>
+   *
+   * @param max
+   *   The most items to provide.
+   * @return
+   *   The next <i>ready</i> items from the queue, never null.
+   */
+  List<ProcessInfo<S,P>> popReady (int max);
+
   /**
    * <p>
    *   Adds an item into the queue.  This method is used to re-add items which have previously been
@@ -133,6 +153,34 @@ public interface ProcessingQueue<S extends Enum, P extends Payload>
   void queue (ProcessInfo<S,P> item)
     throws ProcessingQueueException;
 
+  /**
+   * <p>
+   *   Adds a batch of new items into the queue, in order.  This behaves as though
+   *   {@link #queue(xephyrus.sam.core.ProcessInfo)} were called for each item, which is just what
+   *   this does by default.
+   * </p><p>
+   *   Queues which can do better for a whole batch, by linking it in, growing their storage, or
+   *   writing to their backing store once, override this.  An override should add the batch all
+   *   or nothing: if it throws, none of the items should have been added.  The default is only all
+   *   or nothing if {@link #queue(xephyrus.sam.core.ProcessInfo)} can't fail part way through a
+   *   batch, which is the case for queues held in memory.
+   * </p>
+   *
+   * @param items
+   *   The items to be added to the queue.
+   * @throws ProcessingQueueException
+   *   If any problems are encountered while adding these items to the queue, this will be thrown
+   *   with an appropriate message.
+   */
+  default void queueAll (Collection<ProcessInfo<S,P>> items)
+    throws ProcessingQueueException
+  {
+    for (ProcessInfo<S,P> item: items)
+    {
+      queue(item);
+    }
+  }
+
   /**
    * Removes the item at the specified index from the queue.
    *
@@ -1,6 +1,7 @@
 package xephyrus.sam.core.queue;
 
 import xephyrus.sam.core.Payload;
+import xephyrus.sam.core.PrioritizedPayload;
 import xephyrus.sam.core.ProcessInfo;
 import xephyrus.sam.core.WaitingState;
 
@@ -17,7 +18,10 @@ public class ProcessingQueueUtils
    *   should currently be considered as <i>waiting</i>.
    * </p><p>
    *   Wait times are defined within the state, by implementing the {@link WaitingState} interface
-   *   for the state itself.
+   *   for the state itself.  The {@link xephyrus.sam.core.StateMachine} also holds items back
+   *   for a time, such as a state waiting out its retry delay, by stamping them with a last
+   *   processed time in the future; those items are waiting until that time, whatever their
+   *   state.
    * </p>
    *
    * @param item
@@ -27,17 +31,70 @@ public class ProcessingQueueUtils
    * @param <P>
    *   The payload definition for the machine processing this item.
    * @return
-   *   If the item is in a {@link WaitingState} state, and was last processed less than the wait
-   *   time ago, true; otherwise false.
+   *   If the item's ready time (see {@link #getReadyTime(ProcessInfo)}) hasn't come yet, true;
+   *   otherwise false.
    */
   static public <S extends Enum,P extends Payload> boolean isProcessInfoWaiting (
       ProcessInfo<S,P> item)
   {
+    return getReadyTime(item) > System.currentTimeMillis();
+  }
+
+  /**
+   * <p>
+   *   Provides when the specified queue item stops waiting.  {@link ProcessingQueue}
+   *   implementations which hold waiting items aside can use this to know when to release them.
+   * </p><p>
+   *   See {@link #isProcessInfoWaiting(ProcessInfo)}.
+   * </p>
+   *
+   * @param item
+   *   The item to check.
+   * @param <S>
+   *   The state definition for the machine processing this item.
+   * @param <P>
+   *   The payload definition for the machine processing this item.
+   * @return
+   *   The millisecond timestamp when the item's wait is over: the time it was last processed plus
+   *   the wait time of its state.
+   */
+  static public <S extends Enum,P extends Payload> long getReadyTime (ProcessInfo<S,P> item)
+  {
+    long waitTime = 0L;
     if (item.getState() instanceof WaitingState)
     {
-      long waitTill = System.currentTimeMillis() - ((WaitingState) item.getState()).getWaitTime();
-      return waitTill < item.getLastCycle();
+      waitTime = ((WaitingState) item.getState()).getWaitTime();
+    }
+    return item.getLastCycle() + waitTime;
+  }
+
+  /**
+   * <p>
+   *   Provides the priority of the specified queue item.  Some {@link ProcessingQueue}
+   *   implementations respect priority.  This function can be used by those implementations to
+   *   determine how urgent a specific item is.
+   * </p><p>
+   *   The priority of an item is the priority of its state, as registered with the
+   *   {@link xephyrus.sam.core.StateMachine}, plus the priority of its payload, if the payload
+   *   implements {@link PrioritizedPayload}.
+   * </p>
+   *
+   * @param item
+   *   The item to check.
+   * @param <S>
+   *   The state definition for the machine processing this item.
+   * @param <P>
+   *   The payload definition for the machine processing this item.
+   * @return
+   *   The priority of the item.  Higher numbers are more urgent.
+   */
+  static public <S extends Enum,P extends Payload> int getPriority (ProcessInfo<S,P> item)
+  {
+    int priority = item.getPriority();
+    if (item.getPayload() instanceof PrioritizedPayload)
+    {
+      priority += ((PrioritizedPayload) item.getPayload()).getPriority();
     }
-    return false;
+    return priority;
   }
 }
@@ -0,0 +1,432 @@
+package xephyrus.sam.core.queue;
+
+import xephyrus.sam.core.Payload;
+import xephyrus.sam.core.ProcessInfo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>
+ *   An implementation of {@link ProcessingQueue} which manages the queue in memory, in a buffer
+ *   made of parallel arrays.  Rather than keeping a list node and a {@link ProcessInfo} for every
+ *   queued item, it keeps just the payload reference, the state's ordinal, the priority, the
+ *   attempt, the last cycle time and the admission flag in preallocated arrays, so a deep queue
+ *   costs a few dozen bytes an item and nothing for the garbage collector to trace beyond the
+ *   payloads themselves.  Use it where the queue can grow very deep, such as during a backfill.
+ * </p><p>
+ *   The buffer is made of fixed-size chunks.  As the queue fills, a chunk is added at the back,
+ *   so growing never copies what's already queued; as it drains, each chunk is let go once the
+ *   front of the queue has moved past it, so a queue which was once very deep doesn't hold onto
+ *   that memory.  One drained chunk is kept spare, so a queue hovering around a chunk boundary
+ *   doesn't keep allocating.  The queue holds at most {@link #getMaxCount()} items, counting the
+ *   waiting ones; past that, adding items fails with a {@link ProcessingQueueException}.
+ * </p><p>
+ *   Since only the fields of each item are kept, the {@link ProcessInfo}s handed back out of the
+ *   queue are rebuilt when they leave it: they carry the same payload, state, priority, attempt,
+ *   last cycle time and admission flag as the ones that went in, but aren't the same objects.
+ *   For the same reason, {@link #isContained(ProcessInfo)} looks for an item with the same
+ *   payload and state, whether it's in the buffer or still waiting.
+ * </p><p>
+ *   As with {@link MemoryProcessingQueue}, every operation is synchronized on the queue, and
+ *   items which are still waiting are held aside in a {@link TimingWheel} until their wait is
+ *   over.
+ * </p>
+ *
+ * @param <S> The states of this {@link xephyrus.sam.core.StateMachine}.
+ * @param <P> The {@link Payload} of this {@link xephyrus.sam.core.StateMachine}.
+ */
+public class RingBufferProcessingQueue<S extends Enum, P extends Payload>
+  implements ProcessingQueue<S,P>
+{
+  /**
+   * Creates a new one of these with chunks of 1024 items.
+   */
+  public RingBufferProcessingQueue ()
+  {
+    this(1024);
+  }
+
+  /**
+   * Creates a new one of these.
+   *
+   * @param chunkSize
+   *   How many items each chunk of the buffer holds, which is also how many there's room for up
+   *   front.  This is rounded up to a power of two.
+   */
+  public RingBufferProcessingQueue (int chunkSize)
+  {
+    if ((chunkSize < 1) || (chunkSize > MAX_CHUNK_SIZE))
+    {
+      throw new IllegalArgumentException("Chunk size must be from 1 to " + MAX_CHUNK_SIZE +
+          ", not " + chunkSize);
+    }
+    int size = 1;
+    while (size < chunkSize)
+    {
+      size <<= 1;
+    }
+    _shift = Integer.numberOfTrailingZeros(size);
+    _mask = size - 1;
+    _maxCount = Integer.MAX_VALUE - size;
+    _chunks.add(new Chunk(size));
+  }
+
+  /**
+   * Provides how many items the buffer has room for before it has to add another chunk.
+   *
+   * @return
+   *   The capacity.
+   */
+  public synchronized int getCapacity ()
+  {
+    return _chunks.size() << _shift;
+  }
+
+  /**
+   * Provides the most items the queue can hold, counting the ones which are still waiting.
+   *
+   * @return
+   *   The most items the queue can hold.
+   */
+  public int getMaxCount ()
+  {
+    return _maxCount;
+  }
+
+  @Override
+  public synchronized void clear ()
+  {
+    while (_chunks.size() > 1)
+    {
+      _chunks.remove(_chunks.size() - 1);
+    }
+    _chunks.get(0).clear();
+    _head = 0;
+    _size = 0;
+    _waiting.clear();
+  }
+
+  @Override
+  public synchronized int getCount ()
+  {
+    return _size + _waiting.size();
+  }
+
+  @Override
+  public synchronized boolean isContained (ProcessInfo<S, P> item)
+  {
+    int state = ordinal(item.getState());
+    for (int i = 0; i < _size; i++)
+    {
+      int at = _head + i;
+      Chunk chunk = _chunks.get(at >>> _shift);
+      int slot = at & _mask;
+      if ((chunk._payloads[slot] == item.getPayload()) && (chunk._states[slot] == state))
+      {
+        return true;
+      }
+    }
+    for (ProcessInfo<S,P> waiting: _waiting.toList())
+    {
+      if ((waiting.getPayload() == item.getPayload()) && (waiting.getState() == item.getState()))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public synchronized boolean isReady ()
+  {
+    release();
+    return (_size > 0);
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> peek ()
+  {
+    release();
+    return (_size > 0 ? get(0) : _waiting.peek());
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> peek (int index)
+  {
+    release();
+    if ((index >= 0) && (index < _size))
+    {
+      return get(index);
+    }
+    if ((index >= _size) && (index < getCount()))
+    {
+      return _waiting.toList().get(index - _size);
+    }
+    return null;
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> pop ()
+  {
+    ProcessInfo<S,P> item = popReady();
+    return (item != null ? item : _waiting.poll());
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> popReady ()
+  {
+    release();
+    if (_size == 0)
+    {
+      return null;
+    }
+    ProcessInfo<S,P> item = get(0);
+    _chunks.get(0)._payloads[_head] = null;
+    _head++;
+    _size--;
+    if (_size == 0)
+    {
+      _head = 0;
+    }
+    else if (_head > _mask)
+    {
+      // The front of the queue has moved past the first chunk.
+      _spare = _chunks.remove(0);
+      _head = 0;
+    }
+    return item;
+  }
+
+  @Override
+  public synchronized List<ProcessInfo<S, P>> popReady (int max)
+  {
+    release();
+    List<ProcessInfo<S,P>> items = new ArrayList<ProcessInfo<S,P>>(Math.min(max,_size));
+    while ((items.size() < max) && (_size > 0))
+    {
+      items.add(popReady());
+    }
+    return items;
+  }
+
+  @Override
+  public synchronized void push (ProcessInfo<S, P> item)
+      throws ProcessingQueueException
+  {
+    checkRoom(1);
+    hold(item);
+  }
+
+  @Override
+  public synchronized void queue (ProcessInfo<S, P> item)
+      throws ProcessingQueueException
+  {
+    checkRoom(1);
+    hold(item);
+  }
+
+  @Override
+  public synchronized void queueAll (Collection<ProcessInfo<S, P>> items)
+      throws ProcessingQueueException
+  {
+    checkRoom(items.size());
+    for (ProcessInfo<S,P> item: items)
+    {
+      hold(item);
+    }
+  }
+
+  @Override
+  public synchronized ProcessInfo<S, P> remove (int index)
+  {
+    release();
+    if ((index >= _size) || (index < 0))
+    {
+      ProcessInfo<S,P> item = peek(index);
+      if (item != null)
+      {
+        _waiting.remove(item);
+      }
+      return item;
+    }
+
+    // Close the gap by moving everything after it down one.
+    ProcessInfo<S,P> item = get(index);
+    for (int i = index; i < _size - 1; i++)
+    {
+      int to = _head + i;
+      int from = to + 1;
+      Chunk toChunk = _chunks.get(to >>> _shift);
+      Chunk fromChunk = _chunks.get(from >>> _shift);
+      toChunk.copy(to & _mask,fromChunk,from & _mask);
+    }
+    int last = _head + _size - 1;
+    _chunks.get(last >>> _shift)._payloads[last & _mask] = null;
+    _size--;
+    if ((_size > 0) && ((last & _mask) == 0))
+    {
+      // The back of the queue has moved off the last chunk.
+      _spare = _chunks.remove(_chunks.size() - 1);
+    }
+    else if (_size == 0)
+    {
+      _head = 0;
+    }
+    return item;
+  }
+
+  /**
+   * Makes sure there's room in the queue for the given number of new items.
+   *
+   * @throws ProcessingQueueException
+   *   If the queue would hold more than {@link #getMaxCount()} items.
+   */
+  private void checkRoom (int adding)
+      throws ProcessingQueueException
+  {
+    if ((long) getCount() + adding > _maxCount)
+    {
+      throw new ProcessingQueueException("Queue is full: it can't hold more than " + _maxCount +
+          " items");
+    }
+  }
+
+  /**
+   * Holds an item aside if it's still waiting; otherwise adds it to the back of the buffer.
+   */
+  private void hold (ProcessInfo<S, P> item)
+  {
+    if ((!ProcessingQueueUtils.isProcessInfoWaiting(item)) ||
+        (!_waiting.schedule(item,ProcessingQueueUtils.getReadyTime(item))))
+    {
+      add(item);
+    }
+  }
+
+  /**
+   * Adds an item to the back of the buffer, adding a chunk if the last one is full.
+   */
+  @SuppressWarnings({"unchecked"})
+  private void add (ProcessInfo<S, P> item)
+  {
+    if ((_stateValues == null) && (item.getState() != null))
+    {
+      _stateValues = (S[]) item.getState().getDeclaringClass().getEnumConstants();
+    }
+    int at = _head + _size;
+    if ((at >>> _shift) == _chunks.size())
+    {
+      _chunks.add(_spare != null ? _spare : new Chunk(_mask + 1));
+      _spare = null;
+    }
+    Chunk chunk = _chunks.get(at >>> _shift);
+    int slot = at & _mask;
+    chunk._payloads[slot] = item.getPayload();
+    chunk._states[slot] = ordinal(item.getState());
+    chunk._priorities[slot] = item.getPriority();
+    chunk._attempts[slot] = item.getAttempt();
+    chunk._lastCycles[slot] = item.getLastCycle();
+    chunk._admitted[slot] = item.isAdmitted();
+    _size++;
+  }
+
+  /**
+   * Rebuilds the item at the given position in the buffer.
+   */
+  @SuppressWarnings({"unchecked"})
+  private ProcessInfo<S, P> get (int index)
+  {
+    int at = _head + index;
+    Chunk chunk = _chunks.get(at >>> _shift);
+    int slot = at & _mask;
+    return new ProcessInfo<S,P>((P) chunk._payloads[slot],
+        (chunk._states[slot] < 0 ? null : _stateValues[chunk._states[slot]]),
+        chunk._priorities[slot],chunk._attempts[slot],chunk._lastCycles[slot],
+        chunk._admitted[slot]);
+  }
+
+  /**
+   * Adds any held items whose wait is over to the back of the buffer.
+   */
+  private void release ()
+  {
+    if (_waiting.size() > 0)
+    {
+      _released.clear();
+      _waiting.expire(System.currentTimeMillis(),_released);
+      for (ProcessInfo<S,P> item: _released)
+      {
+        add(item);
+      }
+      _released.clear();
+    }
+  }
+
+  /**
+   * Provides the ordinal of a state, or -1 for no state.
+   */
+  static private int ordinal (Enum state)
+  {
+    return (state != null ? state.ordinal() : -1);
+  }
+
+  /**
+   * One fixed-size chunk of the buffer.
+   */
+  static private class Chunk
+  {
+    Chunk (int size)
+    {
+      _payloads = new Object[size];
+      _states = new int[size];
+      _priorities = new int[size];
+      _attempts = new int[size];
+      _lastCycles = new long[size];
+      _admitted = new boolean[size];
+    }
+
+    /**
+     * Copies the item in a slot of another chunk into a slot of this one.
+     */
+    void copy (int to, Chunk from, int slot)
+    {
+      _payloads[to] = from._payloads[slot];
+      _states[to] = from._states[slot];
+      _priorities[to] = from._priorities[slot];
+      _attempts[to] = from._attempts[slot];
+      _lastCycles[to] = from._lastCycles[slot];
+      _admitted[to] = from._admitted[slot];
+    }
+
+    /**
+     * Lets go of every payload in the chunk.
+     */
+    void clear ()
+    {
+      Arrays.fill(_payloads,null);
+    }
+
+    private final Object[] _payloads;
+    private final int[] _states;
+    private final int[] _priorities;
+    private final int[] _attempts;
+    private final long[] _lastCycles;
+    private final boolean[] _admitted;
+  }
+
+  static private final int MAX_CHUNK_SIZE = 1 << 24;
+
+  private final int _shift;
+  private final int _mask;
+  private final int _maxCount;
+  private final List<Chunk> _chunks = new ArrayList<Chunk>();
+  private Chunk _spare;
+  private int _head;
+  private int _size;
+  private S[] _stateValues;
+  private final TimingWheel<ProcessInfo<S,P>> _waiting = new TimingWheel<ProcessInfo<S,P>>();
+  private final List<ProcessInfo<S,P>> _released = new ArrayList<ProcessInfo<S,P>>();
+}
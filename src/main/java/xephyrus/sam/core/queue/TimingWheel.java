@@ -0,0 +1,484 @@
+package xephyrus.sam.core.queue;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * <p>
+ *   A hierarchical timing wheel, for holding items until they're due.  {@link ProcessingQueue}s
+ *   use it to keep items in a {@link xephyrus.sam.core.WaitingState} out of the ready queue, so a
+ *   waiting item never holds up the ready items behind it.
+ * </p><p>
+ *   The wheel has six levels of 64 slots each.  A slot on the first level covers one tick; a slot
+ *   on each level above covers all 64 slots of the level below.  An item goes into the lowest
+ *   level whose span reaches its due time, and as time reaches each higher slot, its items are
+ *   spread down into the level below, until they land on the first level and expire.  Scheduling
+ *   and expiring an item are both constant time, however many items there are, and a bitmap of
+ *   the occupied slots on each level lets the wheel skip straight over empty stretches of time.
+ * </p><p>
+ *   With the default one millisecond tick, the wheel spans about two years; anything due further
+ *   out waits in the top level and is looked at again each time it comes around.
+ * </p><p>
+ *   This class isn't thread safe; the queue using it is expected to guard it.
+ * </p>
+ *
+ * @param <T>
+ *   The type of item held.
+ */
+public class TimingWheel<T>
+{
+  /**
+   * Creates a new one of these with a one millisecond tick, starting now.
+   */
+  public TimingWheel ()
+  {
+    this(1L,System.currentTimeMillis());
+  }
+
+  /**
+   * Creates a new one of these.
+   *
+   * @param tickTime
+   *   The time covered by each slot on the first level, in milliseconds.  Items are released up
+   *   to one tick late.
+   * @param startTime
+   *   The millisecond timestamp the wheel starts turning from.
+   */
+  @SuppressWarnings({"unchecked"})
+  public TimingWheel (long tickTime, long startTime)
+  {
+    if (tickTime < 1L)
+    {
+      throw new IllegalArgumentException("Tick time must be at least 1ms, not " + tickTime);
+    }
+    _tickTime = tickTime;
+    _currentTick = toTick(startTime);
+    _slots = new Node[LEVELS][SLOTS];
+    _occupied = new long[LEVELS];
+  }
+
+  /**
+   * Holds an item until the given time.
+   *
+   * @param item
+   *   The item.
+   * @param dueTime
+   *   The millisecond timestamp the item is due.
+   * @return
+   *   If the item is held, true; if it's already due, false, and it isn't held.
+   */
+  public boolean schedule (T item, long dueTime)
+  {
+    long dueTick = toTick(dueTime);
+    if (dueTick < _currentTick)
+    {
+      return false;
+    }
+    place(new Node<T>(item,dueTick));
+    _size++;
+    return true;
+  }
+
+  /**
+   * Turns the wheel up to the given time, releasing every item due by then.
+   *
+   * @param now
+   *   The current millisecond timestamp.
+   * @param due
+   *   Where the released items are added.
+   * @return
+   *   The number of items released.
+   */
+  public int expire (long now, Collection<? super T> due)
+  {
+    long nowTick = toTick(now);
+    int released = 0;
+    while (_currentTick <= nowTick)
+    {
+      if (_size == 0)
+      {
+        _currentTick = nowTick + 1;
+        break;
+      }
+      if ((_currentTick & MASK) == 0)
+      {
+        cascade(1);
+      }
+
+      int slot = (int) (_currentTick & MASK);
+      Node<T> node = take(0,slot);
+      while (node != null)
+      {
+        Node<T> next = node._next;
+        if (node._dueTick <= nowTick)
+        {
+          due.add(node._item);
+          _size--;
+          released++;
+        }
+        else
+        {
+          // Only items beyond the wheel's span come back around early.
+          place(node);
+        }
+        node = next;
+      }
+
+      _currentTick = Math.min(nextTick(),nowTick + 1);
+    }
+    return released;
+  }
+
+  /**
+   * Provides the number of items held.
+   *
+   * @return
+   *   The count.
+   */
+  public int size ()
+  {
+    return _size;
+  }
+
+  /**
+   * Reports whether the given item is held.
+   *
+   * @param item
+   *   The item to look for.
+   * @return
+   *   If it's held, true; otherwise false.
+   */
+  public boolean contains (Object item)
+  {
+    for (int level = 0; level < LEVELS; level++)
+    {
+      for (int slot = 0; slot < SLOTS; slot++)
+      {
+        for (Node<T> node = _slots[level][slot]; node != null; node = node._next)
+        {
+          if (node._item.equals(item))
+          {
+            return true;
+          }
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stops holding the given item.  This has to search the wheel, so it takes time in proportion
+   * to the number of items held.
+   *
+   * @param item
+   *   The item to remove.
+   * @return
+   *   If the item was held, true; otherwise false.
+   */
+  public boolean remove (Object item)
+  {
+    for (int level = 0; level < LEVELS; level++)
+    {
+      for (int slot = 0; slot < SLOTS; slot++)
+      {
+        if (unlink(item,level,slot))
+        {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Stops holding the given item, which was scheduled for the given time.  Knowing when it's due
+   * narrows the search down to the one slot on each level it can be in, so this takes constant
+   * time, apart from items due beyond the wheel's span, which are looked for all round the top
+   * level.
+   *
+   * @param item
+   *   The item to remove.
+   * @param dueTime
+   *   The millisecond timestamp the item was scheduled for.
+   * @return
+   *   If the item was held, true; otherwise false.
+   */
+  public boolean remove (Object item, long dueTime)
+  {
+    long dueTick = toTick(dueTime);
+    for (int level = 0; level < LEVELS - 1; level++)
+    {
+      if (unlink(item,level,(int) ((dueTick >>> (BITS * level)) & MASK)))
+      {
+        return true;
+      }
+    }
+    for (int slot = 0; slot < SLOTS; slot++)
+    {
+      if (unlink(item,LEVELS - 1,slot))
+      {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Provides the items held, roughly in the order they're due: items in sooner slots come
+   * first, but items sharing a slot on a higher level aren't sorted among themselves.
+   *
+   * @return
+   *   A list of the items.
+   */
+  public List<T> toList ()
+  {
+    List<T> items = new ArrayList<T>(_size);
+    for (int level = 0; level < LEVELS; level++)
+    {
+      int current = (int) ((_currentTick >>> (BITS * level)) & MASK);
+      for (int i = 0; i < SLOTS; i++)
+      {
+        for (Node<T> node = _slots[level][(current + i) & (int) MASK]; node != null;
+             node = node._next)
+        {
+          items.add(node._item);
+        }
+      }
+    }
+    return items;
+  }
+
+  /**
+   * Provides the item which is due soonest, as ordered by {@link #toList()}, without removing it.
+   *
+   * @return
+   *   The item, or null if none are held.
+   */
+  public T peek ()
+  {
+    for (int level = 0; level < LEVELS; level++)
+    {
+      int slot = firstSlot(level);
+      if (slot >= 0)
+      {
+        return _slots[level][slot]._item;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Removes and provides the item which is due soonest, as ordered by {@link #toList()}.
+   *
+   * @return
+   *   The item, or null if none are held.
+   */
+  public T poll ()
+  {
+    for (int level = 0; level < LEVELS; level++)
+    {
+      int slot = firstSlot(level);
+      if (slot >= 0)
+      {
+        Node<T> node = _slots[level][slot];
+        _slots[level][slot] = node._next;
+        if (node._next == null)
+        {
+          _occupied[level] &= ~(1L << slot);
+        }
+        _size--;
+        return node._item;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Drops every item held.
+   */
+  public void clear ()
+  {
+    for (int level = 0; level < LEVELS; level++)
+    {
+      for (int slot = 0; slot < SLOTS; slot++)
+      {
+        _slots[level][slot] = null;
+      }
+      _occupied[level] = 0L;
+    }
+    _size = 0;
+  }
+
+  /**
+   * Spreads the items in the current slot of the given level down into the levels below.  This
+   * happens when the level below has just come all the way around, and does the same for the
+   * level above first if this level has come all the way around too.
+   *
+   * @param level
+   *   The level to cascade.
+   */
+  private void cascade (int level)
+  {
+    if (level >= LEVELS)
+    {
+      return;
+    }
+    int slot = (int) ((_currentTick >>> (BITS * level)) & MASK);
+    if (slot == 0)
+    {
+      cascade(level + 1);
+    }
+    Node<T> node = take(level,slot);
+    while (node != null)
+    {
+      Node<T> next = node._next;
+      place(node);
+      node = next;
+    }
+  }
+
+  /**
+   * Puts an item into the slot for its due tick on the lowest level whose span reaches it.
+   *
+   * @param node
+   *   The item.
+   */
+  private void place (Node<T> node)
+  {
+    long delta = node._dueTick - _currentTick;
+    int level = (delta <= 0L ? 0 : Math.min((63 - Long.numberOfLeadingZeros(delta)) / BITS,
+        LEVELS - 1));
+    long tick = (delta < SPAN ? Math.max(node._dueTick,_currentTick) : _currentTick + SPAN - 1);
+    int slot = (int) ((tick >>> (BITS * level)) & MASK);
+    node._next = _slots[level][slot];
+    _slots[level][slot] = node;
+    _occupied[level] |= (1L << slot);
+  }
+
+  /**
+   * Works out the next tick anything happens: the soonest an occupied slot on any level comes
+   * round, either to expire or to cascade.  Every tick in between can be skipped.
+   *
+   * @return
+   *   The next tick to look at.
+   */
+  private long nextTick ()
+  {
+    long next = Long.MAX_VALUE;
+    for (int level = 0; level < LEVELS; level++)
+    {
+      if (_occupied[level] != 0L)
+      {
+        int shift = BITS * level;
+        long position = _currentTick >>> shift;
+        long rotated = Long.rotateRight(_occupied[level],(int) ((position + 1) & MASK));
+        next = Math.min(next,(position + 1 + Long.numberOfTrailingZeros(rotated)) << shift);
+      }
+    }
+    return next;
+  }
+
+  /**
+   * Finds the first occupied slot on the given level, counting round from the current one.
+   *
+   * @return
+   *   The slot, or -1 if the level is empty.
+   */
+  private int firstSlot (int level)
+  {
+    if (_occupied[level] == 0L)
+    {
+      return -1;
+    }
+    int current = (int) ((_currentTick >>> (BITS * level)) & MASK);
+    long rotated = Long.rotateRight(_occupied[level],current);
+    return (current + Long.numberOfTrailingZeros(rotated)) & (int) MASK;
+  }
+
+  /**
+   * Takes the given item out of a slot, if it's there.
+   *
+   * @return
+   *   If the item was in the slot, true; otherwise false.
+   */
+  private boolean unlink (Object item, int level, int slot)
+  {
+    Node<T> previous = null;
+    for (Node<T> node = _slots[level][slot]; node != null; node = node._next)
+    {
+      if (node._item.equals(item))
+      {
+        if (previous == null)
+        {
+          _slots[level][slot] = node._next;
+          if (node._next == null)
+          {
+            _occupied[level] &= ~(1L << slot);
+          }
+        }
+        else
+        {
+          previous._next = node._next;
+        }
+        _size--;
+        return true;
+      }
+      previous = node;
+    }
+    return false;
+  }
+
+  /**
+   * Empties a slot.
+   *
+   * @return
+   *   The items which were in it, as a linked list.
+   */
+  private Node<T> take (int level, int slot)
+  {
+    Node<T> node = _slots[level][slot];
+    if (node != null)
+    {
+      _slots[level][slot] = null;
+      _occupied[level] &= ~(1L << slot);
+    }
+    return node;
+  }
+
+  /**
+   * Converts a millisecond timestamp to a tick, rounding up so nothing is released early.
+   */
+  private long toTick (long time)
+  {
+    return (time + _tickTime - 1) / _tickTime;
+  }
+
+  /**
+   * An item held in a slot.
+   */
+  static private class Node<T>
+  {
+    Node (T item, long dueTick)
+    {
+      _item = item;
+      _dueTick = dueTick;
+    }
+
+    private final T _item;
+    private final long _dueTick;
+    private Node<T> _next;
+  }
+
+  static private final int BITS = 6;
+  static private final int SLOTS = 1 << BITS;
+  static private final long MASK = SLOTS - 1;
+  static private final int LEVELS = 6;
+  static private final long SPAN = 1L << (BITS * LEVELS);
+
+  private final long _tickTime;
+  private final Node<T>[][] _slots;
+  private final long[] _occupied;
+  private long _currentTick;
+  private int _size;
+}
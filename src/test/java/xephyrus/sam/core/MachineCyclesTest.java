@@ -68,4 +68,25 @@ public class MachineCyclesTest
       assertEquals(tracker.getCount(cycle),count,cycle.toString());
     }
   }
+
+  @Test
+  public void inlineMachineCycle ()
+      throws InterruptedException
+  {
+    MachineCyclesTracker tracker = new MachineCyclesTracker();
+    StateMachine<TestControlState,TestControlPayload> machine = new TestControlMachine();
+    machine.setProcessingQueue(new MemoryProcessingQueue<TestControlState,TestControlPayload>());
+    machine.setThreadPool(new TestControlExecutorService());
+    machine.setMaxInlineHops(10);
+    machine.addMachineCycleListener(tracker);
+
+    machine.process(new TestControlPayload(TestControlState.ThreeTimes));
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    Thread.sleep(500L);
+
+    assertEquals(tracker.getCount(MachineCycles.BEFORE),Integer.valueOf(1));
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+  }
 }
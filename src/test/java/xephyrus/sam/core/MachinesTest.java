@@ -6,16 +6,58 @@ import org.apache.log4j.LogManager;
 import org.testng.annotations.BeforeClass;
 import org.testng.annotations.DataProvider;
 import org.testng.annotations.Test;
+import xephyrus.sam.core.DeadLetterStore.DeadLetter;
+import xephyrus.sam.core.StateMachine.MachineCycles;
+import xephyrus.sam.core.StateMachine.OverflowPolicy;
+import xephyrus.sam.core.StateMachine.StateCycles;
+import xephyrus.sam.core.TransitionLog.Transition;
+import xephyrus.sam.core.executor.ElasticPoolManager;
+import xephyrus.sam.core.executor.PartitionedExecutorService;
+import xephyrus.sam.core.executor.VirtualThreadExecutorService;
+import xephyrus.sam.core.executor.WorkStealingExecutorService;
+import xephyrus.sam.core.queue.ConcurrentProcessingQueue;
+import xephyrus.sam.core.queue.IndexedProcessingQueue;
+import xephyrus.sam.core.queue.JournalProcessingQueue;
 import xephyrus.sam.core.queue.MemoryProcessingQueue;
+import xephyrus.sam.core.queue.ProcessingQueue;
+import xephyrus.sam.core.queue.ProcessingQueueException;
+import xephyrus.sam.core.queue.ProcessingQueueUtils;
+import xephyrus.sam.core.queue.ProcessingQueuesTest;
+import xephyrus.sam.core.trackers.MachineCyclesTracker;
+import xephyrus.sam.core.trackers.StateCyclesTracker;
 import xephyrus.sam.machines.abc.AbcPayload;
 import xephyrus.sam.machines.abc.AbcState;
 import xephyrus.sam.machines.abc.AbcStateMachineAnnotated;
 import xephyrus.sam.machines.abc.AbcStateMachineRegistered;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.lang.Thread.State;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
 
 public class MachinesTest
 {
@@ -82,4 +124,1724 @@ public class MachinesTest
 
     assertEquals(machine.getProcessingQueue().getCount(),0);
   }
+
+  @Test(dataProvider = "MachineParameters")
+  public <S extends Enum, P extends Payload> void exerciseMachineBatched (Class<S> stateType,
+      Class<P> payloadType, StateMachine<S,P> machine)
+      throws NoSuchMethodException, InterruptedException, InvocationTargetException,
+      IllegalAccessException, InstantiationException
+  {
+    RecordingQueue<S,P> queue = new RecordingQueue<S,P>();
+    MachineCyclesTracker tracker = new MachineCyclesTracker();
+    machine.setProcessingQueue(queue);
+    machine.setDispatchBatchSize(8);
+    machine.addMachineCycleListener(tracker);
+
+    for (long i = 0L; i < 50L; i++)
+    {
+      machine.process(payloadType.getConstructor(Long.class).newInstance(i));
+    }
+    assertEquals(machine.getProcessingQueue().getCount(),50);
+
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    Thread.sleep(500L);
+
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    // Every cycle drains a batch, the first a full one, so it takes fewer cycles than items.
+    assertEquals(queue.getSinglePopCount(),0);
+    assertEquals(queue.getLargestBatch(),8);
+    assertTrue(queue.getBatchCount() < queue.getPoppedCount());
+    assertTrue(tracker.getCount(MachineCycles.BEFORE) < queue.getPoppedCount());
+  }
+
+  @Test(dataProvider = "MachineParameters")
+  public <S extends Enum, P extends Payload> void exerciseMachineVirtualThreads (
+      Class<S> stateType, Class<P> payloadType, StateMachine<S,P> machine)
+      throws NoSuchMethodException, InterruptedException, InvocationTargetException,
+      IllegalAccessException, InstantiationException
+  {
+    final AtomicInteger virtual = new AtomicInteger();
+    final AtomicInteger platform = new AtomicInteger();
+    machine.setProcessingQueue(new MemoryProcessingQueue<S, P>());
+    machine.setThreadPool(new VirtualThreadExecutorService(100));
+    machine.addStateCycleListener(new StateCycleListener<S,P>()
+    {
+      @Override
+      public void beforeStateWork (S state, P payload)
+      {
+        (Thread.currentThread().isVirtual() ? virtual : platform).incrementAndGet();
+      }
+
+      @Override
+      public void afterStateWork (S state, P payload)
+      {
+      }
+
+      @Override
+      public void errorStateWork (S state, P payload, Throwable error)
+      {
+      }
+    });
+
+    for (long i = 0L; i < 50L; i++)
+    {
+      machine.process(payloadType.getConstructor(Long.class).newInstance(i));
+    }
+
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    Thread.sleep(500L);
+    machine.getThreadPool().shutdown();
+
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    assertTrue(virtual.get() >= 50);
+    assertEquals(platform.get(),0);
+  }
+
+  @Test
+  public void exerciseMachinePartitioned ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final CountDownLatch done = new CountDownLatch(50);
+    SerialStates serial = new SerialStates();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,serial);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"first");
+    machine.registerState(AbcState.B,"second");
+    machine.setStartState(AbcState.A);
+    machine.setThreadPool(new PartitionedExecutorService(4));
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        done.countDown();
+      }
+    });
+
+    // Ten payloads share each of five ids, submitted interleaved.
+    for (int sequence = 0; sequence < 10; sequence++)
+    {
+      for (long id = 0L; id < 5L; id++)
+      {
+        machine.process(new SequencedPayload(id,sequence));
+      }
+    }
+
+    machine.start();
+    assertTrue(done.await(5L,TimeUnit.SECONDS));
+    machine.requestStop();
+    machine.join(1000L);
+    machine.getThreadPool().shutdown();
+
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    assertEquals(serial.getOverlaps(),0);
+    for (long id = 0L; id < 5L; id++)
+    {
+      assertEquals(serial.getThreads(id).size(),1,"Threads for id " + id);
+      for (AbcState state: Arrays.asList(AbcState.A,AbcState.B))
+      {
+        List<Integer> expected = new ArrayList<Integer>();
+        for (int sequence = 0; sequence < 10; sequence++)
+        {
+          expected.add(sequence);
+        }
+        assertEquals(serial.getSequences(id,state),expected,state + " for id " + id);
+      }
+    }
+  }
+
+  static public class SequencedPayload
+    extends AbcPayload
+  {
+    public SequencedPayload (Long id, int sequence)
+    {
+      super(id);
+      _sequence = sequence;
+    }
+
+    public int getSequence ()
+    {
+      return _sequence;
+    }
+
+    private final int _sequence;
+  }
+
+  /**
+   * Records each state execution by payload id, noting any which overlap another for the same id.
+   */
+  static public class SerialStates
+  {
+    public AbcState first (AbcPayload payload)
+        throws InterruptedException
+    {
+      record(payload,AbcState.A);
+      return AbcState.B;
+    }
+
+    public AbcState second (AbcPayload payload)
+        throws InterruptedException
+    {
+      record(payload,AbcState.B);
+      return null;
+    }
+
+    public int getOverlaps ()
+    {
+      return _overlaps.get();
+    }
+
+    public synchronized List<Integer> getSequences (Long id, AbcState state)
+    {
+      List<Integer> sequences = new ArrayList<Integer>();
+      for (String entry: _entries.get(id))
+      {
+        if (entry.startsWith(state + ":"))
+        {
+          sequences.add(Integer.parseInt(entry.substring(entry.indexOf(':') + 1)));
+        }
+      }
+      return sequences;
+    }
+
+    public synchronized Set<String> getThreads (Long id)
+    {
+      return new HashSet<String>(_threads.get(id));
+    }
+
+    private void record (AbcPayload payload, AbcState state)
+        throws InterruptedException
+    {
+      Long id = payload.getId();
+      AtomicInteger running;
+      synchronized (this)
+      {
+        running = _running.get(id);
+        if (running == null)
+        {
+          running = new AtomicInteger();
+          _running.put(id,running);
+          _entries.put(id,new ArrayList<String>());
+          _threads.put(id,new HashSet<String>());
+        }
+      }
+      if (running.incrementAndGet() > 1)
+      {
+        _overlaps.incrementAndGet();
+      }
+      synchronized (this)
+      {
+        _entries.get(id).add(state + ":" + ((SequencedPayload) payload).getSequence());
+        _threads.get(id).add(Thread.currentThread().getName());
+      }
+      // Give another execution for the same id the chance to overlap, if it's going to.
+      Thread.sleep(1L);
+      running.decrementAndGet();
+    }
+
+    private final Map<Long,List<String>> _entries = new HashMap<Long,List<String>>();
+    private final AtomicInteger _overlaps = new AtomicInteger();
+    private final Map<Long,AtomicInteger> _running = new HashMap<Long,AtomicInteger>();
+    private final Map<Long,Set<String>> _threads = new HashMap<Long,Set<String>>();
+  }
+
+  @Test(dataProvider = "MachineParameters")
+  public <S extends Enum, P extends Payload> void exerciseMachineElastic (Class<S> stateType,
+      Class<P> payloadType, StateMachine<S,P> machine)
+      throws NoSuchMethodException, InterruptedException, InvocationTargetException,
+      IllegalAccessException, InstantiationException
+  {
+    MachineCyclesTracker tracker = new MachineCyclesTracker();
+    ElasticPoolManager elastic = new ElasticPoolManager(machine,1,4);
+    machine.setProcessingQueue(new MemoryProcessingQueue<S, P>());
+    machine.setThreadPool(elastic.getThreadPool());
+    machine.addMachineCycleListener(elastic);
+    machine.addMachineCycleListener(tracker);
+
+    for (long i = 0L; i < 50L; i++)
+    {
+      machine.process(payloadType.getConstructor(Long.class).newInstance(i));
+    }
+
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    Thread.sleep(500L);
+    machine.getThreadPool().shutdown();
+
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    assertTrue(elastic.getPoolSize() <= 4);
+    assertTrue((tracker.getCount(MachineCycles.FULL) == 0) || (elastic.getPoolSize() > 1));
+  }
+
+  @Test
+  public void elasticSizing ()
+      throws NoSuchMethodException
+  {
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    ElasticPoolManager elastic = new ElasticPoolManager(machine,1,4);
+    elastic.setSampleInterval(0L);
+
+    List<Integer> sizes = new ArrayList<Integer>();
+    for (int i = 0; i < 4; i++)
+    {
+      elastic.fullMachine();
+      sizes.add(elastic.getPoolSize());
+    }
+    assertEquals(sizes,Arrays.asList(2,3,4,4));
+    assertEquals(elastic.getThreadPool().getCorePoolSize(),4);
+
+    sizes.clear();
+    for (int i = 0; i < 5; i++)
+    {
+      elastic.yieldCycle();
+      sizes.add(elastic.getPoolSize());
+    }
+    assertEquals(sizes,Arrays.asList(4,3,2,1,1));
+    assertEquals(elastic.getThreadPool().getMaximumPoolSize(),1);
+    elastic.getThreadPool().shutdown();
+  }
+
+  @Test(dataProvider = "MachineParameters")
+  public <S extends Enum, P extends Payload> void exerciseMachineWorkStealing (
+      Class<S> stateType, Class<P> payloadType, StateMachine<S,P> machine)
+      throws NoSuchMethodException, InterruptedException, InvocationTargetException,
+      IllegalAccessException, InstantiationException
+  {
+    final CountDownLatch done = new CountDownLatch(50);
+    RecordingQueue<S,P> queue = new RecordingQueue<S,P>();
+    machine.setProcessingQueue(queue);
+    machine.setThreadPool(new WorkStealingExecutorService(4));
+    machine.addCompletionListener(new CompletionListener<S,P>()
+    {
+      @Override
+      public void notifyComplete (P payload, S lastState, Throwable error)
+      {
+        done.countDown();
+      }
+    });
+
+    for (long i = 0L; i < 50L; i++)
+    {
+      machine.process(payloadType.getConstructor(Long.class).newInstance(i));
+    }
+
+    machine.start();
+    assertTrue(done.await(5L,TimeUnit.SECONDS));
+    machine.requestStop();
+    machine.join(1000L);
+    machine.getThreadPool().shutdown();
+
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    assertEquals(machine.getThreadPool().awaitTermination(1L,TimeUnit.SECONDS),true);
+    // Each payload is popped once, to start it; every state after that continues in the pool.
+    assertEquals(queue.getPoppedCount(),50);
+    assertEquals(queue.getPushCount(),0);
+  }
+
+  @Test(dataProvider = "MachineParameters")
+  public <S extends Enum, P extends Payload> void exerciseMachineMultiDispatch (
+      Class<S> stateType, Class<P> payloadType, StateMachine<S,P> machine)
+      throws NoSuchMethodException, InterruptedException, InvocationTargetException,
+      IllegalAccessException, InstantiationException
+  {
+    RecordingQueue<S,P> queue = new RecordingQueue<S,P>();
+    machine.setProcessingQueue(queue);
+    machine.setDispatcherCount(4);
+    machine.setWakeOnQueue(true);
+
+    for (long i = 0L; i < 50L; i++)
+    {
+      machine.process(payloadType.getConstructor(Long.class).newInstance(i));
+    }
+
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    machine.join(1000L);
+
+    assertEquals(machine.isAlive(),false);
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    // Only the dispatchers pop, so more than one of them took a share of the work.
+    assertTrue(queue.getPoppers().size() > 1,"Popped by " + queue.getPoppers());
+  }
+
+  @Test(dataProvider = "MachineParameters")
+  public <S extends Enum, P extends Payload> void exerciseMachineConcurrentQueue (
+      Class<S> stateType, Class<P> payloadType, StateMachine<S,P> machine)
+      throws NoSuchMethodException, InterruptedException, InvocationTargetException,
+      IllegalAccessException, InstantiationException
+  {
+    assertTrue(machine.getProcessingQueue() instanceof ConcurrentProcessingQueue);
+    machine.setDispatcherCount(4);
+    machine.setWakeOnQueue(true);
+
+    for (long i = 0L; i < 50L; i++)
+    {
+      machine.process(payloadType.getConstructor(Long.class).newInstance(i));
+    }
+
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    machine.join(1000L);
+
+    assertEquals(machine.isAlive(),false);
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+  }
+
+  @Test
+  public void journalledRestart ()
+      throws ProcessingQueueException, IOException, InterruptedException,
+      NoSuchMethodException
+  {
+    File directory = Files.createTempDirectory("sam-journal").toFile();
+    try
+    {
+      // Queue some payloads, then stop without ever starting.
+      StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+      JournalProcessingQueue<AbcState,AbcPayload> journal =
+          ProcessingQueuesTest.openJournal(directory,64 * 1024);
+      machine.setProcessingQueue(journal);
+      for (long i = 0L; i < 20L; i++)
+      {
+        machine.process(new AbcPayload(i));
+      }
+      journal.close();
+
+      // A new machine on the same journal picks them up and sees them through.
+      machine = new AbcStateMachineRegistered();
+      journal = ProcessingQueuesTest.openJournal(directory,64 * 1024);
+      assertEquals(journal.getCount(),20);
+      machine.setProcessingQueue(journal);
+      machine.start();
+      Thread.sleep(1000L);
+      machine.requestStop();
+      machine.join(1000L);
+
+      assertEquals(machine.isAlive(),false);
+      assertEquals(journal.getCount(),0);
+      assertEquals(journal.getJournalledCount(),0);
+      journal.close();
+    }
+    finally
+    {
+      ProcessingQueuesTest.deleteJournal(directory);
+    }
+  }
+
+  @Test
+  public void journalledInlineRestart ()
+      throws ProcessingQueueException, IOException, InterruptedException,
+      NoSuchMethodException
+  {
+    File directory = Files.createTempDirectory("sam-journal").toFile();
+    InlineStates states = new InlineStates();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,states);
+    try
+    {
+      machine.registerState(AbcState.A,"toB");
+      machine.registerState(AbcState.B,"toC");
+      machine.registerState(AbcState.C,"gate");
+      machine.setStartState(AbcState.A);
+      machine.setMaxInlineHops(10);
+      JournalProcessingQueue<AbcState,AbcPayload> journal =
+          ProcessingQueuesTest.openJournal(directory,64 * 1024);
+      machine.setProcessingQueue(journal);
+      machine.process(new AbcPayload(1L));
+      machine.start();
+
+      // The payload runs A and B inline and is stuck in C when the process "stops".
+      assertTrue(states.awaitGate(5L));
+      journal.close();
+
+      journal = ProcessingQueuesTest.openJournal(directory,64 * 1024);
+      assertEquals(journal.getCount(),1);
+      assertEquals(journal.peek().getState(),AbcState.C);
+      journal.close();
+    }
+    finally
+    {
+      states.open();
+      machine.requestStop();
+      machine.join(1000L);
+      machine.getThreadPool().shutdown();
+      ProcessingQueuesTest.deleteJournal(directory);
+    }
+  }
+
+  static public class InlineStates
+  {
+    public AbcState toB (AbcPayload payload)
+    {
+      return AbcState.B;
+    }
+
+    public AbcState toC (AbcPayload payload)
+    {
+      return AbcState.C;
+    }
+
+    public AbcState gate (AbcPayload payload)
+        throws InterruptedException
+    {
+      _reached.countDown();
+      _gate.await();
+      return null;
+    }
+
+    public boolean awaitGate (long seconds)
+        throws InterruptedException
+    {
+      return _reached.await(seconds,TimeUnit.SECONDS);
+    }
+
+    public void open ()
+    {
+      _gate.countDown();
+    }
+
+    private final CountDownLatch _reached = new CountDownLatch(1);
+    private final CountDownLatch _gate = new CountDownLatch(1);
+  }
+
+  @Test
+  public void transitionLog ()
+      throws IOException, InterruptedException, NoSuchMethodException
+  {
+    File file = File.createTempFile("sam-transitions",".log");
+    try
+    {
+      StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+      TransitionLog log = new TransitionLog(file);
+      machine.setTransitionLog(log);
+      machine.setWakeOnQueue(true);
+      for (long i = 0L; i < 50L; i++)
+      {
+        machine.process(new AbcPayload(i));
+      }
+      machine.start();
+      Thread.sleep(1000L);
+      machine.requestStop();
+      machine.join(1000L);
+      log.close();
+
+      // Every payload's records follow on from one another, and end in its completion.
+      Map<Long,AbcState> states = new HashMap<Long,AbcState>();
+      int completed = 0;
+      for (Transition<AbcState> transition: TransitionLog.read(file,AbcState.class))
+      {
+        Long id = transition.getPayloadId();
+        if (states.containsKey(id))
+        {
+          assertEquals(transition.getFromState(),states.get(id));
+        }
+        if (transition.getKind() == TransitionLog.Kind.TRANSITION)
+        {
+          states.put(id,transition.getToState());
+        }
+        else
+        {
+          assertEquals(transition.getKind(),TransitionLog.Kind.COMPLETE);
+          states.put(id,null);
+          completed++;
+        }
+      }
+      assertEquals(completed,50);
+      assertEquals(log.getRecordCount(),(long) TransitionLog.read(file,AbcState.class).size());
+
+      // A record torn off at the end is cut away when the log is opened again, so what's
+      // recorded next can be read back after the records before it.
+      int records = TransitionLog.read(file,AbcState.class).size();
+      RandomAccessFile torn = new RandomAccessFile(file,"rw");
+      torn.seek(torn.length());
+      torn.write(new byte[] { 25, 0, 0, 0, 1, 2, 3 });
+      torn.close();
+      log = new TransitionLog(file);
+      log.record(TransitionLog.Kind.COMPLETE,99L,AbcState.C,null);
+      log.close();
+      List<Transition<AbcState>> reopened = TransitionLog.read(file,AbcState.class);
+      assertEquals(reopened.size(),records + 1);
+      assertEquals(reopened.get(records).getPayloadId(),Long.valueOf(99L));
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test
+  public void transitionLogGroupCommit ()
+      throws IOException, InterruptedException
+  {
+    File file = File.createTempFile("sam-transitions",".log");
+    try
+    {
+      final TransitionLog log = new TransitionLog(file,4096,2L,TimeUnit.MILLISECONDS);
+      List<Thread> workers = new ArrayList<Thread>();
+      for (int w = 0; w < 8; w++)
+      {
+        final long base = w * 100L;
+        workers.add(new Thread()
+        {
+          @Override
+          public void run ()
+          {
+            for (long id = base; id < base + 100L; id++)
+            {
+              log.record(TransitionLog.Kind.TRANSITION,id,AbcState.A,AbcState.B);
+            }
+          }
+        });
+      }
+      for (Thread worker: workers)
+      {
+        worker.start();
+      }
+      for (Thread worker: workers)
+      {
+        worker.join(10000L);
+      }
+
+      assertEquals(log.getRecordCount(),800L);
+      assertTrue(log.getFlushCount() < 800L / 2);
+      log.close();
+      assertEquals(TransitionLog.read(file,AbcState.class).size(),800);
+
+      try
+      {
+        log.record(TransitionLog.Kind.COMPLETE,1L,AbcState.B,null);
+        fail("Recorded after the log was closed");
+      }
+      catch (TransitionLogException expected)
+      {
+        // Closed.
+      }
+    }
+    finally
+    {
+      file.delete();
+    }
+  }
+
+  @Test(dataProvider = "MachineParameters")
+  public <S extends Enum, P extends Payload> void exerciseMachineWakeOnQueue (Class<S> stateType,
+      Class<P> payloadType, StateMachine<S,P> machine)
+      throws NoSuchMethodException, InterruptedException, InvocationTargetException,
+      IllegalAccessException, InstantiationException
+  {
+    DefaultMachineCycleController<S,P> controller = new DefaultMachineCycleController<S,P>(machine);
+    controller.setYieldTime(10000L);
+    machine.setMachineCycleController(controller);
+    machine.setProcessingQueue(new MemoryProcessingQueue<S, P>());
+    machine.setWakeOnQueue(true);
+
+    machine.start();
+    Thread.sleep(100L);
+    machine.process(payloadType.getConstructor(Long.class).newInstance(1L));
+    Thread.sleep(500L);
+
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    machine.requestStop();
+    machine.join(1000L);
+    assertEquals(machine.isAlive(),false);
+  }
+
+  @Test(dataProvider = "MachineParameters")
+  public <S extends Enum, P extends Payload> void exerciseMachineAdaptive (Class<S> stateType,
+      Class<P> payloadType, StateMachine<S,P> machine)
+      throws NoSuchMethodException, InterruptedException, InvocationTargetException,
+      IllegalAccessException, InstantiationException
+  {
+    machine.setMachineCycleController(AdaptiveMachineCycleController.lowCpu(machine));
+    machine.setProcessingQueue(new MemoryProcessingQueue<S, P>());
+    machine.setWakeOnQueue(true);
+
+    machine.start();
+    Thread.sleep(1500L);
+    machine.process(payloadType.getConstructor(Long.class).newInstance(1L));
+    Thread.sleep(500L);
+
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    machine.requestStop();
+    machine.join(1000L);
+    assertEquals(machine.isAlive(),false);
+  }
+
+  @Test
+  public void adaptiveBackoff ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    AdaptiveMachineCycleController<AbcState,AbcPayload> controller =
+        new AdaptiveMachineCycleController<AbcState,AbcPayload>(machine,2,2,
+            TimeUnit.MILLISECONDS.toNanos(1L),TimeUnit.MILLISECONDS.toNanos(4L));
+
+    List<Long> yieldTimes = new ArrayList<Long>();
+    for (int step = 0; step < 8; step++)
+    {
+      assertEquals(controller.shouldYield(),true);
+      yieldTimes.add(controller.getYieldTime());
+      controller.idle();
+    }
+    assertEquals(yieldTimes,Arrays.asList(0L,0L,0L,0L,1L,2L,4L,4L));
+
+    machine.process(new AbcPayload(1L));
+    assertEquals(controller.shouldProcess(),true);
+    assertEquals(controller.getYieldTime(),0L);
+  }
+
+  @Test
+  public void admission ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final List<Long> errors = new ArrayList<Long>();
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.setCapacity(2);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        if (error != null)
+        {
+          errors.add(payload.getId());
+        }
+      }
+    });
+
+    assertEquals(machine.tryProcess(new AbcPayload(1L)),true);
+    assertEquals(machine.tryProcess(new AbcPayload(2L)),true);
+    assertEquals(machine.tryProcess(new AbcPayload(3L)),false);
+    assertEquals(machine.process(new AbcPayload(4L),50L,TimeUnit.MILLISECONDS),false);
+
+    machine.setOverflowPolicy(OverflowPolicy.REJECT);
+    machine.process(new AbcPayload(5L));
+    assertEquals(errors,Arrays.asList(5L));
+
+    machine.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+    machine.process(new AbcPayload(6L));
+    assertEquals(errors,Arrays.asList(5L,1L));
+    assertEquals(machine.getProcessingQueue().getCount(),2);
+    assertEquals(machine.getInFlightCount(),2);
+
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    Thread.sleep(500L);
+
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    assertEquals(machine.getInFlightCount(),0);
+  }
+
+  @Test
+  public void admissionSlots ()
+      throws NoSuchMethodException, ProcessingQueueException
+  {
+    final List<Long> errors = new ArrayList<Long>();
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.setCapacity(2);
+    machine.setOverflowPolicy(OverflowPolicy.DROP_OLDEST);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        errors.add(payload.getId());
+      }
+    });
+
+    // Added straight to the queue, so it never took a place, and dropping it makes no room.
+    machine.getProcessingQueue().queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(9L),
+        AbcState.A));
+    assertEquals(machine.tryProcess(new AbcPayload(1L)),true);
+    assertEquals(machine.tryProcess(new AbcPayload(2L)),true);
+
+    machine.process(new AbcPayload(3L));
+    assertEquals(errors,Arrays.asList(9L,1L));
+    assertEquals(machine.getInFlightCount(),2);
+    assertEquals(machine.getProcessingQueue().getCount(),2);
+    assertEquals(machine.tryProcess(new AbcPayload(4L)),false);
+  }
+
+  @Test
+  public void cancellation ()
+      throws NoSuchMethodException
+  {
+    // Indexed queues look the payload up; any other is searched.
+    List<ProcessingQueue<AbcState,AbcPayload>> queues =
+        Arrays.<ProcessingQueue<AbcState,AbcPayload>>asList(
+            new IndexedProcessingQueue<AbcState,AbcPayload>(),
+            new ConcurrentProcessingQueue<AbcState,AbcPayload>(),
+            new MemoryProcessingQueue<AbcState,AbcPayload>());
+    for (ProcessingQueue<AbcState,AbcPayload> queue: queues)
+    {
+      final List<Long> errors = new ArrayList<Long>();
+      StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+      machine.setProcessingQueue(queue);
+      machine.setCapacity(2);
+      machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+      {
+        @Override
+        public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+        {
+          if (error instanceof ProcessingQueueException)
+          {
+            errors.add(payload.getId());
+          }
+        }
+      });
+
+      assertEquals(machine.tryProcess(new AbcPayload(1L)),true);
+      assertEquals(machine.tryProcess(new AbcPayload(2L)),true);
+      assertEquals(machine.tryProcess(new AbcPayload(3L)),false);
+
+      // Cancelling frees up the payload's room and lets the listeners know.
+      assertEquals(machine.cancel(1L),true);
+      assertEquals(machine.cancel(1L),false);
+      assertEquals(errors,Arrays.asList(1L));
+      assertEquals(machine.getInFlightCount(),1);
+      assertEquals(machine.getProcessingQueue().getCount(),1);
+      assertEquals(machine.getProcessingQueue().peek().getPayload().getId(),Long.valueOf(2L));
+      assertEquals(machine.tryProcess(new AbcPayload(3L)),true);
+    }
+  }
+
+  @Test
+  public void rateLimited ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final AtomicInteger completed = new AtomicInteger();
+    final CountDownLatch done = new CountDownLatch(10);
+    MachineCyclesTracker tracker = new MachineCyclesTracker();
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    RateLimitingMachineCycleController<AbcState,AbcPayload> controller =
+        new RateLimitingMachineCycleController<AbcState,AbcPayload>(machine);
+    controller.setRateLimit(AbcState.A,20.0,1);
+    machine.setMachineCycleController(controller);
+    machine.addMachineCycleListener(tracker);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        completed.incrementAndGet();
+        done.countDown();
+      }
+    });
+
+    for (long id = 1L; id <= 10L; id++)
+    {
+      machine.process(new AbcPayload(id));
+    }
+
+    machine.start();
+    Thread.sleep(200L);
+    assertTrue(completed.get() < 10);
+
+    assertTrue(done.await(5L,TimeUnit.SECONDS));
+    machine.requestStop();
+    machine.join(1000L);
+
+    assertEquals(completed.get(),10);
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+    // Held back items wait in the queue rather than being popped over and over.
+    assertTrue(tracker.getCount(MachineCycles.BEFORE) < 500);
+  }
+
+  @Test
+  public void rateLimitedInline ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setMaxInlineHops(10);
+    assertRateLimited(machine);
+  }
+
+  @Test
+  public void rateLimitedContinuation ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setThreadPool(new WorkStealingExecutorService(4));
+    assertRateLimited(machine);
+  }
+
+  /**
+   * Limits state B, which each payload runs five times in a row, and checks that states which
+   * follow on without going through the dispatcher still take a token each.
+   */
+  private void assertRateLimited (StateMachine<AbcState,AbcPayload> machine)
+      throws InterruptedException
+  {
+    final AtomicInteger executed = new AtomicInteger();
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    RateLimitingMachineCycleController<AbcState,AbcPayload> controller =
+        new RateLimitingMachineCycleController<AbcState,AbcPayload>(machine);
+    controller.setRateLimit(AbcState.B,10.0,1);
+    machine.setMachineCycleController(controller);
+    machine.addStateCycleListener(new StateCycleListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void beforeStateWork (AbcState state, AbcPayload payload)
+      {
+        if (state == AbcState.B)
+        {
+          executed.incrementAndGet();
+        }
+      }
+
+      @Override
+      public void afterStateWork (AbcState state, AbcPayload payload)
+      {
+      }
+
+      @Override
+      public void errorStateWork (AbcState state, AbcPayload payload, Throwable error)
+      {
+      }
+    });
+
+    for (long id = 1L; id <= 5L; id++)
+    {
+      machine.process(new AbcPayload(id));
+    }
+
+    machine.start();
+    Thread.sleep(300L);
+    int count = executed.get();
+    machine.requestStop();
+    machine.join(1000L);
+    machine.getThreadPool().shutdown();
+
+    // One token to start with, and one more every 100ms.
+    assertTrue((count >= 1) && (count <= 5),"Ran B " + count + " times");
+  }
+
+  @Test
+  public void rateLimitedFullLane ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    GatedStates gated = new GatedStates();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,gated);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"gate");
+    machine.setStartState(AbcState.A);
+    machine.setThreadPool(new PartitionedExecutorService(1,1));
+    RateLimitingMachineCycleController<AbcState,AbcPayload> controller =
+        new RateLimitingMachineCycleController<AbcState,AbcPayload>(machine);
+    controller.setRateLimit(AbcState.A,5.0,5);
+    controller.setYieldTime(10L);
+    machine.setMachineCycleController(controller);
+
+    // Payload 0 holds up the only lane, payload 1 waits in it, and payload 2 is turned away
+    // from it over and over.
+    for (long id = 0L; id <= 2L; id++)
+    {
+      machine.process(new AbcPayload(id));
+    }
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    machine.join(1000L);
+
+    // Each time the lane turned payload 2 away, its token should have been given back, so the
+    // bucket has filled up again rather than being drained by the retries.
+    int available = 0;
+    ProcessInfo<AbcState,AbcPayload> probe =
+        new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(9L),AbcState.A);
+    while ((available < 10) && (controller.shouldDispatch(probe)))
+    {
+      available++;
+    }
+    gated.open();
+    machine.getThreadPool().shutdown();
+    assertTrue(available >= 4,"Only " + available + " tokens left");
+  }
+
+  @Test
+  public void fullPoolHandoff ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final CountDownLatch done = new CountDownLatch(20);
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    DefaultMachineCycleController<AbcState,AbcPayload> controller =
+        new DefaultMachineCycleController<AbcState,AbcPayload>(machine);
+    controller.setYieldTime(10000L);
+    machine.setMachineCycleController(controller);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.setWakeOnQueue(true);
+    machine.setThreadPool(new ThreadPoolExecutor(1,1,60L,TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>()));
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        done.countDown();
+      }
+    });
+
+    for (long id = 1L; id <= 20L; id++)
+    {
+      machine.process(new AbcPayload(id));
+    }
+
+    // The single pool thread is full almost all the time; each item must be handed over as soon
+    // as the thread is free, not after the yield time.
+    machine.start();
+    assertTrue(done.await(5L,TimeUnit.SECONDS));
+    machine.requestStop();
+    machine.join(1000L);
+    machine.getThreadPool().shutdown();
+  }
+
+  @Test
+  public void fullVirtualPoolHandoff ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final CountDownLatch done = new CountDownLatch(20);
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    DefaultMachineCycleController<AbcState,AbcPayload> controller =
+        new DefaultMachineCycleController<AbcState,AbcPayload>(machine);
+    controller.setYieldTime(10000L);
+    machine.setMachineCycleController(controller);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.setWakeOnQueue(true);
+    machine.setThreadPool(new VirtualThreadExecutorService(1));
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        done.countDown();
+      }
+    });
+
+    for (long id = 1L; id <= 20L; id++)
+    {
+      machine.process(new AbcPayload(id));
+    }
+
+    // The only permit is freed after each worker returns; the waiting item must be handed over
+    // as soon as it is, not after the yield time.
+    machine.start();
+    assertTrue(done.await(5L,TimeUnit.SECONDS));
+    machine.requestStop();
+    machine.join(1000L);
+    machine.getThreadPool().shutdown();
+  }
+
+  @Test
+  public void fullLane ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final GatedStates gated = new GatedStates();
+    PartitionedExecutorService pool = new PartitionedExecutorService(2,1);
+    int blocked = pool.getLane(0L);
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,gated);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"gate");
+    machine.setStartState(AbcState.A);
+    machine.setThreadPool(pool);
+
+    int open = 0;
+    machine.process(new AbcPayload(0L));
+    for (long id = 1L; id <= 40L; id++)
+    {
+      machine.process(new AbcPayload(id));
+      if (pool.getLane(id) != blocked)
+      {
+        open++;
+      }
+    }
+    final CountDownLatch openDone = new CountDownLatch(open);
+    final CountDownLatch allDone = new CountDownLatch(41);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        openDone.countDown();
+        allDone.countDown();
+      }
+    });
+
+    // Payload 0 holds up its lane, but the other lane keeps going.
+    machine.start();
+    assertTrue(openDone.await(5L,TimeUnit.SECONDS));
+    gated.open();
+    assertTrue(allDone.await(5L,TimeUnit.SECONDS));
+
+    machine.requestStop();
+    machine.join(1000L);
+    pool.shutdown();
+    assertEquals(machine.getProcessingQueue().getCount(),0);
+  }
+
+  @Test
+  public void fullLaneAdaptive ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    GatedStates gated = new GatedStates();
+    RecordingQueue<AbcState,AbcPayload> queue = new RecordingQueue<AbcState,AbcPayload>();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,gated);
+    machine.setProcessingQueue(queue);
+    machine.registerState(AbcState.A,"gate");
+    machine.setStartState(AbcState.A);
+    machine.setThreadPool(new PartitionedExecutorService(1,1));
+    machine.setMachineCycleController(AdaptiveMachineCycleController.lowLatency(machine));
+
+    // Payload 0 holds up the only lane, payload 1 waits in it, and payload 2 is turned away
+    // from it over and over.  The adaptive controller's yield time is zero while it spins, but
+    // payload 2 should still be held back a while each time rather than retried at once.
+    for (long id = 0L; id <= 2L; id++)
+    {
+      machine.process(new AbcPayload(id));
+    }
+    machine.start();
+    Thread.sleep(500L);
+    int pushes = queue.getPushCount();
+    gated.open();
+    machine.requestStop();
+    machine.join(1000L);
+    machine.getThreadPool().shutdown();
+    assertTrue(pushes < 2000,"Pushed back " + pushes + " times");
+  }
+
+  static public class GatedStates
+  {
+    public AbcState gate (AbcPayload payload)
+        throws InterruptedException
+    {
+      if (payload.getId() == 0L)
+      {
+        _gate.await();
+      }
+      return AbcState.B;
+    }
+
+    public void open ()
+    {
+      _gate.countDown();
+    }
+
+    private final CountDownLatch _gate = new CountDownLatch(1);
+  }
+
+  @Test
+  public void stateTimeout ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    final List<String> threads = new ArrayList<String>();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,new HangingStates());
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"hang",100L);
+    machine.setStartState(AbcState.A);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        errors.add(error);
+        threads.add(Thread.currentThread().getName());
+      }
+    });
+    assertEquals(machine.getStateTimeout(AbcState.A),100L);
+
+    machine.process(new AbcPayload(1L));
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    Thread.sleep(500L);
+
+    assertEquals(errors.size(),1);
+    assertTrue(errors.get(0) instanceof StateTimeoutException);
+    assertTrue(!threads.get(0).equals("sam-watchdog"));
+    assertEquals(machine.getInFlightCount(),0);
+    assertEquals(((ThreadPoolExecutor) machine.getThreadPool()).getActiveCount(),0);
+  }
+
+  static public class HangingStates
+  {
+    public AbcState hang (AbcPayload payload)
+        throws InterruptedException
+    {
+      Thread.sleep(10000L);
+      return AbcState.B;
+    }
+  }
+
+  @Test
+  public void stateTimeoutStuckPool ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final CountDownLatch failed = new CountDownLatch(2);
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    StuckStates stuck = new StuckStates();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,stuck);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"stick",100L);
+    machine.setStartState(AbcState.A);
+    machine.setThreadPool(new ThreadPoolExecutor(2,2,60L,TimeUnit.SECONDS,
+        new SynchronousQueue<Runnable>()));
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        synchronized (errors)
+        {
+          errors.add(error);
+        }
+        failed.countDown();
+      }
+    });
+
+    // Both pool threads ignore the interrupt and stay stuck, so the timeouts have to be failed
+    // somewhere else.
+    machine.process(new AbcPayload(1L));
+    machine.process(new AbcPayload(2L));
+    machine.start();
+    boolean done = failed.await(2L,TimeUnit.SECONDS);
+    int inFlight = machine.getInFlightCount();
+    stuck.release();
+    machine.requestStop();
+    machine.join(1000L);
+    machine.getThreadPool().shutdown();
+
+    assertTrue(done,"Timeouts weren't failed while the pool was stuck");
+    assertEquals(inFlight,0);
+    for (Throwable error: errors)
+    {
+      assertTrue(error instanceof StateTimeoutException);
+    }
+  }
+
+  static public class StuckStates
+  {
+    public AbcState stick (AbcPayload payload)
+    {
+      boolean released = false;
+      while (!released)
+      {
+        try
+        {
+          released = _release.await(10L,TimeUnit.SECONDS);
+        }
+        catch (InterruptedException ignored)
+        {
+        }
+      }
+      return AbcState.B;
+    }
+
+    public void release ()
+    {
+      _release.countDown();
+    }
+
+    private final CountDownLatch _release = new CountDownLatch(1);
+  }
+
+  @Test
+  public void retryAndDeadLetter ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final List<Long> completed = new ArrayList<Long>();
+    FlakyStates flaky = new FlakyStates();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,flaky);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"flaky");
+    machine.setStartState(AbcState.A);
+    RetryPolicy retry = new RetryPolicy(3,50L);
+    retry.setRetryOn(IllegalStateException.class);
+    machine.setRetryPolicy(AbcState.A,retry);
+    machine.setDeadLetterStore(new DeadLetterStore<AbcState,AbcPayload>(10));
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public synchronized void notifyComplete (AbcPayload payload, AbcState lastState,
+          Throwable error)
+      {
+        completed.add(payload.getId());
+      }
+    });
+
+    // Payload n fails n times before succeeding.
+    machine.process(new AbcPayload(2L));
+    machine.process(new AbcPayload(3L));
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    Thread.sleep(500L);
+
+    assertEquals(flaky.getAttempts(2L),3);
+    assertEquals(flaky.getAttempts(3L),3);
+    assertEquals(completed.size(),2);
+    assertEquals(machine.getInFlightCount(),0);
+
+    List<DeadLetter<AbcState,AbcPayload>> deadLetters = machine.getDeadLetterStore().drain();
+    assertEquals(deadLetters.size(),1);
+    assertEquals(deadLetters.get(0).getPayload().getId(),Long.valueOf(3L));
+    assertEquals(deadLetters.get(0).getAttempts(),3);
+    assertTrue(deadLetters.get(0).getError() instanceof IllegalStateException);
+  }
+
+  @Test
+  public void throwingCompletionListener ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final AtomicInteger completed = new AtomicInteger();
+    FlakyStates flaky = new FlakyStates();
+    StateCyclesTracker<AbcState,AbcPayload> tracker = new StateCyclesTracker<AbcState,AbcPayload>();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,flaky);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"flaky");
+    machine.setStartState(AbcState.A);
+    machine.setRetryPolicy(AbcState.A,new RetryPolicy(3,10L));
+    machine.addStateCycleListener(tracker);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        completed.incrementAndGet();
+        throw new IllegalStateException("Listener failed");
+      }
+    });
+
+    // Payload 0 succeeds first time; the listener failing mustn't look like the state failing.
+    machine.process(new AbcPayload(0L));
+    machine.start();
+    Thread.sleep(500L);
+    machine.requestStop();
+    machine.join(1000L);
+
+    assertEquals(flaky.getAttempts(0L),1);
+    assertEquals(completed.get(),1);
+    assertEquals(tracker.getCount(StateCycles.ERROR),Integer.valueOf(0));
+    assertEquals(machine.getInFlightCount(),0);
+  }
+
+  @Test
+  public void retryWaitsInQueue ()
+      throws NoSuchMethodException, InterruptedException, ProcessingQueueException
+  {
+    FlakyStates flaky = new FlakyStates();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,flaky);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"flaky");
+    machine.setStartState(AbcState.A);
+    RetryPolicy retry = new RetryPolicy(3,10000L);
+    retry.setJitter(0.0);
+    machine.setRetryPolicy(AbcState.A,retry);
+
+    machine.process(new AbcPayload(1L));
+    machine.start();
+    Thread.sleep(500L);
+    machine.requestStop();
+    machine.join(1000L);
+
+    // The retry is waiting out its backoff in the queue, where it outlives the machine.
+    assertEquals(flaky.getAttempts(1L),1);
+    assertEquals(machine.getProcessingQueue().getCount(),1);
+    assertEquals(machine.getProcessingQueue().isReady(),false);
+    ProcessInfo<AbcState,AbcPayload> waiting = machine.getProcessingQueue().peek(0);
+    assertEquals(waiting.getAttempt(),2);
+    assertTrue(ProcessingQueueUtils.isProcessInfoWaiting(waiting));
+  }
+
+  static public class FlakyStates
+  {
+    public synchronized AbcState flaky (AbcPayload payload)
+    {
+      int attempts = getAttempts(payload.getId()) + 1;
+      _attempts.put(payload.getId(),attempts);
+      if (attempts <= payload.getId())
+      {
+        throw new IllegalStateException("Attempt " + attempts + " failed");
+      }
+      return null;
+    }
+
+    public int getAttempts (Long id)
+    {
+      Integer attempts = _attempts.get(id);
+      return (attempts != null ? attempts : 0);
+    }
+
+    private final Map<Long,Integer> _attempts = new ConcurrentHashMap<Long,Integer>();
+  }
+
+  @Test
+  public void asyncStates ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final List<Long> completed = new ArrayList<Long>();
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,new AsyncStates());
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.setThreadPool(new ThreadPoolExecutor(1,1,0L,TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>()));
+    machine.registerState(AbcState.A,"fetch");
+    machine.registerState(AbcState.B,"never",100L);
+    machine.setStartState(AbcState.A);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public synchronized void notifyComplete (AbcPayload payload, AbcState lastState,
+          Throwable error)
+      {
+        completed.add(payload.getId());
+        if (error != null)
+        {
+          errors.add(error);
+        }
+      }
+    });
+
+    // Each fetch takes 200ms, so doing them one at a time on the single thread would take 10s.
+    for (long id = 1L; id <= 50L; id++)
+    {
+      machine.process(new AbcPayload(id));
+    }
+    machine.start();
+    Thread.sleep(1500L);
+    machine.requestStop();
+    Thread.sleep(500L);
+    machine.getThreadPool().shutdown();
+
+    assertEquals(completed.size(),50);
+    assertEquals(machine.getInFlightCount(),0);
+    int failed = 0;
+    int timedOut = 0;
+    for (Throwable error: errors)
+    {
+      failed += (error instanceof IllegalStateException ? 1 : 0);
+      timedOut += (error instanceof StateTimeoutException ? 1 : 0);
+    }
+    assertEquals(failed,25);
+    assertEquals(timedOut,25);
+  }
+
+  static public class AsyncStates
+  {
+    public CompletableFuture<AbcState> fetch (final AbcPayload payload)
+    {
+      return CompletableFuture.supplyAsync(new Supplier<AbcState>()
+      {
+        @Override
+        public AbcState get ()
+        {
+          if (payload.getId() % 2 == 0)
+          {
+            throw new IllegalStateException("Fetch failed");
+          }
+          return AbcState.B;
+        }
+      },CompletableFuture.delayedExecutor(200L,TimeUnit.MILLISECONDS));
+    }
+
+    public CompletableFuture<AbcState> never (AbcPayload payload)
+    {
+      return new CompletableFuture<AbcState>();
+    }
+  }
+
+  @Test
+  public void asyncSlowTimeout ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final CountDownLatch failed = new CountDownLatch(1);
+    final List<Throwable> errors = new ArrayList<Throwable>();
+    SlowAsyncStates states = new SlowAsyncStates();
+    StateMachine<AbcState,AbcPayload> machine =
+        new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,states);
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.registerState(AbcState.A,"slow",100L);
+    machine.setStartState(AbcState.A);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public synchronized void notifyComplete (AbcPayload payload, AbcState lastState,
+          Throwable error)
+      {
+        errors.add(error);
+        failed.countDown();
+      }
+    });
+
+    // The method only returns its stage after the timeout, so the stage has to be cancelled as
+    // soon as it's returned, or it would go on running with nobody waiting for it.
+    machine.process(new AbcPayload(1L));
+    machine.start();
+    assertTrue(failed.await(2L,TimeUnit.SECONDS));
+    CompletableFuture<AbcState> stage = states.awaitStage(2L);
+    machine.requestStop();
+    machine.join(1000L);
+    machine.getThreadPool().shutdown();
+
+    assertTrue(errors.get(0) instanceof StateTimeoutException);
+    assertTrue(stage != null,"The stage was returned");
+    for (int i = 0; (i < 100) && (!stage.isCancelled()); i++)
+    {
+      Thread.sleep(10L);
+    }
+    assertTrue(stage.isCancelled(),"The stage was cancelled");
+  }
+
+  static public class SlowAsyncStates
+  {
+    public CompletableFuture<AbcState> slow (AbcPayload payload)
+    {
+      long until = System.currentTimeMillis() + 300L;
+      while (System.currentTimeMillis() < until)
+      {
+        try
+        {
+          Thread.sleep(Math.max(1L,until - System.currentTimeMillis()));
+        }
+        catch (InterruptedException ignored)
+        {
+        }
+      }
+      CompletableFuture<AbcState> stage = new CompletableFuture<AbcState>();
+      _stage.complete(stage);
+      return stage;
+    }
+
+    public CompletableFuture<AbcState> awaitStage (long seconds)
+    {
+      try
+      {
+        return _stage.get(seconds,TimeUnit.SECONDS);
+      }
+      catch (Exception e)
+      {
+        return null;
+      }
+    }
+
+    private final CompletableFuture<CompletableFuture<AbcState>> _stage =
+        new CompletableFuture<CompletableFuture<AbcState>>();
+  }
+
+  @Test
+  public void completionPublisher ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final List<Long> received = new ArrayList<Long>();
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.getCompletionPublisher().subscribe(new Flow.Subscriber<Completion<AbcState,AbcPayload>>()
+    {
+      @Override
+      public void onSubscribe (Flow.Subscription subscription)
+      {
+        _subscription = subscription;
+        _subscription.request(1L);
+      }
+
+      @Override
+      public synchronized void onNext (Completion<AbcState,AbcPayload> completion)
+      {
+        received.add(completion.getPayload().getId());
+        _subscription.request(1L);
+      }
+
+      @Override
+      public void onError (Throwable error)
+      {
+      }
+
+      @Override
+      public void onComplete ()
+      {
+      }
+
+      private Flow.Subscription _subscription;
+    });
+
+    for (long id = 1L; id <= 10L; id++)
+    {
+      machine.process(new AbcPayload(id));
+    }
+    machine.start();
+    Thread.sleep(1000L);
+    machine.requestStop();
+    Thread.sleep(500L);
+
+    assertEquals(received.size(),10);
+    assertEquals(machine.getCompletionPublisher().getDroppedCount(),0L);
+  }
+
+  @Test
+  public void completionPublisherOverflow ()
+      throws InterruptedException
+  {
+    CompletionPublisher<AbcState,AbcPayload> publisher =
+        new CompletionPublisher<AbcState,AbcPayload>(ForkJoinPool.commonPool(),2);
+    publisher.subscribe(new Flow.Subscriber<Completion<AbcState,AbcPayload>>()
+    {
+      @Override
+      public void onSubscribe (Flow.Subscription subscription)
+      {
+        // Never requests anything, so the buffer fills up.
+      }
+
+      @Override
+      public void onNext (Completion<AbcState,AbcPayload> completion)
+      {
+      }
+
+      @Override
+      public void onError (Throwable error)
+      {
+      }
+
+      @Override
+      public void onComplete ()
+      {
+      }
+    });
+
+    for (long id = 1L; id <= 10L; id++)
+    {
+      publisher.notifyComplete(new AbcPayload(id),AbcState.C,null);
+    }
+    assertTrue(publisher.getDroppedCount() > 0L);
+    publisher.close();
+  }
+
+  @Test
+  public void bulkAdmission ()
+      throws NoSuchMethodException, ProcessingQueueException
+  {
+    final List<Long> rejected = new ArrayList<Long>();
+    StateMachine<AbcState,AbcPayload> machine = new AbcStateMachineRegistered();
+    machine.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    machine.setCapacity(5);
+    machine.setOverflowPolicy(OverflowPolicy.REJECT);
+    machine.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        rejected.add(payload.getId());
+      }
+    });
+
+    machine.process(new AbcPayload(0L));
+    List<AbcPayload> payloads = new ArrayList<AbcPayload>();
+    for (long id = 1L; id <= 7L; id++)
+    {
+      payloads.add(new AbcPayload(id));
+    }
+    machine.process(payloads);
+
+    assertEquals(machine.getProcessingQueue().getCount(),5);
+    assertEquals(machine.getInFlightCount(),5);
+    assertEquals(machine.getProcessingQueue().peek(4).getPayload().getId(),Long.valueOf(4L));
+    assertEquals(rejected,Arrays.asList(5L,6L,7L));
+  }
+
+  /**
+   * A memory queue which keeps track of how it's popped and pushed, and by which threads.
+   */
+  static public class RecordingQueue<S extends Enum, P extends Payload>
+    extends MemoryProcessingQueue<S,P>
+  {
+    @Override
+    public synchronized ProcessInfo<S,P> popReady ()
+    {
+      ProcessInfo<S,P> item = super.popReady();
+      if (item != null)
+      {
+        _singlePopCount++;
+        _poppedCount++;
+        _poppers.add(Thread.currentThread().getName());
+      }
+      return item;
+    }
+
+    @Override
+    public synchronized List<ProcessInfo<S,P>> popReady (int max)
+    {
+      List<ProcessInfo<S,P>> batch = super.popReady(max);
+      if (!batch.isEmpty())
+      {
+        _batchCount++;
+        _poppedCount += batch.size();
+        _largestBatch = Math.max(_largestBatch,batch.size());
+        _poppers.add(Thread.currentThread().getName());
+      }
+      return batch;
+    }
+
+    @Override
+    public synchronized void push (ProcessInfo<S,P> item)
+    {
+      _pushCount++;
+      super.push(item);
+    }
+
+    public synchronized int getBatchCount ()
+    {
+      return _batchCount;
+    }
+
+    public synchronized int getLargestBatch ()
+    {
+      return _largestBatch;
+    }
+
+    public synchronized int getPoppedCount ()
+    {
+      return _poppedCount;
+    }
+
+    public synchronized Set<String> getPoppers ()
+    {
+      return new HashSet<String>(_poppers);
+    }
+
+    public synchronized int getPushCount ()
+    {
+      return _pushCount;
+    }
+
+    public synchronized int getSinglePopCount ()
+    {
+      return _singlePopCount;
+    }
+
+    private int _batchCount;
+    private int _largestBatch;
+    private int _poppedCount;
+    private final Set<String> _poppers = new HashSet<String>();
+    private int _pushCount;
+    private int _singlePopCount;
+  }
 }
@@ -0,0 +1,210 @@
+package xephyrus.sam.core;
+
+import org.testng.annotations.Test;
+import xephyrus.sam.machines.abc.AbcPayload;
+import xephyrus.sam.machines.abc.AbcState;
+
+import javax.tools.ToolProvider;
+import java.lang.reflect.Constructor;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class StateHandlersTest
+{
+  @Test
+  public void lambdaHandler ()
+      throws Throwable
+  {
+    StateHandler handler = StateHandlers.compile(new Handlers(),
+        Handlers.class.getMethod("doPublic",AbcPayload.class));
+
+    assertTrue(handler.getClass().isHidden(),"Compiled to a lambda");
+    assertSame(handler.handle(new AbcPayload(1L)),AbcState.B);
+  }
+
+  @Test
+  public void staticLambdaHandler ()
+      throws Throwable
+  {
+    StateHandler handler = StateHandlers.compile(new Handlers(),
+        Handlers.class.getMethod("doStatic",AbcPayload.class));
+
+    assertTrue(handler.getClass().isHidden(),"Compiled to a lambda");
+    assertSame(handler.handle(new AbcPayload(1L)),AbcState.C);
+  }
+
+  @Test
+  public void nonPublicLambdaHandler ()
+      throws Throwable
+  {
+    StateHandler handler = StateHandlers.compile(new Handlers(),
+        Handlers.class.getDeclaredMethod("doPrivate",AbcPayload.class));
+
+    assertTrue(handler.getClass().isHidden(),"Compiled to a lambda");
+    assertSame(handler.handle(new AbcPayload(1L)),AbcState.A);
+  }
+
+  @Test
+  public void primitiveFallbackHandler ()
+      throws Throwable
+  {
+    StateHandler handler = StateHandlers.compile(new Handlers(),
+        Handlers.class.getMethod("doPrimitive",AbcPayload.class));
+
+    assertTrue(!handler.getClass().isHidden(),"Fell back to a method handle");
+    assertEquals(handler.handle(new AbcPayload(7L)),7);
+  }
+
+  @Test
+  public void exceptionsThrownThrough ()
+      throws Throwable
+  {
+    for (String name: Arrays.asList("doFail","doPrimitiveFail"))
+    {
+      StateHandler handler = StateHandlers.compile(new Handlers(),
+          Handlers.class.getMethod(name,AbcPayload.class));
+      try
+      {
+        handler.handle(new AbcPayload(1L));
+        fail(name + " should have thrown");
+      }
+      catch (IllegalStateException expected)
+      {
+        assertEquals(expected.getMessage(),name);
+      }
+    }
+  }
+
+  @Test
+  public void badSignature ()
+      throws NoSuchMethodException
+  {
+    try
+    {
+      StateHandlers.compile(new Handlers(),
+          Handlers.class.getMethod("doTwo",AbcPayload.class,AbcPayload.class));
+      fail("Two parameters should have been refused");
+    }
+    catch (InvalidStateDeclarationException expected)
+    {
+    }
+  }
+
+  @Test
+  public void childLoaderHandler ()
+      throws Throwable
+  {
+    // The machine and payload are only visible through a child loader, as they would be in a
+    // webapp or plugin.  The handler has to be settled when it's compiled, not fail on the
+    // first call.
+    Path dir = Files.createTempDirectory("sam-plugin");
+    try
+    {
+      Path source = dir.resolve("PluginMachine.java");
+      Files.write(source,Arrays.asList(
+          "public class PluginMachine",
+          "{",
+          "  public Long doWork (PluginPayload payload)",
+          "  {",
+          "    return payload.getId() + 1L;",
+          "  }",
+          "  static public Long doStatic (PluginPayload payload)",
+          "  {",
+          "    return payload.getId() + 2L;",
+          "  }",
+          "}",
+          "class PluginPayload",
+          "  implements xephyrus.sam.core.Payload",
+          "{",
+          "  public Long getId ()",
+          "  {",
+          "    return 5L;",
+          "  }",
+          "}"));
+      String classPath = Paths.get(Payload.class.getProtectionDomain().getCodeSource()
+          .getLocation().toURI()).toString();
+      assertEquals(ToolProvider.getSystemJavaCompiler().run(null,null,null,
+          "-classpath",classPath,"-d",dir.toString(),source.toString()),0);
+
+      URLClassLoader child = new URLClassLoader(new URL[] { dir.toUri().toURL() },
+          getClass().getClassLoader());
+      Class<?> machineType = child.loadClass("PluginMachine");
+      Class<?> payloadType = child.loadClass("PluginPayload");
+      Constructor<?> payloadMaker = payloadType.getDeclaredConstructor();
+      payloadMaker.setAccessible(true);
+
+      Object machine = machineType.getConstructor().newInstance();
+      StateHandler handler = StateHandlers.compile(machine,machineType.getMethod("doWork",
+          payloadType));
+      StateHandler staticHandler = StateHandlers.compile(machine,machineType.getMethod("doStatic",
+          payloadType));
+
+      assertEquals(handler.handle(payloadMaker.newInstance()),6L);
+      assertEquals(staticHandler.handle(payloadMaker.newInstance()),7L);
+      child.close();
+    }
+    finally
+    {
+      try (Stream<Path> files = Files.walk(dir))
+      {
+        List<Path> paths = files.collect(Collectors.toList());
+        Collections.reverse(paths);
+        for (Path path: paths)
+        {
+          Files.delete(path);
+        }
+      }
+    }
+  }
+
+  static public class Handlers
+  {
+    public AbcState doPublic (AbcPayload payload)
+    {
+      return AbcState.B;
+    }
+
+    static public AbcState doStatic (AbcPayload payload)
+    {
+      return AbcState.C;
+    }
+
+    private AbcState doPrivate (AbcPayload payload)
+    {
+      return AbcState.A;
+    }
+
+    public int doPrimitive (AbcPayload payload)
+    {
+      return payload.getId().intValue();
+    }
+
+    public AbcState doFail (AbcPayload payload)
+    {
+      throw new IllegalStateException("doFail");
+    }
+
+    public int doPrimitiveFail (AbcPayload payload)
+    {
+      throw new IllegalStateException("doPrimitiveFail");
+    }
+
+    public AbcState doTwo (AbcPayload payload, AbcPayload other)
+    {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,277 @@
+package xephyrus.sam.core;
+
+import org.testng.annotations.Test;
+import xephyrus.sam.core.queue.MemoryProcessingQueue;
+import xephyrus.sam.core.queue.ProcessingQueueException;
+import xephyrus.sam.core.trackers.MachineCyclesTracker;
+import xephyrus.sam.machines.abc.AbcPayload;
+import xephyrus.sam.machines.abc.AbcState;
+import xephyrus.sam.machines.abc.AbcStateMachineRegistered;
+import xephyrus.sam.machines.testcontrol.TestControlMachine;
+import xephyrus.sam.machines.testcontrol.TestControlPayload;
+import xephyrus.sam.machines.testcontrol.TestControlState;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertTrue;
+
+public class StateMachineDispatcherTest
+{
+  @Test
+  public void sharedScheduling ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final AtomicInteger completed = new AtomicInteger();
+    StateMachine<AbcState,AbcPayload> abc = new AbcStateMachineRegistered();
+    abc.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    abc.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        completed.incrementAndGet();
+      }
+    });
+    StateMachine<TestControlState,TestControlPayload> control = new TestControlMachine();
+    control.setProcessingQueue(new MemoryProcessingQueue<TestControlState,TestControlPayload>());
+    control.addCompletionListener(new CompletionListener<TestControlState,TestControlPayload>()
+    {
+      @Override
+      public void notifyComplete (TestControlPayload payload, TestControlState lastState,
+          Throwable error)
+      {
+        completed.incrementAndGet();
+      }
+    });
+
+    StateMachineDispatcher dispatcher = new StateMachineDispatcher();
+    dispatcher.registerStateMachine(AbcPayload.class,abc,3);
+    dispatcher.registerStateMachine(TestControlPayload.class,control);
+    for (long i = 0L; i < 50L; i++)
+    {
+      dispatcher.process(new AbcPayload(i));
+    }
+    for (int i = 0; i < 5; i++)
+    {
+      dispatcher.process(new TestControlPayload(TestControlState.Done));
+    }
+
+    dispatcher.start();
+    Thread.sleep(1000L);
+    dispatcher.requestStop();
+
+    assertEquals(abc.getProcessingQueue().getCount(),0);
+    assertEquals(control.getProcessingQueue().getCount(),0);
+    assertEquals(completed.get(),55);
+    assertEquals(abc.isAlive(),false);
+    assertEquals(control.isAlive(),false);
+  }
+
+  @Test
+  public void rateLimited ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final CountDownLatch done = new CountDownLatch(10);
+    MachineCyclesTracker tracker = new MachineCyclesTracker();
+    StateMachine<AbcState,AbcPayload> abc = new AbcStateMachineRegistered();
+    abc.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    RateLimitingMachineCycleController<AbcState,AbcPayload> controller =
+        new RateLimitingMachineCycleController<AbcState,AbcPayload>(abc);
+    controller.setRateLimit(AbcState.A,20.0,1);
+    abc.setMachineCycleController(controller);
+    abc.addMachineCycleListener(tracker);
+    abc.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+    {
+      @Override
+      public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+      {
+        done.countDown();
+      }
+    });
+
+    StateMachineDispatcher dispatcher = new StateMachineDispatcher();
+    dispatcher.registerStateMachine(AbcPayload.class,abc);
+    for (long i = 0L; i < 10L; i++)
+    {
+      dispatcher.process(new AbcPayload(i));
+    }
+
+    dispatcher.start();
+    assertTrue(done.await(5L,TimeUnit.SECONDS));
+    dispatcher.requestStop();
+
+    assertEquals(abc.getProcessingQueue().getCount(),0);
+    // The scheduler sleeps until the next token is due, rather than spinning.
+    assertTrue(tracker.getCount(StateMachine.MachineCycles.BEFORE) < 500);
+  }
+
+  @Test
+  public void throttledNeighbour ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final CountDownLatch done = new CountDownLatch(50);
+    StateMachine<AbcState,AbcPayload> abc = new AbcStateMachineRegistered();
+    abc.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    RateLimitingMachineCycleController<AbcState,AbcPayload> controller =
+        new RateLimitingMachineCycleController<AbcState,AbcPayload>(abc);
+    controller.setRateLimit(AbcState.A,20.0,1);
+    abc.setMachineCycleController(controller);
+    StateMachine<TestControlState,TestControlPayload> control = new TestControlMachine();
+    control.setProcessingQueue(new MemoryProcessingQueue<TestControlState,TestControlPayload>());
+    control.addCompletionListener(new CompletionListener<TestControlState,TestControlPayload>()
+    {
+      @Override
+      public void notifyComplete (TestControlPayload payload, TestControlState lastState,
+          Throwable error)
+      {
+        done.countDown();
+      }
+    });
+
+    StateMachineDispatcher dispatcher = new StateMachineDispatcher();
+    dispatcher.registerStateMachine(AbcPayload.class,abc);
+    dispatcher.registerStateMachine(TestControlPayload.class,control);
+    for (long i = 0L; i < 2000L; i++)
+    {
+      dispatcher.process(new AbcPayload(i));
+    }
+    for (int i = 0; i < 50; i++)
+    {
+      dispatcher.process(new TestControlPayload(TestControlState.Done));
+    }
+
+    // The throttled machine's backlog is held back by its rate limit, not refused by the pool,
+    // so it mustn't keep cutting the round short before the other machine gets a turn.
+    dispatcher.start();
+    assertTrue(done.await(500L,TimeUnit.MILLISECONDS));
+    dispatcher.requestStop();
+  }
+
+  @Test
+  public void lateRegistration ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    final CountDownLatch done = new CountDownLatch(20);
+    StateMachine<AbcState,AbcPayload> abc = new AbcStateMachineRegistered();
+    abc.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    StateMachine<TestControlState,TestControlPayload> control = new TestControlMachine();
+    control.setProcessingQueue(new MemoryProcessingQueue<TestControlState,TestControlPayload>());
+    control.addCompletionListener(new CompletionListener<TestControlState,TestControlPayload>()
+    {
+      @Override
+      public void notifyComplete (TestControlPayload payload, TestControlState lastState,
+          Throwable error)
+      {
+        done.countDown();
+      }
+    });
+
+    StateMachineDispatcher dispatcher = new StateMachineDispatcher();
+    dispatcher.registerStateMachine(AbcPayload.class,abc);
+    dispatcher.start();
+
+    // Registered after the start, it still goes through the shared pool.
+    dispatcher.registerStateMachine(TestControlPayload.class,control);
+    assertTrue(control.getThreadPool() == dispatcher.getThreadPool(),"Uses the shared pool");
+    for (int i = 0; i < 20; i++)
+    {
+      dispatcher.process(new TestControlPayload(TestControlState.Done));
+    }
+    assertTrue(done.await(2L,TimeUnit.SECONDS));
+    dispatcher.requestStop();
+  }
+
+  @Test
+  public void fullSharedPool ()
+      throws NoSuchMethodException, InterruptedException
+  {
+    List<ExecutorService> pools = Arrays.<ExecutorService>asList(
+        new ThreadPoolExecutor(1,1,60L,TimeUnit.SECONDS,new SynchronousQueue<Runnable>()),
+        new ThreadPoolExecutor(1,1,60L,TimeUnit.SECONDS,new ArrayBlockingQueue<Runnable>(1)));
+    for (ExecutorService pool: pools)
+    {
+      final CountDownLatch done = new CountDownLatch(10);
+      MachineCyclesTracker tracker = new MachineCyclesTracker();
+      StateMachine<AbcState,AbcPayload> slow =
+          new StateMachine<AbcState,AbcPayload>(AbcState.class,AbcPayload.class,new SlowStates());
+      slow.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+      slow.registerState(AbcState.A,"work");
+      slow.setStartState(AbcState.A);
+      slow.addMachineCycleListener(tracker);
+      slow.addCompletionListener(new CompletionListener<AbcState,AbcPayload>()
+      {
+        @Override
+        public void notifyComplete (AbcPayload payload, AbcState lastState, Throwable error)
+        {
+          done.countDown();
+        }
+      });
+
+      StateMachineDispatcher dispatcher = new StateMachineDispatcher();
+      dispatcher.setThreadPool(pool);
+      dispatcher.setYieldTime(10000L);
+      dispatcher.registerStateMachine(AbcPayload.class,slow);
+      for (long i = 0L; i < 10L; i++)
+      {
+        dispatcher.process(new AbcPayload(i));
+      }
+
+      // The pool is full nearly all the time.  The scheduler waits to be woken by a finishing
+      // worker, rather than polling, and doesn't wait out the whole yield time either.
+      dispatcher.start();
+      assertTrue(done.await(5L,TimeUnit.SECONDS));
+      dispatcher.requestStop();
+      pool.shutdown();
+      int full = tracker.getCount(StateMachine.MachineCycles.FULL);
+      assertTrue(full < 60,"Pool found full " + full + " times");
+    }
+  }
+
+  static public class SlowStates
+  {
+    public AbcState work (AbcPayload payload)
+        throws InterruptedException
+    {
+      Thread.sleep(20L);
+      return AbcState.C;
+    }
+  }
+
+  @Test
+  public void bulkSubmission ()
+      throws NoSuchMethodException, ProcessingQueueException
+  {
+    StateMachine<AbcState,AbcPayload> abc = new AbcStateMachineRegistered();
+    abc.setProcessingQueue(new MemoryProcessingQueue<AbcState,AbcPayload>());
+    StateMachine<TestControlState,TestControlPayload> control = new TestControlMachine();
+    control.setProcessingQueue(new MemoryProcessingQueue<TestControlState,TestControlPayload>());
+
+    StateMachineDispatcher dispatcher = new StateMachineDispatcher();
+    dispatcher.registerStateMachine(AbcPayload.class,abc);
+    dispatcher.registerStateMachine(TestControlPayload.class,control);
+    List<Payload> payloads = new ArrayList<Payload>();
+    for (long i = 0L; i < 50L; i++)
+    {
+      payloads.add(new AbcPayload(i));
+      if (i % 10L == 0L)
+      {
+        payloads.add(new TestControlPayload(TestControlState.Done));
+      }
+    }
+    dispatcher.process(payloads);
+
+    assertEquals(abc.getProcessingQueue().getCount(),50);
+    assertEquals(control.getProcessingQueue().getCount(),5);
+    assertEquals(abc.getProcessingQueue().peek(49).getPayload().getId(),Long.valueOf(49L));
+  }
+}
@@ -0,0 +1,664 @@
+package xephyrus.sam.core.queue;
+
+import org.testng.annotations.DataProvider;
+import org.testng.annotations.Test;
+import xephyrus.sam.core.PrioritizedPayload;
+import xephyrus.sam.core.ProcessInfo;
+import xephyrus.sam.core.WaitingState;
+import xephyrus.sam.machines.abc.AbcPayload;
+import xephyrus.sam.machines.abc.AbcState;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.testng.Assert.assertEquals;
+import static org.testng.Assert.assertNull;
+import static org.testng.Assert.assertSame;
+import static org.testng.Assert.assertTrue;
+import static org.testng.Assert.fail;
+
+public class ProcessingQueuesTest
+{
+  @DataProvider(name = "QueueParameters")
+  public Object[][] getQueueParameters ()
+  {
+    return new Object[][]
+    {
+      { new MemoryProcessingQueue<AbcState,AbcPayload>() },
+      { new PriorityProcessingQueue<AbcState,AbcPayload>() },
+      { new ConcurrentProcessingQueue<AbcState,AbcPayload>() },
+      { new IndexedProcessingQueue<AbcState,AbcPayload>() }
+    };
+  }
+
+  @Test(dataProvider = "QueueParameters")
+  public void exerciseQueue (ProcessingQueue<AbcState,AbcPayload> queue)
+      throws ProcessingQueueException
+  {
+    ProcessInfo<AbcState,AbcPayload> one = new ProcessInfo<AbcState,AbcPayload>(
+        new AbcPayload(1L),AbcState.A);
+    ProcessInfo<AbcState,AbcPayload> two = new ProcessInfo<AbcState,AbcPayload>(
+        new AbcPayload(2L),AbcState.B);
+    ProcessInfo<AbcState,AbcPayload> three = new ProcessInfo<AbcState,AbcPayload>(
+        new AbcPayload(3L),AbcState.C);
+
+    queue.queue(one);
+    queue.queue(two);
+    queue.push(three);
+    assertEquals(queue.getCount(),3);
+    assertTrue(queue.isReady());
+    assertTrue(queue.isContained(two));
+    assertSame(queue.peek(),one);
+    assertSame(queue.peek(2),three);
+    assertNull(queue.peek(3));
+
+    assertSame(queue.remove(1),two);
+    assertEquals(queue.isContained(two),false);
+
+    List<ProcessInfo<AbcState,AbcPayload>> batch = queue.popReady(5);
+    assertEquals(batch.size(),2);
+    assertSame(batch.get(0),one);
+    assertSame(batch.get(1),three);
+    assertEquals(queue.getCount(),0);
+    assertEquals(queue.isReady(),false);
+    assertNull(queue.popReady());
+  }
+
+  @Test
+  public void priorityOrder ()
+  {
+    PriorityProcessingQueue<AbcState,AbcPayload> queue =
+        new PriorityProcessingQueue<AbcState,AbcPayload>();
+    ProcessInfo<AbcState,AbcPayload> low = new ProcessInfo<AbcState,AbcPayload>(
+        new AbcPayload(1L),AbcState.A,0);
+    ProcessInfo<AbcState,AbcPayload> high = new ProcessInfo<AbcState,AbcPayload>(
+        new AbcPayload(2L),AbcState.B,5);
+    ProcessInfo<AbcState,AbcPayload> urgent = new ProcessInfo<AbcState,AbcPayload>(
+        new UrgentPayload(3L),AbcState.A,0);
+
+    queue.queue(low);
+    queue.queue(high);
+    queue.queue(urgent);
+
+    assertSame(queue.pop(),urgent);
+    assertSame(queue.pop(),high);
+    assertSame(queue.pop(),low);
+  }
+
+  @Test
+  public void priorityAging ()
+      throws InterruptedException
+  {
+    PriorityProcessingQueue<AbcState,AbcPayload> queue =
+        new PriorityProcessingQueue<AbcState,AbcPayload>(1L);
+    ProcessInfo<AbcState,AbcPayload> old = new ProcessInfo<AbcState,AbcPayload>(
+        new AbcPayload(1L),AbcState.A,0);
+    queue.queue(old);
+    Thread.sleep(50L);
+    ProcessInfo<AbcState,AbcPayload> high = new ProcessInfo<AbcState,AbcPayload>(
+        new AbcPayload(2L),AbcState.B,5);
+    queue.queue(high);
+
+    assertSame(queue.pop(),old);
+    assertSame(queue.pop(),high);
+  }
+
+  static public class UrgentPayload
+    extends AbcPayload
+    implements PrioritizedPayload
+  {
+    public UrgentPayload (Long id)
+    {
+      super(id);
+    }
+
+    @Override
+    public int getPriority ()
+    {
+      return 10;
+    }
+  }
+
+  @Test(dataProvider = "QueueParameters")
+  public void queueAll (ProcessingQueue<AbcState,AbcPayload> queue)
+      throws ProcessingQueueException
+  {
+    List<ProcessInfo<AbcState,AbcPayload>> items = new ArrayList<ProcessInfo<AbcState,AbcPayload>>();
+    for (long id = 1L; id <= 5L; id++)
+    {
+      items.add(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.A,0,1,1000L));
+    }
+
+    queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(0L),AbcState.A,0,1,999L));
+    queue.queueAll(items);
+    assertEquals(queue.getCount(),6);
+
+    List<ProcessInfo<AbcState,AbcPayload>> batch = queue.popReady(10);
+    assertEquals(batch.size(),6);
+    for (int i = 0; i < batch.size(); i++)
+    {
+      assertEquals(batch.get(i).getPayload().getId(),Long.valueOf(i));
+    }
+  }
+
+  @Test(dataProvider = "QueueParameters")
+  public void concurrentProducersAndConsumers (final ProcessingQueue<AbcState,AbcPayload> queue)
+      throws InterruptedException
+  {
+    final int producers = 4;
+    final int perProducer = 10000;
+    final Set<Long> taken = Collections.newSetFromMap(new ConcurrentHashMap<Long,Boolean>());
+    final AtomicInteger duplicates = new AtomicInteger();
+    final AtomicInteger remaining = new AtomicInteger(producers * perProducer);
+    List<Thread> threads = new ArrayList<Thread>();
+
+    for (int p = 0; p < producers; p++)
+    {
+      final long base = (long) p * perProducer;
+      threads.add(new Thread()
+      {
+        @Override
+        public void run ()
+        {
+          try
+          {
+            for (long id = base; id < base + perProducer; id++)
+            {
+              queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.A));
+            }
+          }
+          catch (ProcessingQueueException e)
+          {
+            throw new IllegalStateException(e);
+          }
+        }
+      });
+    }
+    for (int c = 0; c < 4; c++)
+    {
+      threads.add(new Thread()
+      {
+        @Override
+        public void run ()
+        {
+          while (remaining.get() > 0)
+          {
+            for (ProcessInfo<AbcState,AbcPayload> item: queue.popReady(8))
+            {
+              if (!taken.add(item.getPayload().getId()))
+              {
+                duplicates.incrementAndGet();
+              }
+              remaining.decrementAndGet();
+            }
+          }
+        }
+      });
+    }
+
+    for (Thread thread: threads)
+    {
+      thread.start();
+    }
+    for (Thread thread: threads)
+    {
+      thread.join(10000L);
+    }
+
+    assertEquals(duplicates.get(),0);
+    assertEquals(taken.size(),producers * perProducer);
+    assertEquals(queue.getCount(),0);
+  }
+
+  @Test
+  public void ringBuffer ()
+      throws ProcessingQueueException
+  {
+    RingBufferProcessingQueue<AbcState,AbcPayload> queue =
+        new RingBufferProcessingQueue<AbcState,AbcPayload>(3);
+    assertEquals(queue.getCapacity(),4);
+
+    // Cycle through a few times so the buffer wraps, then fill it past its capacity.
+    for (long id = 0L; id < 10L; id++)
+    {
+      queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.A));
+      assertEquals(queue.pop().getPayload().getId(),Long.valueOf(id));
+    }
+    List<ProcessInfo<AbcState,AbcPayload>> items = new ArrayList<ProcessInfo<AbcState,AbcPayload>>();
+    for (long id = 0L; id < 6L; id++)
+    {
+      items.add(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),
+          AbcState.values()[(int) id % 3],(int) id,(int) id + 1,1000L + id));
+    }
+    queue.queue(items.get(0));
+    queue.queueAll(items.subList(1,6));
+    assertEquals(queue.getCount(),6);
+    assertEquals(queue.getCapacity(),8);
+    assertTrue(queue.isContained(items.get(4)));
+
+    ProcessInfo<AbcState,AbcPayload> removed = queue.remove(2);
+    assertSame(removed.getPayload(),items.get(2).getPayload());
+    assertEquals(queue.isContained(items.get(2)),false);
+
+    for (int i: new int[] { 0, 1, 3, 4, 5 })
+    {
+      ProcessInfo<AbcState,AbcPayload> item = queue.popReady();
+      assertSame(item.getPayload(),items.get(i).getPayload());
+      assertSame(item.getState(),items.get(i).getState());
+      assertEquals(item.getPriority(),items.get(i).getPriority());
+      assertEquals(item.getAttempt(),items.get(i).getAttempt());
+      assertEquals(item.getLastCycle(),items.get(i).getLastCycle());
+    }
+    assertEquals(queue.getCount(),0);
+    assertNull(queue.popReady());
+
+    // Chunks are let go as the queue drains past them.
+    for (long id = 0L; id < 20L; id++)
+    {
+      queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.A));
+    }
+    assertEquals(queue.getCapacity(),20);
+    for (int i = 0; i < 18; i++)
+    {
+      queue.popReady();
+    }
+    assertEquals(queue.getCapacity(),4);
+    assertEquals(queue.getCount(),2);
+    assertEquals(queue.popReady().getPayload().getId(),Long.valueOf(18L));
+
+    // Waiting items are found the same way as buffered ones, by payload and state.
+    AbcPayload payload = new AbcPayload(30L);
+    queue.queue(new ProcessInfo<AbcState,AbcPayload>(payload,AbcState.B,0,1,
+        System.currentTimeMillis() + 10000L));
+    assertEquals(queue.isReady(),true);
+    assertTrue(queue.isContained(new ProcessInfo<AbcState,AbcPayload>(payload,AbcState.B)));
+  }
+
+  @Test
+  public void indexedLookup ()
+      throws ProcessingQueueException
+  {
+    IndexedProcessingQueue<AbcState,AbcPayload> queue =
+        new IndexedProcessingQueue<AbcState,AbcPayload>(4);
+    List<ProcessInfo<AbcState,AbcPayload>> items = new ArrayList<ProcessInfo<AbcState,AbcPayload>>();
+    for (long id = 0L; id < 100L; id++)
+    {
+      items.add(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.A));
+    }
+    queue.queueAll(items);
+    assertEquals(queue.getCount(),100);
+
+    // Cancel every third payload, from all over the queue.
+    for (long id = 0L; id < 100L; id += 3L)
+    {
+      assertTrue(queue.isPayloadQueued(id));
+      assertEquals(queue.removePayload(id),Arrays.asList(items.get((int) id)));
+      assertEquals(queue.isPayloadQueued(id),false);
+      assertEquals(queue.isContained(items.get((int) id)),false);
+    }
+    assertTrue(queue.removePayload(0L).isEmpty());
+    assertEquals(queue.getCount(),66);
+    assertSame(queue.peek(0),items.get(1));
+    assertSame(queue.peek(1),items.get(2));
+    assertSame(queue.peek(2),items.get(4));
+    assertSame(queue.peek(65),items.get(98));
+    assertNull(queue.peek(66));
+
+    assertSame(queue.remove(2),items.get(4));
+    assertSame(queue.peek(2),items.get(5));
+
+    // Churn through enough to squeeze the gaps out, and keep the order.
+    for (long id = 100L; id < 200L; id++)
+    {
+      queue.push(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.B));
+      queue.pop();
+    }
+    assertEquals(queue.getCount(),65);
+    assertEquals(queue.peek().getPayload().getId(),Long.valueOf(135L));
+    assertEquals(queue.peek(64).getPayload().getId(),Long.valueOf(199L));
+    assertEquals(queue.getCount(),65);
+
+    // A cancelled waiting item comes straight out of the wheel.
+    ProcessInfo<AbcState,AbcPayload> waiting = new ProcessInfo<AbcState,AbcPayload>(
+        new AbcPayload(300L),AbcState.C,0,1,System.currentTimeMillis() + 10000L);
+    queue.push(waiting);
+    assertSame(queue.peek(65),waiting);
+    assertEquals(queue.removePayload(300L),Arrays.asList(waiting));
+    assertEquals(queue.getCount(),65);
+    assertNull(queue.peek(65));
+  }
+
+  @Test
+  public void journalRecovery ()
+      throws ProcessingQueueException, IOException
+  {
+    File directory = Files.createTempDirectory("sam-journal").toFile();
+    try
+    {
+      JournalProcessingQueue<AbcState,AbcPayload> queue = openJournal(directory,4096);
+      for (long id = 1L; id <= 3L; id++)
+      {
+        queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.A));
+      }
+      ProcessInfo<AbcState,AbcPayload> first = queue.popReady();
+      queue.push(new ProcessInfo<AbcState,AbcPayload>(first.getPayload(),AbcState.B,2,1,1234L));
+      queue.notifyComplete(queue.popReady().getPayload(),AbcState.A,null);
+      assertEquals(queue.getJournalledCount(),2);
+      queue.close();
+
+      queue = openJournal(directory,4096);
+      assertEquals(queue.getCount(),2);
+      ProcessInfo<AbcState,AbcPayload> third = queue.popReady();
+      assertEquals(third.getPayload().getId(),Long.valueOf(3L));
+      assertSame(third.getState(),AbcState.A);
+      ProcessInfo<AbcState,AbcPayload> moved = queue.popReady();
+      assertEquals(moved.getPayload().getId(),Long.valueOf(1L));
+      assertSame(moved.getState(),AbcState.B);
+      assertEquals(moved.getPriority(),2);
+      assertEquals(moved.getLastCycle(),1234L);
+      queue.close();
+    }
+    finally
+    {
+      deleteJournal(directory);
+    }
+  }
+
+  @Test
+  public void journalCompaction ()
+      throws ProcessingQueueException, IOException
+  {
+    File directory = Files.createTempDirectory("sam-journal").toFile();
+    try
+    {
+      JournalProcessingQueue<AbcState,AbcPayload> queue = openJournal(directory,512);
+      queue.setMaxSegments(3);
+      queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(0L),AbcState.C));
+      assertEquals(queue.pop().getPayload().getId(),Long.valueOf(0L));
+
+      // Churn through plenty of segments while the first payload lingers, in flight.
+      for (long id = 1L; id < 1000L; id++)
+      {
+        queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.A));
+        queue.notifyComplete(queue.pop().getPayload(),AbcState.A,null);
+        assertTrue(queue.getSegmentCount() <= 3);
+      }
+      assertEquals(queue.getJournalledCount(),1);
+      queue.close();
+
+      queue = openJournal(directory,512);
+      assertEquals(queue.getCount(),1);
+      assertEquals(queue.pop().getPayload().getId(),Long.valueOf(0L));
+      queue.close();
+    }
+    finally
+    {
+      deleteJournal(directory);
+    }
+  }
+
+  @Test
+  public void journalTornRecord ()
+      throws ProcessingQueueException, IOException
+  {
+    File directory = Files.createTempDirectory("sam-journal").toFile();
+    try
+    {
+      JournalProcessingQueue<AbcState,AbcPayload> queue = openJournal(directory,4096);
+      for (long id = 1L; id <= 3L; id++)
+      {
+        queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(id),AbcState.A));
+      }
+      queue.close();
+
+      // Spoil the last record, as though the process stopped while writing it.
+      File[] segments = directory.listFiles();
+      assertEquals(segments.length,1);
+      RandomAccessFile segment = new RandomAccessFile(segments[0],"rw");
+      int record = 8 + 29 + 8;
+      segment.seek((2 * record) + record - 1);
+      segment.write(0x5a);
+      segment.close();
+
+      queue = openJournal(directory,4096);
+      assertEquals(queue.getCount(),2);
+      queue.queue(new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(4L),AbcState.A));
+      queue.close();
+
+      queue = openJournal(directory,4096);
+      assertEquals(queue.getCount(),3);
+      assertEquals(queue.peek(2).getPayload().getId(),Long.valueOf(4L));
+      queue.close();
+    }
+    finally
+    {
+      deleteJournal(directory);
+    }
+  }
+
+  @Test
+  public void journalRefusals ()
+      throws ProcessingQueueException, IOException
+  {
+    File directory = Files.createTempDirectory("sam-journal").toFile();
+    try
+    {
+      // Takes everything up to payload 5, then refuses the rest.
+      RingBufferProcessingQueue<AbcState,AbcPayload> refusing =
+          new RingBufferProcessingQueue<AbcState,AbcPayload>()
+          {
+            @Override
+            public synchronized void queueAll (Collection<ProcessInfo<AbcState,AbcPayload>> items)
+              throws ProcessingQueueException
+            {
+              for (ProcessInfo<AbcState,AbcPayload> item: items)
+              {
+                if (item.getPayload().getId() == 5L)
+                {
+                  throw new ProcessingQueueException("Refused");
+                }
+                queue(item);
+              }
+            }
+          };
+      JournalProcessingQueue<AbcState,AbcPayload> queue =
+          new JournalProcessingQueue<AbcState,AbcPayload>(directory,AbcState.class,
+              new AbcPayloadCodec(),refusing,4096);
+      AbcPayload first = new AbcPayload(1L);
+      queue.queue(new ProcessInfo<AbcState,AbcPayload>(first,AbcState.A));
+
+      // A payload already in the journal is turned away, and doesn't complete the one that is.
+      AbcPayload duplicate = new AbcPayload(1L);
+      assertRefused(queue,Arrays.asList(new ProcessInfo<AbcState,AbcPayload>(duplicate,
+          AbcState.A)));
+      assertRefused(queue,Arrays.asList(
+          new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(2L),AbcState.A),
+          new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(2L),AbcState.A)));
+      queue.notifyComplete(duplicate,AbcState.A,null);
+      assertEquals(queue.getJournalledCount(),1);
+
+      // What the queue underneath won't take is recorded as complete again.
+      assertRefused(queue,Arrays.asList(
+          new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(4L),AbcState.A),
+          new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(5L),AbcState.A)));
+      assertEquals(queue.getJournalledCount(),2);
+      assertEquals(queue.getCount(),2);
+
+      // A completion that can't be recorded stops the queue, rather than failing the listener.
+      queue.close();
+      queue.notifyComplete(first,AbcState.A,null);
+      assertTrue(queue.getFailure() != null);
+      assertRefused(queue,Arrays.asList(
+          new ProcessInfo<AbcState,AbcPayload>(new AbcPayload(6L),AbcState.A)));
+    }
+    finally
+    {
+      deleteJournal(directory);
+    }
+  }
+
+  static private void assertRefused (ProcessingQueue<AbcState,AbcPayload> queue,
+      List<ProcessInfo<AbcState,AbcPayload>> items)
+  {
+    try
+    {
+      queue.queueAll(items);
+      fail("Queued " + items);
+    }
+    catch (ProcessingQueueException expected)
+    {
+      // Expected.
+    }
+  }
+
+  static public JournalProcessingQueue<AbcState,AbcPayload> openJournal (File directory,
+      int segmentSize)
+      throws ProcessingQueueException
+  {
+    return new JournalProcessingQueue<AbcState,AbcPayload>(directory,AbcState.class,
+        new AbcPayloadCodec(),new MemoryProcessingQueue<AbcState,AbcPayload>(),segmentSize);
+  }
+
+  static public void deleteJournal (File directory)
+  {
+    File[] files = directory.listFiles();
+    for (File file: (files != null ? files : new File[0]))
+    {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  static public class AbcPayloadCodec
+    implements PayloadCodec<AbcPayload>
+  {
+    @Override
+    public byte[] encode (AbcPayload payload)
+    {
+      return ByteBuffer.allocate(8).putLong(payload.getId()).array();
+    }
+
+    @Override
+    public AbcPayload decode (byte[] bytes)
+    {
+      return new AbcPayload(ByteBuffer.wrap(bytes).getLong());
+    }
+  }
+
+  @DataProvider(name = "WaitingQueueParameters")
+  public Object[][] getWaitingQueueParameters ()
+  {
+    return new Object[][]
+    {
+      { new MemoryProcessingQueue<PollState,AbcPayload>() },
+      { new PriorityProcessingQueue<PollState,AbcPayload>() },
+      { new ConcurrentProcessingQueue<PollState,AbcPayload>() },
+      { new RingBufferProcessingQueue<PollState,AbcPayload>() },
+      { new IndexedProcessingQueue<PollState,AbcPayload>() }
+    };
+  }
+
+  @Test(dataProvider = "WaitingQueueParameters")
+  public void waitingDoesNotBlock (ProcessingQueue<PollState,AbcPayload> queue)
+      throws ProcessingQueueException, InterruptedException
+  {
+    ProcessInfo<PollState,AbcPayload> waiting = new ProcessInfo<PollState,AbcPayload>(
+        new AbcPayload(1L),PollState.Poll);
+    ProcessInfo<PollState,AbcPayload> ready = new ProcessInfo<PollState,AbcPayload>(
+        new AbcPayload(2L),PollState.Done);
+
+    queue.queue(waiting);
+    queue.queue(ready);
+    assertEquals(queue.getCount(),2);
+    assertTrue(queue.isReady());
+    assertSame(queue.popReady().getPayload(),ready.getPayload());
+
+    assertEquals(queue.getCount(),1);
+    assertTrue(queue.isContained(waiting));
+    assertSame(queue.peek(0),waiting);
+    assertEquals(queue.isReady(),false);
+    assertNull(queue.popReady());
+
+    Thread.sleep(PollState.Poll.getWaitTime() + 50L);
+    assertTrue(queue.isReady());
+    assertSame(queue.popReady().getPayload(),waiting.getPayload());
+    assertEquals(queue.getCount(),0);
+  }
+
+  @Test(dataProvider = "WaitingQueueParameters")
+  public void popWaiting (ProcessingQueue<PollState,AbcPayload> queue)
+      throws ProcessingQueueException
+  {
+    ProcessInfo<PollState,AbcPayload> waiting = new ProcessInfo<PollState,AbcPayload>(
+        new AbcPayload(1L),PollState.Poll);
+
+    queue.push(waiting);
+    assertNull(queue.popReady());
+    assertSame(queue.peek(),waiting);
+    assertSame(queue.pop(),waiting);
+    assertEquals(queue.getCount(),0);
+    assertEquals(queue.isContained(waiting),false);
+  }
+
+  @Test
+  public void timingWheel ()
+  {
+    TimingWheel<String> wheel = new TimingWheel<String>(1L,1000L);
+    List<String> due = new ArrayList<String>();
+
+    assertEquals(wheel.schedule("past",999L),false);
+    assertTrue(wheel.schedule("soon",1010L));
+    assertTrue(wheel.schedule("later",1500L));
+    assertTrue(wheel.schedule("much later",60000L));
+    assertTrue(wheel.schedule("much, much later",1000L + (3600L * 1000L)));
+    assertEquals(wheel.size(),4);
+    assertSame(wheel.peek(),"soon");
+
+    assertEquals(wheel.expire(1009L,due),0);
+    assertEquals(wheel.expire(1010L,due),1);
+    assertEquals(due.get(0),"soon");
+    assertEquals(wheel.expire(59999L,due),1);
+    assertEquals(due.get(1),"later");
+    assertEquals(wheel.expire(60000L,due),1);
+    assertEquals(due.get(2),"much later");
+
+    assertTrue(wheel.schedule("cancelled",60100L));
+    assertTrue(wheel.remove("cancelled",60100L));
+    assertEquals(wheel.remove("cancelled",60100L),false);
+    assertTrue(wheel.contains("much, much later"));
+    assertTrue(wheel.remove("much, much later",1000L + (3600L * 1000L)));
+    assertEquals(wheel.size(),0);
+    assertEquals(wheel.expire(Long.MAX_VALUE / 2,due),0);
+  }
+
+  static public enum PollState
+    implements WaitingState
+  {
+    Poll(300L),
+    Done(0L);
+
+    private PollState (long wait)
+    {
+      _waitTime = wait;
+    }
+
+    @Override
+    public long getWaitTime ()
+    {
+      return _waitTime;
+    }
+
+    private long _waitTime;
+  }
+}